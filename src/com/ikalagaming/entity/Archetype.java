@@ -0,0 +1,222 @@
+package com.ikalagaming.entity;
+
+import com.ikalagaming.entity.component.Component;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * A table holding every entity that has exactly the same set of component
+ * types. Components of each type are kept together in their own column array,
+ * and every entity occupies one row across all of the columns. When an entity
+ * gains or loses a component, it is moved to the table for its new set of
+ * types.
+ * <p>
+ * This is not thread safe on its own, all access is expected to be guarded by
+ * the owning {@link ComponentStorage}.
+ * </p>
+ *
+ * @author Ches Burks
+ *
+ */
+class Archetype {
+	private static final int INITIAL_CAPACITY = 16;
+
+	/**
+	 * The set of component type indices stored in this table.
+	 */
+	final BitSet signature;
+
+	/**
+	 * The component type indices stored in this table, in ascending order. The
+	 * column for types[i] is columns[i].
+	 */
+	final int[] types;
+
+	/**
+	 * Maps a component type index to its column, or -1 if this table does not
+	 * store that type.
+	 */
+	private final int[] columnIndex;
+
+	/**
+	 * The component columns, one per type, each with one entry per row.
+	 */
+	Component[][] columns;
+
+	/**
+	 * The entity that owns each row.
+	 */
+	Entity[] entities;
+
+	/**
+	 * How many rows are in use.
+	 */
+	int size;
+
+	/**
+	 * Cached tables that are reached by adding a component type, indexed by the
+	 * type index.
+	 */
+	private Archetype[] addEdges;
+
+	/**
+	 * Cached tables that are reached by removing a component type, indexed by
+	 * the type index.
+	 */
+	private Archetype[] removeEdges;
+
+	/**
+	 * Creates a new, empty table for the given set of types.
+	 *
+	 * @param signature the component type indices stored in the table
+	 */
+	Archetype(BitSet signature) {
+		this.signature = (BitSet) signature.clone();
+		this.types = new int[signature.cardinality()];
+		this.columnIndex = new int[signature.length()];
+		Arrays.fill(this.columnIndex, -1);
+
+		int column = 0;
+		for (int type = signature.nextSetBit(0); type >= 0; type =
+			signature.nextSetBit(type + 1)) {
+			this.types[column] = type;
+			this.columnIndex[type] = column;
+			++column;
+		}
+
+		this.columns = new Component[this.types.length][];
+		for (int i = 0; i < this.columns.length; ++i) {
+			this.columns[i] = new Component[Archetype.INITIAL_CAPACITY];
+		}
+		this.entities = new Entity[Archetype.INITIAL_CAPACITY];
+		this.size = 0;
+		this.addEdges = new Archetype[0];
+		this.removeEdges = new Archetype[0];
+	}
+
+	/**
+	 * Adds a new row for the given entity. The components in that row are
+	 * left unset, and it is up to the caller to fill them in.
+	 *
+	 * @param entity the entity that owns the row
+	 * @return the index of the new row
+	 */
+	int addRow(Entity entity) {
+		this.ensureCapacity(this.size + 1);
+		final int row = this.size;
+		this.entities[row] = entity;
+		++this.size;
+		return row;
+	}
+
+	/**
+	 * Returns the column that stores the given component type, or -1 if this
+	 * table does not store that type.
+	 *
+	 * @param type the component type index
+	 * @return the column index, or -1 if there is none
+	 */
+	int column(int type) {
+		if (type < 0 || type >= this.columnIndex.length) {
+			return -1;
+		}
+		return this.columnIndex[type];
+	}
+
+	/**
+	 * Makes sure there is room for at least the given number of rows without
+	 * having to grow the arrays again.
+	 *
+	 * @param capacity the number of rows required
+	 */
+	void ensureCapacity(int capacity) {
+		if (capacity <= this.entities.length) {
+			return;
+		}
+		int newCapacity = this.entities.length * 2;
+		if (newCapacity < capacity) {
+			newCapacity = capacity;
+		}
+		this.entities = Arrays.copyOf(this.entities, newCapacity);
+		for (int i = 0; i < this.columns.length; ++i) {
+			this.columns[i] = Arrays.copyOf(this.columns[i], newCapacity);
+		}
+	}
+
+	/**
+	 * Returns the cached table that is reached by adding the given type, or
+	 * null if it has not been looked up yet.
+	 *
+	 * @param type the component type index
+	 * @return the cached table, or null
+	 */
+	Archetype getAddEdge(int type) {
+		if (type >= this.addEdges.length) {
+			return null;
+		}
+		return this.addEdges[type];
+	}
+
+	/**
+	 * Returns the cached table that is reached by removing the given type, or
+	 * null if it has not been looked up yet.
+	 *
+	 * @param type the component type index
+	 * @return the cached table, or null
+	 */
+	Archetype getRemoveEdge(int type) {
+		if (type >= this.removeEdges.length) {
+			return null;
+		}
+		return this.removeEdges[type];
+	}
+
+	/**
+	 * Removes a row, moving the last row into its place so the table stays
+	 * packed. The entity that was moved has its row updated.
+	 *
+	 * @param row the row to remove
+	 */
+	void removeRow(int row) {
+		final int last = this.size - 1;
+		if (row != last) {
+			this.entities[row] = this.entities[last];
+			this.entities[row].row = row;
+			for (Component[] column : this.columns) {
+				column[row] = column[last];
+			}
+		}
+		this.entities[last] = null;
+		for (Component[] column : this.columns) {
+			column[last] = null;
+		}
+		--this.size;
+	}
+
+	/**
+	 * Caches the table that is reached by adding the given type.
+	 *
+	 * @param type the component type index
+	 * @param target the table that has all of our types plus the given one
+	 */
+	void setAddEdge(int type, Archetype target) {
+		if (type >= this.addEdges.length) {
+			this.addEdges = Arrays.copyOf(this.addEdges, type + 1);
+		}
+		this.addEdges[type] = target;
+	}
+
+	/**
+	 * Caches the table that is reached by removing the given type.
+	 *
+	 * @param type the component type index
+	 * @param target the table that has all of our types except the given one
+	 */
+	void setRemoveEdge(int type, Archetype target) {
+		if (type >= this.removeEdges.length) {
+			this.removeEdges = Arrays.copyOf(this.removeEdges, type + 1);
+		}
+		this.removeEdges[type] = target;
+	}
+}
@@ -0,0 +1,316 @@
+package com.ikalagaming.entity;
+
+import com.ikalagaming.entity.component.Component;
+import com.ikalagaming.entity.component.ComponentType;
+import com.ikalagaming.entity.component.Effects;
+import com.ikalagaming.entity.effects.Effect;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Records changes to entities so that they can be made later, all at once.
+ * Adding or removing components, spawning, and destroying entities all need
+ * exclusive access to component storage, so they can't be done while a query
+ * is being iterated. Instead, changes are recorded here and then applied by
+ * {@link #playback(List)} once iteration is done. The
+ * {@link SystemScheduler} keeps one buffer per thread and plays them all back
+ * at the end of each tick.
+ * <p>
+ * Playback happens in phases. First entities are spawned, then components are
+ * added and removed while holding the storage lock only once, then effects are
+ * added and removed, and finally entities are destroyed. Within each phase the
+ * changes are sorted by entity, so changes to the same entity are made
+ * together and in the order they were recorded.
+ * </p>
+ * <p>
+ * A buffer is not thread safe, and should only be written to by one thread.
+ * </p>
+ *
+ * @author Ches Burks
+ *
+ */
+public class CommandBuffer {
+	private static final byte ADD_COMPONENT = 0;
+	private static final byte REMOVE_COMPONENT = 1;
+	private static final byte ADD_EFFECT = 2;
+	private static final byte REMOVE_EFFECT = 3;
+	private static final byte DESTROY = 4;
+	private static final byte SPAWN = 5;
+
+	private static final int INITIAL_CAPACITY = 16;
+
+	/**
+	 * Makes all of the changes recorded in the buffers, and then clears them.
+	 * None of the buffers may be written to during playback, and storage must
+	 * not be locked by the calling thread, so this can't be called while
+	 * iterating a query.
+	 *
+	 * @param buffers the buffers to play back
+	 */
+	public static void playback(List<CommandBuffer> buffers) {
+		final int bufferCount = buffers.size();
+		int[] offsets = new int[bufferCount];
+		int total = 0;
+		for (int i = 0; i < bufferCount; ++i) {
+			offsets[i] = total;
+			total += buffers.get(i).size;
+		}
+		if (total == 0) {
+			return;
+		}
+
+		/*
+		 * Spawns go first, in the order they were recorded, so that other
+		 * changes are made to a world that already contains the new entities.
+		 */
+		int keyCount = 0;
+		for (CommandBuffer buffer : buffers) {
+			for (int i = 0; i < buffer.size; ++i) {
+				if (buffer.kinds[i] == CommandBuffer.SPAWN) {
+					Entity.spawn(buffer.counts[i],
+						(EntityTemplate) buffer.values[i]);
+				}
+				else {
+					++keyCount;
+				}
+			}
+		}
+
+		/*
+		 * The entity index is in the high bits and the position in the low
+		 * bits, so sorting groups changes by entity and keeps the recorded
+		 * order for each one.
+		 */
+		long[] keys = new long[keyCount];
+		int key = 0;
+		for (int b = 0; b < bufferCount; ++b) {
+			CommandBuffer buffer = buffers.get(b);
+			for (int i = 0; i < buffer.size; ++i) {
+				if (buffer.kinds[i] == CommandBuffer.SPAWN) {
+					continue;
+				}
+				final long id = buffer.entities[i].getId();
+				final long index = EntityIdAllocator.getIndex(id) & 0xFFFFFFFFL;
+				keys[key] = (index << 32) | (offsets[b] + i);
+				++key;
+			}
+		}
+		Arrays.sort(keys);
+
+		final ComponentStorage storage = EntityManager.getInstance().storage;
+		final long stamp = storage.writeLock();
+		try {
+			for (long sorted : keys) {
+				final int position = (int) sorted;
+				final int b = CommandBuffer.findBuffer(offsets, position);
+				final CommandBuffer buffer = buffers.get(b);
+				final int i = position - offsets[b];
+				if (buffer.kinds[i] == CommandBuffer.ADD_COMPONENT) {
+					storage.addComponentLocked(buffer.entities[i],
+						(Component) buffer.values[i]);
+				}
+				else if (buffer.kinds[i] == CommandBuffer.REMOVE_COMPONENT) {
+					storage.removeComponentLocked(buffer.entities[i],
+						buffer.counts[i]);
+				}
+			}
+		}
+		finally {
+			storage.unlockWrite(stamp);
+		}
+
+		for (long sorted : keys) {
+			final int position = (int) sorted;
+			final int b = CommandBuffer.findBuffer(offsets, position);
+			final CommandBuffer buffer = buffers.get(b);
+			final int i = position - offsets[b];
+			final byte kind = buffer.kinds[i];
+			if (kind != CommandBuffer.ADD_EFFECT
+				&& kind != CommandBuffer.REMOVE_EFFECT) {
+				continue;
+			}
+			Effects effects = buffer.entities[i].getComponent(Effects.TYPE);
+			if (effects == null) {
+				continue;
+			}
+			if (kind == CommandBuffer.ADD_EFFECT) {
+				effects.addEffect((Effect) buffer.values[i]);
+			}
+			else {
+				effects.removeEffect((Effect) buffer.values[i]);
+			}
+		}
+
+		for (long sorted : keys) {
+			final int position = (int) sorted;
+			final int b = CommandBuffer.findBuffer(offsets, position);
+			final CommandBuffer buffer = buffers.get(b);
+			final int i = position - offsets[b];
+			if (buffer.kinds[i] == CommandBuffer.DESTROY) {
+				buffer.entities[i].destroy();
+			}
+		}
+
+		for (CommandBuffer buffer : buffers) {
+			buffer.clear();
+		}
+	}
+
+	/**
+	 * Finds which buffer a position in the combined list of changes belongs
+	 * to.
+	 *
+	 * @param offsets the position of the first change in each buffer
+	 * @param position the position in the combined list
+	 * @return the index of the buffer containing that position
+	 */
+	private static int findBuffer(int[] offsets, int position) {
+		int found = Arrays.binarySearch(offsets, position);
+		if (found < 0) {
+			return -found - 2;
+		}
+		// empty buffers share an offset with the next one
+		while (found + 1 < offsets.length && offsets[found + 1] == position) {
+			++found;
+		}
+		return found;
+	}
+
+	private byte[] kinds;
+
+	private Entity[] entities;
+
+	/**
+	 * The component, effect, or template for each change.
+	 */
+	private Object[] values;
+
+	/**
+	 * The component type index for removals, or the number of entities for
+	 * spawns.
+	 */
+	private int[] counts;
+
+	private int size;
+
+	/**
+	 * Creates an empty buffer.
+	 */
+	public CommandBuffer() {
+		this.kinds = new byte[CommandBuffer.INITIAL_CAPACITY];
+		this.entities = new Entity[CommandBuffer.INITIAL_CAPACITY];
+		this.values = new Object[CommandBuffer.INITIAL_CAPACITY];
+		this.counts = new int[CommandBuffer.INITIAL_CAPACITY];
+		this.size = 0;
+	}
+
+	/**
+	 * Records that a component should be added to the entity.
+	 *
+	 * @param entity the entity to add to
+	 * @param toAdd the component to add
+	 * @see Entity#addComponent(Component)
+	 */
+	public void addComponent(Entity entity, Component toAdd) {
+		this.record(CommandBuffer.ADD_COMPONENT, entity, toAdd, 0);
+	}
+
+	/**
+	 * Records that an effect should be added to the entity. Nothing happens if
+	 * the entity does not have an {@link Effects} component at playback.
+	 *
+	 * @param entity the entity to add to
+	 * @param effect the effect to add
+	 * @see Effects#addEffect(Effect)
+	 */
+	public void addEffect(Entity entity, Effect effect) {
+		this.record(CommandBuffer.ADD_EFFECT, entity, effect, 0);
+	}
+
+	/**
+	 * Removes all recorded changes without making them.
+	 */
+	public void clear() {
+		Arrays.fill(this.entities, 0, this.size, null);
+		Arrays.fill(this.values, 0, this.size, null);
+		this.size = 0;
+	}
+
+	/**
+	 * Records that the entity should be destroyed.
+	 *
+	 * @param entity the entity to destroy
+	 * @see Entity#destroy()
+	 */
+	public void destroy(Entity entity) {
+		this.record(CommandBuffer.DESTROY, entity, null, 0);
+	}
+
+	/**
+	 * Returns the number of changes that have been recorded.
+	 *
+	 * @return the number of recorded changes
+	 */
+	public int getSize() {
+		return this.size;
+	}
+
+	/**
+	 * Adds a change to the end of the buffer.
+	 *
+	 * @param kind the kind of change
+	 * @param entity the entity to change
+	 * @param value the component, effect, or template
+	 * @param count the type index or number of entities
+	 */
+	private void record(byte kind, Entity entity, Object value, int count) {
+		if (this.size >= this.kinds.length) {
+			final int capacity = this.kinds.length * 2;
+			this.kinds = Arrays.copyOf(this.kinds, capacity);
+			this.entities = Arrays.copyOf(this.entities, capacity);
+			this.values = Arrays.copyOf(this.values, capacity);
+			this.counts = Arrays.copyOf(this.counts, capacity);
+		}
+		this.kinds[this.size] = kind;
+		this.entities[this.size] = entity;
+		this.values[this.size] = value;
+		this.counts[this.size] = count;
+		++this.size;
+	}
+
+	/**
+	 * Records that the component of the given type should be removed from the
+	 * entity.
+	 *
+	 * @param entity the entity to remove from
+	 * @param type the type of component to remove
+	 * @see Entity#removeComponent(ComponentType)
+	 */
+	public void removeComponent(Entity entity, ComponentType<?> type) {
+		this.record(CommandBuffer.REMOVE_COMPONENT, entity, null,
+			type.getIndex());
+	}
+
+	/**
+	 * Records that an effect should be removed from the entity.
+	 *
+	 * @param entity the entity to remove from
+	 * @param effect the effect to remove
+	 * @see Effects#removeEffect(Effect)
+	 */
+	public void removeEffect(Entity entity, Effect effect) {
+		this.record(CommandBuffer.REMOVE_EFFECT, entity, effect, 0);
+	}
+
+	/**
+	 * Records that entities should be spawned from a template.
+	 *
+	 * @param count how many entities to spawn
+	 * @param template the template for the entities
+	 * @see Entity#spawn(int, EntityTemplate)
+	 */
+	public void spawn(int count, EntityTemplate template) {
+		this.record(CommandBuffer.SPAWN, null, template, count);
+	}
+}
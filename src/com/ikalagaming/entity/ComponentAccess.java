@@ -0,0 +1,57 @@
+package com.ikalagaming.entity;
+
+import com.ikalagaming.entity.component.Component;
+
+/**
+ * Lets entity storage set the owner of a {@link Component}, which is hidden
+ * from everything else. The component package provides the only instance
+ * when the {@link Component} class is initialized, and it can't be replaced
+ * after that. The setter has to be public to be reached from that package,
+ * so it only accepts an access declared inside the {@link Component} class,
+ * which other code can't provide.
+ *
+ * @author Ches Burks
+ *
+ */
+public abstract class ComponentAccess {
+	private static volatile ComponentAccess instance;
+
+	/**
+	 * Returns the access provided by the component package. A component must
+	 * have been created first, which is always true when there is one to set
+	 * the owner of.
+	 *
+	 * @return the component access
+	 */
+	static ComponentAccess get() {
+		return ComponentAccess.instance;
+	}
+
+	/**
+	 * Provides the access used by entity storage. This is called once by the
+	 * {@link Component} class.
+	 *
+	 * @param access the access to use
+	 * @throws IllegalArgumentException if the access is not declared in the
+	 *             {@link Component} class
+	 * @throws IllegalStateException if the access has already been provided
+	 */
+	public static synchronized void set(ComponentAccess access) {
+		if (access.getClass().getEnclosingClass() != Component.class) {
+			throw new IllegalArgumentException(
+				"Only the Component class can provide access");
+		}
+		if (ComponentAccess.instance != null) {
+			throw new IllegalStateException("Component access is already set");
+		}
+		ComponentAccess.instance = access;
+	}
+
+	/**
+	 * Sets the entity that owns a component.
+	 *
+	 * @param component the component
+	 * @param owner the entity the component was added to
+	 */
+	protected abstract void setOwner(Component component, Entity owner);
+}
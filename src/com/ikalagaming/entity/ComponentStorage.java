@@ -0,0 +1,496 @@
+package com.ikalagaming.entity;
+
+import com.ikalagaming.entity.component.Component;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * Stores the components of entities in {@link Archetype archetype} tables. Each
+ * distinct set of component types gets its own table, and entities are moved
+ * between tables when components are added or removed. This keeps components
+ * of the same type next to each other in memory rather than spread out over a
+ * map per entity.
+ * <p>
+ * Component sets are read far more often than they change, so lookups are
+ * done as optimistic reads that never block. Only if a structural change
+ * happens part way through a lookup is it retried while holding the read lock.
+ * </p>
+ *
+ * @author Ches Burks
+ *
+ */
+class ComponentStorage {
+	/**
+	 * Every table that has been created, by the set of types it stores.
+	 */
+	private HashMap<BitSet, Archetype> archetypes;
+
+	/**
+	 * The table for entities that have no components.
+	 */
+	private final Archetype emptyArchetype;
+
+	/**
+	 * Queries that are kept up to date as tables are created.
+	 */
+	private ArrayList<EntityQuery> queries;
+
+	/**
+	 * Guards all of the tables, and the location of entities within them.
+	 */
+	private StampedLock storageLock;
+
+	/**
+	 * Creates a new storage with just the empty table.
+	 */
+	ComponentStorage() {
+		this.archetypes = new HashMap<>();
+		this.queries = new ArrayList<>();
+		this.storageLock = new StampedLock();
+		this.emptyArchetype = new Archetype(new BitSet());
+		this.archetypes.put(this.emptyArchetype.signature,
+			this.emptyArchetype);
+	}
+
+	/**
+	 * Adds a component to the entity if it does not already have one of that
+	 * type, moving it to the appropriate table.
+	 *
+	 * @param entity the entity to add to
+	 * @param toAdd the component to add
+	 */
+	void addComponent(Entity entity, Component toAdd) {
+		final long stamp = this.storageLock.writeLock();
+		try {
+			this.addComponentLocked(entity, toAdd);
+		}
+		finally {
+			this.storageLock.unlockWrite(stamp);
+		}
+	}
+
+	/**
+	 * Adds a component to the entity if it does not already have one of that
+	 * type. Must be called while holding the write lock.
+	 *
+	 * @param entity the entity to add to
+	 * @param toAdd the component to add
+	 * @see #writeLock()
+	 */
+	void addComponentLocked(Entity entity, Component toAdd) {
+		Archetype from = entity.archetype;
+		if (from == null) {
+			return;// destroyed
+		}
+		final int type = toAdd.getComponentType().getIndex();
+		if (from.column(type) >= 0) {
+			return;
+		}
+		Archetype to = from.getAddEdge(type);
+		if (to == null) {
+			BitSet signature = (BitSet) from.signature.clone();
+			signature.set(type);
+			to = this.getOrCreateArchetype(signature);
+			from.setAddEdge(type, to);
+		}
+		this.move(entity, to, type, toAdd);
+	}
+
+	/**
+	 * Looks up a component without any locking. This may be called during an
+	 * optimistic read, so it must not fail if the tables are being changed at
+	 * the same time, and the result is only valid if the read is validated
+	 * afterwards.
+	 *
+	 * @param entity the entity to look at
+	 * @param type the index of the component type
+	 * @return the component, or null if there is none
+	 */
+	private static Component find(Entity entity, int type) {
+		final Archetype archetype = entity.archetype;
+		final int row = entity.row;
+		if (archetype == null) {
+			return null;
+		}
+		final int column = archetype.column(type);
+		if (column < 0) {
+			return null;
+		}
+		final Component[] components = archetype.columns[column];
+		if (row < 0 || row >= components.length) {
+			return null;
+		}
+		return components[row];
+	}
+
+	/**
+	 * Returns the component of the given type that the entity owns, or null if
+	 * it has none.
+	 *
+	 * @param entity the entity to look at
+	 * @param type the index of the component type
+	 * @return the component, or null if there is none
+	 */
+	Component getComponent(Entity entity, int type) {
+		long stamp = this.storageLock.tryOptimisticRead();
+		if (stamp != 0) {
+			Component result = ComponentStorage.find(entity, type);
+			if (this.storageLock.validate(stamp)) {
+				return result;
+			}
+		}
+		stamp = this.storageLock.readLock();
+		try {
+			return ComponentStorage.find(entity, type);
+		}
+		finally {
+			this.storageLock.unlockRead(stamp);
+		}
+	}
+
+	/**
+	 * Returns a copy of all the components that the entity owns, or null if
+	 * the entity is not in storage.
+	 *
+	 * @param entity the entity to look at
+	 * @return a new array of the components, or null
+	 */
+	Component[] getComponents(Entity entity) {
+		final long stamp = this.storageLock.readLock();
+		try {
+			Archetype archetype = entity.archetype;
+			if (archetype == null) {
+				return null;
+			}
+			Component[] components = new Component[archetype.columns.length];
+			for (int i = 0; i < components.length; ++i) {
+				components[i] = archetype.columns[i][entity.row];
+			}
+			return components;
+		}
+		finally {
+			this.storageLock.unlockRead(stamp);
+		}
+	}
+
+	/**
+	 * Returns the table for the given set of types, creating it if required.
+	 * Must be called while holding the storage lock.
+	 *
+	 * @param signature the set of component type indices
+	 * @return the table for that set of types
+	 */
+	private Archetype getOrCreateArchetype(BitSet signature) {
+		Archetype archetype = this.archetypes.get(signature);
+		if (archetype == null) {
+			archetype = new Archetype(signature);
+			this.archetypes.put(archetype.signature, archetype);
+			for (EntityQuery query : this.queries) {
+				query.archetypeCreated(archetype);
+			}
+		}
+		return archetype;
+	}
+
+	/**
+	 * Returns true if the entity owns a component of the given type.
+	 *
+	 * @param entity the entity to look at
+	 * @param type the index of the component type
+	 * @return true if there is a component of that type, false otherwise
+	 */
+	boolean hasComponent(Entity entity, int type) {
+		long stamp = this.storageLock.tryOptimisticRead();
+		if (stamp != 0) {
+			Archetype archetype = entity.archetype;
+			boolean result = archetype != null && archetype.signature.get(type);
+			if (this.storageLock.validate(stamp)) {
+				return result;
+			}
+		}
+		stamp = this.storageLock.readLock();
+		try {
+			Archetype archetype = entity.archetype;
+			return archetype != null && archetype.signature.get(type);
+		}
+		finally {
+			this.storageLock.unlockRead(stamp);
+		}
+	}
+
+	/**
+	 * Places a new entity into the table for entities without components.
+	 *
+	 * @param entity the entity to insert
+	 */
+	void insert(Entity entity) {
+		final long stamp = this.storageLock.writeLock();
+		try {
+			entity.archetype = this.emptyArchetype;
+			entity.row = this.emptyArchetype.addRow(entity);
+		}
+		finally {
+			this.storageLock.unlockWrite(stamp);
+		}
+	}
+
+	/**
+	 * Places many new entities into storage at once. Every entity is expected
+	 * to have components of the same types as the first one, in which case
+	 * they are all placed directly into the same table. Any entity that has a
+	 * different set of types has its components added one at a time instead.
+	 * If an entity has multiple components of the same type, the first one is
+	 * used.
+	 *
+	 * @param entities the entities to insert
+	 * @param components the components of each entity, by entity
+	 */
+	void insertAll(Entity[] entities, Component[][] components) {
+		BitSet signature = new BitSet();
+		for (Component component : components[0]) {
+			signature.set(component.getComponentType().getIndex());
+		}
+
+		boolean allMatched = true;
+		final long stamp = this.storageLock.writeLock();
+		try {
+			Archetype target = this.getOrCreateArchetype(signature);
+			target.ensureCapacity(target.size + entities.length);
+
+			for (int i = 0; i < entities.length; ++i) {
+				final Entity entity = entities[i];
+				entity.archetype = target;
+				entity.row = target.addRow(entity);
+				if (!ComponentStorage.fillRow(target, entity.row,
+					components[i])) {
+					// not the same types as the first, handled below
+					target.removeRow(entity.row);
+					entity.archetype = this.emptyArchetype;
+					entity.row = this.emptyArchetype.addRow(entity);
+					allMatched = false;
+				}
+			}
+		}
+		finally {
+			this.storageLock.unlockWrite(stamp);
+		}
+
+		if (allMatched) {
+			return;
+		}
+		for (int i = 0; i < entities.length; ++i) {
+			if (entities[i].archetype != this.emptyArchetype) {
+				continue;
+			}
+			for (Component component : components[i]) {
+				this.addComponent(entities[i], component);
+			}
+		}
+	}
+
+	/**
+	 * Fills in a new row with the given components. If there are multiple
+	 * components of the same type, the first is used. Must be called while
+	 * holding the storage lock.
+	 *
+	 * @param archetype the table the row is in
+	 * @param row the row to fill
+	 * @param components the components to store
+	 * @return true if the components are exactly the types stored by the
+	 *         table, false if there are any other types or any are missing
+	 */
+	private static boolean fillRow(Archetype archetype, int row,
+		Component[] components) {
+		for (Component component : components) {
+			final int column =
+				archetype.column(component.getComponentType().getIndex());
+			if (column < 0) {
+				return false;
+			}
+			if (archetype.columns[column][row] == null) {
+				archetype.columns[column][row] = component;
+				ComponentAccess.get().setOwner(component,
+					archetype.entities[row]);
+			}
+		}
+		for (Component[] column : archetype.columns) {
+			if (column[row] == null) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Acquires the read lock, blocking until it is available. Used for
+	 * iterating over tables.
+	 *
+	 * @return the stamp to unlock with
+	 * @see #unlockRead(long)
+	 */
+	long readLock() {
+		return this.storageLock.readLock();
+	}
+
+	/**
+	 * Starts keeping the query up to date, and adds all existing tables that
+	 * match it.
+	 *
+	 * @param query the query to register
+	 */
+	void registerQuery(EntityQuery query) {
+		final long stamp = this.storageLock.writeLock();
+		try {
+			for (Archetype archetype : this.archetypes.values()) {
+				query.archetypeCreated(archetype);
+			}
+			this.queries.add(query);
+		}
+		finally {
+			this.storageLock.unlockWrite(stamp);
+		}
+	}
+
+	/**
+	 * Releases the read lock.
+	 *
+	 * @param stamp the stamp returned by {@link #readLock()}
+	 */
+	void unlockRead(long stamp) {
+		this.storageLock.unlockRead(stamp);
+	}
+
+	/**
+	 * Stops keeping the query up to date. It will keep returning the tables it
+	 * already matched, but not any new ones.
+	 *
+	 * @param query the query to unregister
+	 */
+	void unregisterQuery(EntityQuery query) {
+		final long stamp = this.storageLock.writeLock();
+		try {
+			this.queries.remove(query);
+		}
+		finally {
+			this.storageLock.unlockWrite(stamp);
+		}
+	}
+
+	/**
+	 * Moves an entity to a new table, copying over all of the components both
+	 * tables have in common. Must be called while holding the storage lock.
+	 *
+	 * @param entity the entity to move
+	 * @param to the table to move it to
+	 * @param addedType the type index of a component being added, or -1
+	 * @param added the component being added, or null
+	 */
+	private void move(Entity entity, Archetype to, int addedType,
+		Component added) {
+		final Archetype from = entity.archetype;
+		final int fromRow = entity.row;
+		final int toRow = to.addRow(entity);
+
+		for (int i = 0; i < to.types.length; ++i) {
+			final int type = to.types[i];
+			if (type == addedType) {
+				to.columns[i][toRow] = added;
+				ComponentAccess.get().setOwner(added, entity);
+			}
+			else {
+				to.columns[i][toRow] = from.columns[from.column(type)][fromRow];
+			}
+		}
+		from.removeRow(fromRow);
+
+		entity.archetype = to;
+		entity.row = toRow;
+	}
+
+	/**
+	 * Removes the entity and all of its components from storage.
+	 *
+	 * @param entity the entity to remove
+	 */
+	void remove(Entity entity) {
+		final long stamp = this.storageLock.writeLock();
+		try {
+			Archetype archetype = entity.archetype;
+			if (archetype == null) {
+				return;
+			}
+			archetype.removeRow(entity.row);
+			entity.archetype = null;
+			entity.row = -1;
+		}
+		finally {
+			this.storageLock.unlockWrite(stamp);
+		}
+	}
+
+	/**
+	 * Removes the component of the given type from the entity, if it has one,
+	 * and moves it to the appropriate table.
+	 *
+	 * @param entity the entity to remove from
+	 * @param type the index of the component type
+	 */
+	void removeComponent(Entity entity, int type) {
+		final long stamp = this.storageLock.writeLock();
+		try {
+			this.removeComponentLocked(entity, type);
+		}
+		finally {
+			this.storageLock.unlockWrite(stamp);
+		}
+	}
+
+	/**
+	 * Removes the component of the given type from the entity, if it has one.
+	 * Must be called while holding the write lock.
+	 *
+	 * @param entity the entity to remove from
+	 * @param type the index of the component type
+	 * @see #writeLock()
+	 */
+	void removeComponentLocked(Entity entity, int type) {
+		Archetype from = entity.archetype;
+		if (from == null) {
+			return;
+		}
+		if (!from.signature.get(type)) {
+			return;
+		}
+		Archetype to = from.getRemoveEdge(type);
+		if (to == null) {
+			BitSet signature = (BitSet) from.signature.clone();
+			signature.clear(type);
+			to = this.getOrCreateArchetype(signature);
+			from.setRemoveEdge(type, to);
+		}
+		this.move(entity, to, -1, null);
+	}
+
+	/**
+	 * Releases the write lock.
+	 *
+	 * @param stamp the stamp returned by {@link #writeLock()}
+	 */
+	void unlockWrite(long stamp) {
+		this.storageLock.unlockWrite(stamp);
+	}
+
+	/**
+	 * Acquires the write lock, blocking until it is available. Used to make
+	 * many changes at once with the methods that expect the lock to be held.
+	 *
+	 * @return the stamp to unlock with
+	 * @see #unlockWrite(long)
+	 */
+	long writeLock() {
+		return this.storageLock.writeLock();
+	}
+}
@@ -0,0 +1,996 @@
+package com.ikalagaming.entity;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Keeps currency balances durably, so that transactions survive a crash.
+ * Every change is appended to a write ahead log in the ledger directory, and
+ * the log is replayed when the ledger is opened again.
+ * <p>
+ * Changes are only written to memory while the caller waits. A background
+ * thread writes everything appended since the last commit and syncs the file
+ * once per commit interval, so the cost of syncing is shared by every change
+ * in that interval and each change only takes as long as copying a few bytes.
+ * A crash loses at most the changes made since the last commit. Callers that
+ * need a change to be durable before continuing can call {@link #commit()},
+ * which also returns early if another commit already covered it.
+ * </p>
+ * <p>
+ * A snapshot of every balance is written periodically, and whenever the ledger
+ * is opened, so that the log does not grow forever and opening does not have
+ * to replay every change ever made. The log is split into segments, and a new
+ * segment is started for each snapshot so the old ones can be deleted once
+ * the snapshot is safely written.
+ * </p>
+ * <p>
+ * Balances are held by {@link Account accounts}, which are
+ * {@link ICurrencyHolder currency holders} and can be
+ * {@link Player#setLedgerAccount(Account) given to players}. Transfers
+ * between two accounts of the same ledger are logged as a single change, so a
+ * crash can never leave the money in neither or both of them. The same goes
+ * for every balance in the ledger that a {@link Trade} changes.
+ * </p>
+ * <p>
+ * Once the log or a snapshot can't be written, the ledger refuses every
+ * further change, since it could no longer promise to keep it. Transfers
+ * fail, and setting a balance throws an {@link UncheckedIOException}. The
+ * error is also thrown by every later commit or snapshot.
+ * </p>
+ *
+ * @author Ches Burks
+ *
+ */
+public class CurrencyLedger implements AutoCloseable {
+	/**
+	 * A balance kept in the ledger, identified by an id that stays the same
+	 * between runs.
+	 *
+	 * @author Ches Burks
+	 *
+	 */
+	public static final class Account implements ICurrencyHolder {
+		private final CurrencyLedger ledger;
+
+		private final long id;
+
+		private final ReentrantLock lock;
+
+		/**
+		 * The current balance, guarded by {@link #lock}.
+		 */
+		private int balance;
+
+		/**
+		 * The sequence number of the last change made to the balance, guarded
+		 * by {@link #lock}.
+		 */
+		private long lastSequence;
+
+		/**
+		 * Creates an empty account.
+		 *
+		 * @param ledger the ledger the account belongs to
+		 * @param id the id of the account
+		 */
+		Account(CurrencyLedger ledger, long id) {
+			this.ledger = ledger;
+			this.id = id;
+			this.lock = new ReentrantLock();
+			this.balance = 0;
+			this.lastSequence = 0;
+		}
+
+		@Override
+		public void addCurency(int amount) {
+			if (amount <= 0) {
+				return;
+			}
+			this.lock.lock();
+			try {
+				this.ledger.set(this, this.balance + amount);
+			}
+			finally {
+				this.lock.unlock();
+			}
+		}
+
+		@Override
+		public int getCurrency() {
+			this.lock.lock();
+			try {
+				return this.balance;
+			}
+			finally {
+				this.lock.unlock();
+			}
+		}
+
+		@Override
+		public Lock getCurrencyLock() {
+			return this.lock;
+		}
+
+		/**
+		 * Returns the id of the account.
+		 *
+		 * @return the id the account is stored under
+		 */
+		public long getId() {
+			return this.id;
+		}
+
+		/**
+		 * Returns the ledger this account belongs to.
+		 *
+		 * @return the ledger
+		 */
+		public CurrencyLedger getLedger() {
+			return this.ledger;
+		}
+
+		/**
+		 * Returns this account.
+		 */
+		@Override
+		public Account getLedgerAccount() {
+			return this;
+		}
+
+		@Override
+		public void removeCurrency(int amount) {
+			if (amount <= 0) {
+				return;
+			}
+			this.lock.lock();
+			try {
+				this.ledger.set(this, this.balance - amount);
+			}
+			finally {
+				this.lock.unlock();
+			}
+		}
+
+		@Override
+		public void setCurrency(int amount) {
+			this.lock.lock();
+			try {
+				this.ledger.set(this, amount);
+			}
+			finally {
+				this.lock.unlock();
+			}
+		}
+
+		@Override
+		public boolean transferCurrencyFrom(ICurrencyHolder other,
+			int amount) {
+			return CurrencyTransfer.transfer(other, this, amount);
+		}
+
+		@Override
+		public boolean transferCurrencyTo(ICurrencyHolder other, int amount) {
+			return CurrencyTransfer.transfer(this, other, amount);
+		}
+	}
+
+	/**
+	 * A change that sets the balance of one account.
+	 */
+	private static final byte SET = 1;
+
+	/**
+	 * A change that moves currency from one account to another.
+	 */
+	private static final byte TRANSFER = 2;
+
+	/**
+	 * A change that sets the balances of several accounts at once.
+	 */
+	private static final byte BATCH = 3;
+
+	/**
+	 * The type, sequence number, two account ids, and amount.
+	 */
+	private static final int RECORD_BODY = 1 + 8 + 8 + 8 + 4;
+
+	/**
+	 * The body followed by its checksum.
+	 */
+	private static final int RECORD_SIZE = CurrencyLedger.RECORD_BODY + 4;
+
+	/**
+	 * The type, sequence number, and number of accounts in a batch, which are
+	 * followed by the entries and then a checksum of all of it.
+	 */
+	private static final int BATCH_HEADER = 1 + 8 + 4;
+
+	/**
+	 * The account id and new balance of one account in a batch.
+	 */
+	private static final int BATCH_ENTRY = 8 + 4;
+
+	/**
+	 * The most accounts one batch may change. Used to tell a damaged batch
+	 * apart from a large one when replaying.
+	 */
+	private static final int MAX_BATCH = 1 << 16;
+
+	private static final int INITIAL_BUFFER = 64 * 1024;
+
+	private static final String SEGMENT_PREFIX = "currency-";
+
+	private static final String SEGMENT_SUFFIX = ".log";
+
+	private static final String SNAPSHOT_NAME = "currency.snapshot";
+
+	private final Path directory;
+
+	private final long commitMillis;
+
+	private final long snapshotMillis;
+
+	private final Map<Long, Account> accounts;
+
+	/**
+	 * Guards the pending buffer and sequence numbers. Held only for as long
+	 * as it takes to copy a change into the buffer.
+	 */
+	private final ReentrantLock logLock;
+
+	/**
+	 * Guards writing to the log file, so only one commit happens at a time.
+	 */
+	private final ReentrantLock commitLock;
+
+	/**
+	 * Makes sure only one snapshot is written at a time.
+	 */
+	private final ReentrantLock snapshotLock;
+
+	private final CRC32 checksum;
+
+	/**
+	 * Changes that have been made but not yet written to the log.
+	 */
+	private ByteBuffer pending;
+
+	/**
+	 * An empty buffer to swap in for {@link #pending} while it is written.
+	 */
+	private ByteBuffer spare;
+
+	/**
+	 * The sequence number to give the next change.
+	 */
+	private long nextSequence;
+
+	/**
+	 * Every change up to and including this one has been synced to disk.
+	 */
+	private volatile long durableSequence;
+
+	/**
+	 * The number of the log segment currently being written to.
+	 */
+	private long segment;
+
+	private FileChannel channel;
+
+	/**
+	 * The first error writing the log or a snapshot, which is reported by
+	 * every commit from then on. No changes are accepted once it is set.
+	 */
+	private volatile IOException failure;
+
+	/**
+	 * Counted down to stop the background thread.
+	 */
+	private final CountDownLatch closing;
+
+	private final Thread committer;
+
+	/**
+	 * Opens the ledger in the given directory, creating it if it does not
+	 * exist yet. Any balances already stored there are loaded by reading the
+	 * latest snapshot and replaying the log after it. A change that was only
+	 * partly written when the game last stopped is ignored.
+	 *
+	 * @param directory the directory to keep the log and snapshots in
+	 * @param commitMillis how often to write and sync the log, in milliseconds
+	 * @param snapshotMillis how often to write a snapshot, in milliseconds
+	 * @throws IOException if the ledger could not be read or created
+	 * @throws IllegalArgumentException if the commit interval is not
+	 *             positive
+	 */
+	public CurrencyLedger(Path directory, long commitMillis,
+		long snapshotMillis) throws IOException {
+		if (commitMillis <= 0) {
+			throw new IllegalArgumentException(
+				"The commit interval must be positive");
+		}
+		this.directory = directory;
+		this.commitMillis = commitMillis;
+		this.snapshotMillis = snapshotMillis;
+		this.accounts = new ConcurrentHashMap<>();
+		this.logLock = new ReentrantLock();
+		this.commitLock = new ReentrantLock();
+		this.snapshotLock = new ReentrantLock();
+		this.checksum = new CRC32();
+		this.pending = ByteBuffer.allocate(CurrencyLedger.INITIAL_BUFFER);
+		this.spare = ByteBuffer.allocate(CurrencyLedger.INITIAL_BUFFER);
+		this.closing = new CountDownLatch(1);
+
+		Files.createDirectories(directory);
+		long lastSequence = this.readSnapshot();
+		List<Long> segments = this.listSegments();
+		for (long old : segments) {
+			lastSequence = Math.max(lastSequence, this.replay(old));
+		}
+		this.nextSequence = lastSequence + 1;
+		this.durableSequence = lastSequence;
+		this.segment =
+			segments.isEmpty() ? 1 : segments.get(segments.size() - 1) + 1;
+		this.channel = this.openSegment(this.segment);
+		this.writeSnapshot();
+
+		this.committer = new Thread(this::runCommitter, "CurrencyLedger");
+		this.committer.setDaemon(true);
+		this.committer.start();
+	}
+
+	/**
+	 * Adds a change to the pending buffer. The caller must hold the locks of
+	 * every account the change affects, and apply the change before
+	 * releasing them, so that changes to an account are logged in the same
+	 * order they are made.
+	 *
+	 * @param type the type of change
+	 * @param first the account being set, or transferred from
+	 * @param second the account being transferred to, or zero
+	 * @param amount the new balance, or amount transferred
+	 * @return the sequence number of the change
+	 * @throws UncheckedIOException if the ledger has failed, in which case
+	 *             nothing is logged and the change must not be made
+	 */
+	private long append(byte type, long first, long second, int amount) {
+		this.logLock.lock();
+		try {
+			this.checkNotFailed();
+			this.ensureRoom(CurrencyLedger.RECORD_SIZE);
+			final long sequence = this.nextSequence;
+			++this.nextSequence;
+			final int start = this.pending.position();
+			this.pending.put(type);
+			this.pending.putLong(sequence);
+			this.pending.putLong(first);
+			this.pending.putLong(second);
+			this.pending.putInt(amount);
+			this.checksum.reset();
+			this.checksum.update(this.pending.array(), start,
+				CurrencyLedger.RECORD_BODY);
+			this.pending.putInt((int) this.checksum.getValue());
+			return sequence;
+		}
+		finally {
+			this.logLock.unlock();
+		}
+	}
+
+	/**
+	 * Adds a change to several accounts to the pending buffer as one record,
+	 * so that replaying it changes all of them or none. The caller must hold
+	 * the locks of every account, as for
+	 * {@link #append(byte, long, long, int)}.
+	 *
+	 * @param changed the accounts being set
+	 * @param balances the new balance of each account
+	 * @return the sequence number of the change
+	 * @throws UncheckedIOException if the ledger has failed, in which case
+	 *             nothing is logged and the change must not be made
+	 */
+	private long appendBatch(List<Account> changed, int[] balances) {
+		final int count = changed.size();
+		final int size = CurrencyLedger.BATCH_HEADER
+			+ count * CurrencyLedger.BATCH_ENTRY + 4;
+		this.logLock.lock();
+		try {
+			this.checkNotFailed();
+			this.ensureRoom(size);
+			final long sequence = this.nextSequence;
+			++this.nextSequence;
+			final int start = this.pending.position();
+			this.pending.put(CurrencyLedger.BATCH);
+			this.pending.putLong(sequence);
+			this.pending.putInt(count);
+			for (int i = 0; i < count; ++i) {
+				this.pending.putLong(changed.get(i).id);
+				this.pending.putInt(balances[i]);
+			}
+			this.checksum.reset();
+			this.checksum.update(this.pending.array(), start, size - 4);
+			this.pending.putInt((int) this.checksum.getValue());
+			return sequence;
+		}
+		finally {
+			this.logLock.unlock();
+		}
+	}
+
+	/**
+	 * Throws the error the ledger failed with, if it has failed.
+	 *
+	 * @throws UncheckedIOException if the ledger has failed
+	 */
+	private void checkNotFailed() {
+		final IOException failed = this.failure;
+		if (failed != null) {
+			throw new UncheckedIOException(
+				"The currency ledger can no longer be written", failed);
+		}
+	}
+
+	/**
+	 * Writes the last changes, stops the background thread, and closes the
+	 * log. The accounts must not be changed after this.
+	 *
+	 * @throws IOException if the last changes could not be written
+	 */
+	@Override
+	public void close() throws IOException {
+		this.closing.countDown();
+		try {
+			this.committer.join();
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		try {
+			this.commit();
+		}
+		finally {
+			this.channel.close();
+		}
+	}
+
+	/**
+	 * Writes and syncs every change made so far, and waits until it is done.
+	 * If another thread is already committing, the changes may be covered by
+	 * that commit, in which case this returns as soon as it finishes.
+	 *
+	 * @throws IOException if the log could not be written, now or in an
+	 *             earlier commit
+	 */
+	public void commit() throws IOException {
+		final long target;
+		this.logLock.lock();
+		try {
+			target = this.nextSequence - 1;
+		}
+		finally {
+			this.logLock.unlock();
+		}
+		this.commitLock.lock();
+		try {
+			if (this.failure != null) {
+				throw this.failure;
+			}
+			if (this.durableSequence >= target) {
+				return;
+			}
+			this.commitLocked();
+		}
+		finally {
+			this.commitLock.unlock();
+		}
+	}
+
+	/**
+	 * Writes and syncs the pending buffer. The caller must hold the commit
+	 * lock. Changes can keep being made into the other buffer while this
+	 * writes.
+	 *
+	 * @throws IOException if the log could not be written
+	 */
+	private void commitLocked() throws IOException {
+		final ByteBuffer toWrite;
+		final long sequence;
+		this.logLock.lock();
+		try {
+			toWrite = this.pending;
+			sequence = this.nextSequence - 1;
+			this.pending = this.spare;
+		}
+		finally {
+			this.logLock.unlock();
+		}
+		try {
+			toWrite.flip();
+			while (toWrite.hasRemaining()) {
+				this.channel.write(toWrite);
+			}
+			this.channel.force(false);
+		}
+		catch (IOException e) {
+			this.failure = e;
+			throw e;
+		}
+		finally {
+			toWrite.clear();
+			this.spare = toWrite;
+		}
+		this.durableSequence = sequence;
+	}
+
+	/**
+	 * Grows the pending buffer if it can't fit the given number of bytes. The
+	 * caller must hold the log lock.
+	 *
+	 * @param bytes how many bytes are about to be added
+	 */
+	private void ensureRoom(int bytes) {
+		if (this.pending.remaining() >= bytes) {
+			return;
+		}
+		int capacity = this.pending.capacity() * 2;
+		while (capacity - this.pending.position() < bytes) {
+			capacity *= 2;
+		}
+		ByteBuffer larger = ByteBuffer.allocate(capacity);
+		this.pending.flip();
+		larger.put(this.pending);
+		this.pending = larger;
+	}
+
+	/**
+	 * Returns the account with the given id, creating an empty one if there
+	 * is no such account yet.
+	 *
+	 * @param id the id of the account
+	 * @return the account
+	 */
+	public Account getAccount(long id) {
+		return this.accounts.computeIfAbsent(id,
+			key -> new Account(this, key));
+	}
+
+	/**
+	 * Returns the sequence number of the newest change that is known to be on
+	 * disk.
+	 *
+	 * @return the newest durable change
+	 */
+	public long getDurableSequence() {
+		return this.durableSequence;
+	}
+
+	/**
+	 * Returns the log segments in the directory, oldest first.
+	 *
+	 * @return the segment numbers
+	 * @throws IOException if the directory could not be read
+	 */
+	private List<Long> listSegments() throws IOException {
+		List<Long> segments = new ArrayList<>();
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(
+			this.directory, CurrencyLedger.SEGMENT_PREFIX + "*"
+				+ CurrencyLedger.SEGMENT_SUFFIX)) {
+			for (Path path : stream) {
+				final String name = path.getFileName().toString();
+				try {
+					segments.add(Long.valueOf(name.substring(
+						CurrencyLedger.SEGMENT_PREFIX.length(),
+						name.length()
+							- CurrencyLedger.SEGMENT_SUFFIX.length())));
+				}
+				catch (NumberFormatException e) {
+					// not one of ours
+				}
+			}
+		}
+		Collections.sort(segments);
+		return segments;
+	}
+
+	/**
+	 * Opens a log segment for appending.
+	 *
+	 * @param number the segment number
+	 * @return the channel to write to
+	 * @throws IOException if the file could not be opened
+	 */
+	private FileChannel openSegment(long number) throws IOException {
+		return FileChannel.open(this.segmentPath(number),
+			StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+			StandardOpenOption.APPEND);
+	}
+
+	/**
+	 * Loads the balances from the snapshot, if there is one.
+	 *
+	 * @return the highest sequence number of any account in the snapshot
+	 * @throws IOException if the snapshot could not be read or is damaged
+	 */
+	private long readSnapshot() throws IOException {
+		final Path path = this.directory.resolve(CurrencyLedger.SNAPSHOT_NAME);
+		if (!Files.exists(path)) {
+			return 0;
+		}
+		final CRC32 crc = new CRC32();
+		try (InputStream file = Files.newInputStream(path);
+			DataInputStream in = new DataInputStream(
+				new CheckedInputStream(new BufferedInputStream(file), crc))) {
+			long lastSequence = 0;
+			final int count = in.readInt();
+			for (int i = 0; i < count; ++i) {
+				Account account = this.getAccount(in.readLong());
+				account.balance = in.readInt();
+				account.lastSequence = in.readLong();
+				lastSequence = Math.max(lastSequence, account.lastSequence);
+			}
+			final int expected = (int) crc.getValue();
+			if (in.readInt() != expected) {
+				throw new IOException("Damaged currency snapshot " + path);
+			}
+			return lastSequence;
+		}
+	}
+
+	/**
+	 * Applies the changes in a log segment that are newer than the balances
+	 * already loaded. Reading stops at the first change that was not
+	 * completely written.
+	 *
+	 * @param number the segment number
+	 * @return the highest sequence number in the segment
+	 * @throws IOException if the segment could not be read
+	 */
+	private long replay(long number) throws IOException {
+		long lastSequence = 0;
+		byte[] record = new byte[CurrencyLedger.RECORD_SIZE];
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+			Files.newInputStream(this.segmentPath(number))))) {
+			while (true) {
+				final int size;
+				try {
+					final int type = in.read();
+					if (type < 0) {
+						break;
+					}
+					record[0] = (byte) type;
+					if (type != CurrencyLedger.BATCH) {
+						size = CurrencyLedger.RECORD_SIZE;
+						in.readFully(record, 1, size - 1);
+					}
+					else {
+						in.readFully(record, 1,
+							CurrencyLedger.BATCH_HEADER - 1);
+						// the count follows the type and sequence number
+						final int count = ByteBuffer.wrap(record).getInt(1 + 8);
+						if (count <= 0 || count > CurrencyLedger.MAX_BATCH) {
+							break;
+						}
+						size = CurrencyLedger.BATCH_HEADER
+							+ count * CurrencyLedger.BATCH_ENTRY + 4;
+						if (record.length < size) {
+							record = Arrays.copyOf(record, size);
+						}
+						in.readFully(record, CurrencyLedger.BATCH_HEADER,
+							size - CurrencyLedger.BATCH_HEADER);
+					}
+				}
+				catch (EOFException e) {
+					break;
+				}
+				this.checksum.reset();
+				this.checksum.update(record, 0, size - 4);
+				ByteBuffer buffer = ByteBuffer.wrap(record, 0, size);
+				if (buffer.getInt(size - 4) != (int) this.checksum.getValue()) {
+					break;
+				}
+				final byte type = buffer.get();
+				final long sequence = buffer.getLong();
+				lastSequence = Math.max(lastSequence, sequence);
+				if (type == CurrencyLedger.BATCH) {
+					final int count = buffer.getInt();
+					for (int i = 0; i < count; ++i) {
+						Account account = this.getAccount(buffer.getLong());
+						final int balance = buffer.getInt();
+						if (sequence > account.lastSequence) {
+							account.balance = balance;
+							account.lastSequence = sequence;
+						}
+					}
+					continue;
+				}
+				final long first = buffer.getLong();
+				final long second = buffer.getLong();
+				final int amount = buffer.getInt();
+				Account from = this.getAccount(first);
+				if (type == CurrencyLedger.SET) {
+					if (sequence > from.lastSequence) {
+						from.balance = amount;
+						from.lastSequence = sequence;
+					}
+					continue;
+				}
+				Account to = this.getAccount(second);
+				if (sequence > from.lastSequence) {
+					from.balance -= amount;
+					from.lastSequence = sequence;
+				}
+				if (sequence > to.lastSequence) {
+					to.balance += amount;
+					to.lastSequence = sequence;
+				}
+			}
+		}
+		return lastSequence;
+	}
+
+	/**
+	 * Commits on an interval and writes snapshots, until the ledger is
+	 * closed.
+	 */
+	private void runCommitter() {
+		long lastSnapshot = System.currentTimeMillis();
+		while (true) {
+			try {
+				if (this.closing.await(this.commitMillis,
+					TimeUnit.MILLISECONDS)) {
+					return;
+				}
+			}
+			catch (InterruptedException e) {
+				return;
+			}
+			try {
+				this.commit();
+				final long now = System.currentTimeMillis();
+				if (now - lastSnapshot >= this.snapshotMillis) {
+					this.snapshot();
+					lastSnapshot = now;
+				}
+			}
+			catch (IOException e) {
+				// kept in failure and reported by the next commit
+			}
+		}
+	}
+
+	/**
+	 * Keeps the first error the ledger failed with, so that it is reported
+	 * by every commit and no more changes are accepted.
+	 *
+	 * @param error the error
+	 */
+	private void recordFailure(IOException error) {
+		this.commitLock.lock();
+		try {
+			if (this.failure == null) {
+				this.failure = error;
+			}
+		}
+		finally {
+			this.commitLock.unlock();
+		}
+	}
+
+	/**
+	 * Returns the path of a log segment.
+	 *
+	 * @param number the segment number
+	 * @return the path of the segment file
+	 */
+	private Path segmentPath(long number) {
+		return this.directory.resolve(CurrencyLedger.SEGMENT_PREFIX + number
+			+ CurrencyLedger.SEGMENT_SUFFIX);
+	}
+
+	/**
+	 * Logs and makes a new balance. The caller must hold the account lock.
+	 *
+	 * @param account the account to change
+	 * @param balance the new balance
+	 * @throws UncheckedIOException if the ledger has failed, in which case
+	 *             the balance is not changed
+	 */
+	private void set(Account account, int balance) {
+		final long sequence =
+			this.append(CurrencyLedger.SET, account.id, 0, balance);
+		account.balance = balance;
+		account.lastSequence = sequence;
+	}
+
+	/**
+	 * Logs and makes new balances for several accounts of this ledger as a
+	 * single change, so that after a crash either all of them or none of them
+	 * are changed. The caller must hold every account lock.
+	 *
+	 * @param changed the accounts to change, each only once
+	 * @param balances the new balance of each account, by index
+	 * @throws UncheckedIOException if the ledger has failed, in which case no
+	 *             balance is changed
+	 * @throws IllegalArgumentException if there are more accounts than fit in
+	 *             one change
+	 */
+	void setBalances(List<Account> changed, int[] balances) {
+		if (changed.size() > CurrencyLedger.MAX_BATCH) {
+			throw new IllegalArgumentException("Too many accounts");
+		}
+		if (changed.isEmpty()) {
+			return;
+		}
+		final long sequence = this.appendBatch(changed, balances);
+		for (int i = 0; i < changed.size(); ++i) {
+			Account account = changed.get(i);
+			account.balance = balances[i];
+			account.lastSequence = sequence;
+		}
+	}
+
+	/**
+	 * Writes a snapshot of every balance, and deletes the log segments it
+	 * replaces. Changes can keep being made while the snapshot is written.
+	 * This is done automatically, but can be called to shorten the log before
+	 * shutting down. If the snapshot can't be written, the ledger fails and
+	 * refuses any more changes.
+	 *
+	 * @throws IOException if the snapshot could not be written
+	 */
+	public void snapshot() throws IOException {
+		this.snapshotLock.lock();
+		try {
+			/*
+			 * Everything logged so far goes in the old segment, and everything
+			 * after in the new one. Changes are made under the account lock
+			 * before it is released, so reading each account after this sees
+			 * every change in the old segment.
+			 */
+			this.commitLock.lock();
+			try {
+				if (this.failure != null) {
+					throw this.failure;
+				}
+				this.commitLocked();
+				this.channel.close();
+				++this.segment;
+				this.channel = this.openSegment(this.segment);
+			}
+			finally {
+				this.commitLock.unlock();
+			}
+			try {
+				this.writeSnapshot();
+			}
+			catch (IOException e) {
+				this.recordFailure(e);
+				throw e;
+			}
+		}
+		finally {
+			this.snapshotLock.unlock();
+		}
+	}
+
+	/**
+	 * Syncs the ledger directory, so that files renamed or created in it
+	 * survive a crash. Some platforms don't allow opening a directory, and
+	 * there this does nothing.
+	 *
+	 * @throws IOException if the directory could not be synced
+	 */
+	private void syncDirectory() throws IOException {
+		final FileChannel opened;
+		try {
+			opened = FileChannel.open(this.directory, StandardOpenOption.READ);
+		}
+		catch (AccessDeniedException e) {
+			return;
+		}
+		try (FileChannel folder = opened) {
+			folder.force(true);
+		}
+	}
+
+	/**
+	 * Logs and makes a transfer between two accounts of this ledger, if the
+	 * source has enough and the destination would not overflow. The caller
+	 * must hold both account locks.
+	 *
+	 * @param from the account to remove currency from
+	 * @param to the account to add currency to
+	 * @param amount how much to move
+	 * @return true if the currency was moved, false if it could not be or the
+	 *         ledger has failed
+	 */
+	boolean transfer(Account from, Account to, int amount) {
+		if (from.balance < amount
+			|| to.balance > Integer.MAX_VALUE - amount
+			|| this.failure != null) {
+			return false;
+		}
+		final long sequence =
+			this.append(CurrencyLedger.TRANSFER, from.id, to.id, amount);
+		from.balance -= amount;
+		from.lastSequence = sequence;
+		to.balance += amount;
+		to.lastSequence = sequence;
+		return true;
+	}
+
+	/**
+	 * Writes every balance to a new snapshot, replaces the old snapshot with
+	 * it, and then deletes every segment before the current one.
+	 *
+	 * @throws IOException if the snapshot could not be written
+	 */
+	private void writeSnapshot() throws IOException {
+		final Path path = this.directory.resolve(CurrencyLedger.SNAPSHOT_NAME);
+		final Path temporary =
+			this.directory.resolve(CurrencyLedger.SNAPSHOT_NAME + ".tmp");
+		final CRC32 crc = new CRC32();
+		List<Account> all = new ArrayList<>(this.accounts.values());
+		try (FileChannel file = FileChannel.open(temporary,
+			StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+			StandardOpenOption.TRUNCATE_EXISTING)) {
+			DataOutputStream out = new DataOutputStream(
+				new BufferedOutputStream(new CheckedOutputStream(
+					Channels.newOutputStream(file), crc)));
+			out.writeInt(all.size());
+			for (Account account : all) {
+				account.lock.lock();
+				try {
+					out.writeLong(account.id);
+					out.writeInt(account.balance);
+					out.writeLong(account.lastSequence);
+				}
+				finally {
+					account.lock.unlock();
+				}
+			}
+			out.flush();
+			ByteBuffer trailer = ByteBuffer.allocate(4);
+			trailer.putInt(0, (int) crc.getValue());
+			file.write(trailer);
+			file.force(true);
+		}
+		Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING,
+			StandardCopyOption.ATOMIC_MOVE);
+		// the rename must be on disk before the segments it replaces are gone
+		this.syncDirectory();
+		for (long old : this.listSegments()) {
+			if (old < this.segment) {
+				Files.deleteIfExists(this.segmentPath(old));
+			}
+		}
+	}
+}
@@ -0,0 +1,144 @@
+package com.ikalagaming.entity;
+
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Moves currency between {@link ICurrencyHolder holders} as a single step.
+ * The currency locks of both holders are held while the currency is moved, so
+ * no other thread ever sees the money missing from one holder and not yet in
+ * the other, and money is never created or lost.
+ * <p>
+ * Deadlocks are avoided by always taking the two locks in the same order,
+ * sorted by a sequence number each entity is given when it is created, or by
+ * account id for holders backed by a {@link CurrencyLedger}. Entity ids are
+ * not used since they change when a pooled entity is reused. Transfers
+ * between different pairs of holders do not block each other, so a busy
+ * marketplace with many transfers at once is only slowed down by transfers
+ * that share a holder.
+ * </p>
+ *
+ * @author Ches Burks
+ *
+ */
+public final class CurrencyTransfer {
+	/**
+	 * Taken first when two holders can't be ordered, so that two transfers
+	 * between them can't each hold one lock and wait on the other.
+	 */
+	static final Lock TIE_LOCK = new ReentrantLock();
+
+	/**
+	 * Returns the value used to decide which lock is taken first.
+	 *
+	 * @param holder the holder
+	 * @return the id of the ledger account or entity, or some other number
+	 *         that stays the same for the holder
+	 */
+	static long orderOf(ICurrencyHolder holder) {
+		final CurrencyLedger.Account account = holder.getLedgerAccount();
+		if (account != null) {
+			return account.getId();
+		}
+		if (holder instanceof Entity) {
+			return ((Entity) holder).getSequence();
+		}
+		return System.identityHashCode(holder);
+	}
+
+	/**
+	 * Moves currency from one holder to another. Nothing is moved if the
+	 * source does not have enough, or if the destination would end up with
+	 * more than {@link Integer#MAX_VALUE}.
+	 *
+	 * @param from the holder to remove currency from
+	 * @param to the holder to add currency to
+	 * @param amount how much to move, which may not be negative
+	 * @return true if the currency was moved, false if it could not be
+	 */
+	public static boolean transfer(ICurrencyHolder from, ICurrencyHolder to,
+		int amount) {
+		if (amount < 0) {
+			return false;
+		}
+		if (from == to) {
+			return from.getCurrency() >= amount;
+		}
+		final long fromOrder = CurrencyTransfer.orderOf(from);
+		final long toOrder = CurrencyTransfer.orderOf(to);
+		final Lock first;
+		final Lock second;
+		if (fromOrder < toOrder) {
+			first = from.getCurrencyLock();
+			second = to.getCurrencyLock();
+		}
+		else if (fromOrder > toOrder) {
+			first = to.getCurrencyLock();
+			second = from.getCurrencyLock();
+		}
+		else {
+			CurrencyTransfer.TIE_LOCK.lock();
+			try {
+				return CurrencyTransfer.transferLocked(from, to, amount,
+					from.getCurrencyLock(), to.getCurrencyLock());
+			}
+			finally {
+				CurrencyTransfer.TIE_LOCK.unlock();
+			}
+		}
+		return CurrencyTransfer.transferLocked(from, to, amount, first,
+			second);
+	}
+
+	/**
+	 * Takes both locks in order and moves the currency.
+	 *
+	 * @param from the holder to remove currency from
+	 * @param to the holder to add currency to
+	 * @param amount how much to move
+	 * @param first the lock to take first
+	 * @param second the lock to take second
+	 * @return true if the currency was moved, false if it could not be
+	 */
+	private static boolean transferLocked(ICurrencyHolder from,
+		ICurrencyHolder to, int amount, Lock first, Lock second) {
+		first.lock();
+		try {
+			second.lock();
+			try {
+				final CurrencyLedger.Account fromAccount =
+					from.getLedgerAccount();
+				final CurrencyLedger.Account toAccount = to.getLedgerAccount();
+				if (fromAccount != null && toAccount != null
+					&& fromAccount.getLedger() == toAccount.getLedger()) {
+					return fromAccount.getLedger().transfer(fromAccount,
+						toAccount, amount);
+				}
+				final int available = from.getCurrency();
+				final int existing = to.getCurrency();
+				if (available < amount
+					|| existing > Integer.MAX_VALUE - amount) {
+					return false;
+				}
+				from.setCurrency(available - amount);
+				try {
+					to.setCurrency(existing + amount);
+				}
+				catch (RuntimeException e) {
+					// such as a ledger that refuses changes after failing
+					from.setCurrency(available);
+					throw e;
+				}
+				return true;
+			}
+			finally {
+				second.unlock();
+			}
+		}
+		finally {
+			first.unlock();
+		}
+	}
+
+	private CurrencyTransfer() {}
+}
@@ -0,0 +1,239 @@
+package com.ikalagaming.entity;
+
+import com.ikalagaming.entity.component.Health;
+import com.ikalagaming.entity.powers.Element;
+
+import java.util.Arrays;
+
+/**
+ * A group of hits that are applied to entity health all at once, such as
+ * every target of an area attack. All of the hits on the same entity are
+ * added together and applied as a single change, and the result reports which
+ * entities died or crossed one of the health thresholds, so callers do not
+ * have to check every target afterwards.
+ * <p>
+ * A batch can be {@link #clear() cleared} and reused. It is not thread safe.
+ * </p>
+ *
+ * @author Ches Burks
+ *
+ */
+public class DamageBatch {
+	/**
+	 * Changes the amount of a hit before it is applied, for example to take
+	 * resistances to an element into account.
+	 */
+	@FunctionalInterface
+	public interface Modifier {
+		/**
+		 * Returns the amount of damage that should actually be done.
+		 *
+		 * @param target the entity being hit
+		 * @param amount the damage of the hit, negative for healing
+		 * @param element the element of the hit, may be null
+		 * @return the damage to apply
+		 */
+		int modify(Entity target, int amount, Element element);
+	}
+
+	private static final int INITIAL_CAPACITY = 16;
+
+	private static final float[] NO_THRESHOLDS = new float[0];
+
+	private Entity[] targets;
+
+	private int[] amounts;
+
+	private Element[] elements;
+
+	private int size;
+
+	private float[] thresholds;
+
+	/**
+	 * Creates an empty batch with no thresholds.
+	 */
+	public DamageBatch() {
+		this.targets = new Entity[DamageBatch.INITIAL_CAPACITY];
+		this.amounts = new int[DamageBatch.INITIAL_CAPACITY];
+		this.elements = new Element[DamageBatch.INITIAL_CAPACITY];
+		this.size = 0;
+		this.thresholds = DamageBatch.NO_THRESHOLDS;
+	}
+
+	/**
+	 * Adds a hit to the batch.
+	 *
+	 * @param target the entity to hit
+	 * @param amount how much damage to do, negative to heal
+	 * @param element the element of the hit, may be null
+	 */
+	public void add(Entity target, int amount, Element element) {
+		if (this.size >= this.targets.length) {
+			this.grow(this.size + 1);
+		}
+		this.targets[this.size] = target;
+		this.amounts[this.size] = amount;
+		this.elements[this.size] = element;
+		++this.size;
+	}
+
+	/**
+	 * Adds many hits to the batch. The arrays are copied, so they can be
+	 * reused by the caller.
+	 *
+	 * @param hitTargets the entities to hit
+	 * @param hitAmounts how much damage to do to each, negative to heal
+	 * @param hitElements the element of each hit, or null if none have one
+	 * @param count how many entries of the arrays to add
+	 */
+	public void add(Entity[] hitTargets, int[] hitAmounts,
+		Element[] hitElements, int count) {
+		this.grow(this.size + count);
+		System.arraycopy(hitTargets, 0, this.targets, this.size, count);
+		System.arraycopy(hitAmounts, 0, this.amounts, this.size, count);
+		if (hitElements != null) {
+			System.arraycopy(hitElements, 0, this.elements, this.size, count);
+		}
+		this.size += count;
+	}
+
+	/**
+	 * Adds a health percentage to report crossings of. A crossing is reported
+	 * when health goes from above the threshold to at or below it, or from
+	 * below it to at or above it.
+	 *
+	 * @param percentage the threshold, between 0 and 1 like
+	 *            {@link Health#getHealthPercentage()}
+	 */
+	public void addThreshold(float percentage) {
+		this.thresholds =
+			Arrays.copyOf(this.thresholds, this.thresholds.length + 1);
+		this.thresholds[this.thresholds.length - 1] = percentage;
+	}
+
+	/**
+	 * Applies every hit without changing the amounts.
+	 *
+	 * @return what happened to the targets
+	 * @see #apply(Modifier)
+	 */
+	public DamageResult apply() {
+		return this.apply(null);
+	}
+
+	/**
+	 * Applies every hit and clears the batch. Hits on entities that have no
+	 * {@link Health} are ignored.
+	 *
+	 * @param modifier changes the amount of each hit, or null to use the
+	 *            amounts as they are
+	 * @return what happened to the targets
+	 */
+	public DamageResult apply(Modifier modifier) {
+		DamageResult result = new DamageResult(this.thresholds);
+
+		/*
+		 * Sort by entity index, then by position, so hits on the same entity
+		 * end up next to each other.
+		 */
+		long[] keys = new long[this.size];
+		for (int i = 0; i < this.size; ++i) {
+			final long id = this.targets[i].getId();
+			final long index = EntityIdAllocator.getIndex(id) & 0xFFFFFFFFL;
+			keys[i] = (index << 32) | i;
+		}
+		Arrays.sort(keys);
+
+		int next = 0;
+		while (next < keys.length) {
+			final Entity target = this.targets[(int) keys[next]];
+			long total = 0;
+			while (next < keys.length
+				&& this.targets[(int) keys[next]] == target) {
+				final int hit = (int) keys[next];
+				int amount = this.amounts[hit];
+				if (modifier != null) {
+					amount =
+						modifier.modify(target, amount, this.elements[hit]);
+				}
+				total += amount;
+				++next;
+			}
+			Health health = target.getComponent(Health.TYPE);
+			if (health == null || total == 0) {
+				continue;
+			}
+			this.applyTo(target, health, total, result);
+		}
+
+		this.clear();
+		return result;
+	}
+
+	/**
+	 * Applies the combined damage of all hits to one entity.
+	 *
+	 * @param target the entity that was hit
+	 * @param health the health of the entity
+	 * @param total the combined damage
+	 * @param result where to record what happened
+	 */
+	private void applyTo(Entity target, Health health, long total,
+		DamageResult result) {
+		final boolean wasDead = health.isDead();
+		final float before = health.getHealthPercentage();
+		health.damage((int) Math.max(-Integer.MAX_VALUE,
+			Math.min(Integer.MAX_VALUE, total)));
+		final float after = health.getHealthPercentage();
+		result.addHit();
+		if (!wasDead && health.isDead()) {
+			result.addDeath(target);
+		}
+		for (int i = 0; i < this.thresholds.length; ++i) {
+			final float threshold = this.thresholds[i];
+			if (before > threshold && after <= threshold) {
+				result.addCrossing(target, i, true);
+			}
+			else if (before < threshold && after >= threshold) {
+				result.addCrossing(target, i, false);
+			}
+		}
+	}
+
+	/**
+	 * Removes all hits from the batch. Thresholds are kept.
+	 */
+	public void clear() {
+		Arrays.fill(this.targets, 0, this.size, null);
+		Arrays.fill(this.elements, 0, this.size, null);
+		this.size = 0;
+	}
+
+	/**
+	 * Returns how many hits are in the batch.
+	 *
+	 * @return the number of hits
+	 */
+	public int getSize() {
+		return this.size;
+	}
+
+	/**
+	 * Makes sure the arrays can hold at least the given number of hits.
+	 *
+	 * @param capacity the number of hits to fit
+	 */
+	private void grow(int capacity) {
+		if (capacity <= this.targets.length) {
+			return;
+		}
+		int newCapacity = this.targets.length * 2;
+		while (newCapacity < capacity) {
+			newCapacity *= 2;
+		}
+		this.targets = Arrays.copyOf(this.targets, newCapacity);
+		this.amounts = Arrays.copyOf(this.amounts, newCapacity);
+		this.elements = Arrays.copyOf(this.elements, newCapacity);
+	}
+}
@@ -0,0 +1,162 @@
+package com.ikalagaming.entity;
+
+import java.util.Arrays;
+
+/**
+ * What happened when a {@link DamageBatch} was applied. Rather than checking
+ * every target afterwards, callers can look at just the entities that died or
+ * crossed one of the health thresholds of the batch.
+ *
+ * @author Ches Burks
+ *
+ */
+public class DamageResult {
+	private static final int INITIAL_CAPACITY = 8;
+
+	private final float[] thresholds;
+
+	private int hitCount;
+
+	private Entity[] deaths;
+
+	private int deathCount;
+
+	private Entity[] crossingEntities;
+
+	/**
+	 * The index of the threshold for each crossing, or the bitwise complement
+	 * of the index if health went up past it.
+	 */
+	private int[] crossingThresholds;
+
+	private int crossingCount;
+
+	/**
+	 * Creates an empty result.
+	 *
+	 * @param thresholds the thresholds that were checked
+	 */
+	DamageResult(float[] thresholds) {
+		this.thresholds = thresholds;
+		this.hitCount = 0;
+		this.deaths = new Entity[DamageResult.INITIAL_CAPACITY];
+		this.deathCount = 0;
+		this.crossingEntities = new Entity[DamageResult.INITIAL_CAPACITY];
+		this.crossingThresholds = new int[DamageResult.INITIAL_CAPACITY];
+		this.crossingCount = 0;
+	}
+
+	/**
+	 * Records that health crossed a threshold.
+	 *
+	 * @param entity the entity whose health changed
+	 * @param threshold the index of the threshold
+	 * @param downward true if health went down past the threshold
+	 */
+	void addCrossing(Entity entity, int threshold, boolean downward) {
+		if (this.crossingCount >= this.crossingEntities.length) {
+			final int capacity = this.crossingEntities.length * 2;
+			this.crossingEntities =
+				Arrays.copyOf(this.crossingEntities, capacity);
+			this.crossingThresholds =
+				Arrays.copyOf(this.crossingThresholds, capacity);
+		}
+		this.crossingEntities[this.crossingCount] = entity;
+		this.crossingThresholds[this.crossingCount] =
+			downward ? threshold : ~threshold;
+		++this.crossingCount;
+	}
+
+	/**
+	 * Records that an entity died.
+	 *
+	 * @param entity the entity that died
+	 */
+	void addDeath(Entity entity) {
+		if (this.deathCount >= this.deaths.length) {
+			this.deaths = Arrays.copyOf(this.deaths, this.deaths.length * 2);
+		}
+		this.deaths[this.deathCount] = entity;
+		++this.deathCount;
+	}
+
+	/**
+	 * Records that another entity had its health changed.
+	 */
+	void addHit() {
+		++this.hitCount;
+	}
+
+	/**
+	 * Returns how many times a health threshold was crossed.
+	 *
+	 * @return the number of crossings
+	 */
+	public int getCrossingCount() {
+		return this.crossingCount;
+	}
+
+	/**
+	 * Returns the entity whose health crossed a threshold.
+	 *
+	 * @param index which crossing, less than {@link #getCrossingCount()}
+	 * @return the entity
+	 */
+	public Entity getCrossingEntity(int index) {
+		return this.crossingEntities[index];
+	}
+
+	/**
+	 * Returns the health threshold that was crossed, as a percentage between
+	 * 0 and 1.
+	 *
+	 * @param index which crossing, less than {@link #getCrossingCount()}
+	 * @return the threshold
+	 * @see DamageBatch#addThreshold(float)
+	 */
+	public float getCrossingThreshold(int index) {
+		final int threshold = this.crossingThresholds[index];
+		return this.thresholds[threshold >= 0 ? threshold : ~threshold];
+	}
+
+	/**
+	 * Returns an entity that died.
+	 *
+	 * @param index which death, less than {@link #getDeathCount()}
+	 * @return the entity that died
+	 */
+	public Entity getDeath(int index) {
+		return this.deaths[index];
+	}
+
+	/**
+	 * Returns how many entities died. Entities that were already dead are not
+	 * counted.
+	 *
+	 * @return the number of entities that died
+	 */
+	public int getDeathCount() {
+		return this.deathCount;
+	}
+
+	/**
+	 * Returns how many different entities with health were hit, after
+	 * combining all of the hits on the same entity.
+	 *
+	 * @return the number of entities hit
+	 */
+	public int getHitCount() {
+		return this.hitCount;
+	}
+
+	/**
+	 * Returns true if health went down past the threshold, or false if it
+	 * went up past it.
+	 *
+	 * @param index which crossing, less than {@link #getCrossingCount()}
+	 * @return true if the entity lost health
+	 */
+	public boolean isCrossingDownward(int index) {
+		return this.crossingThresholds[index] >= 0;
+	}
+}
@@ -1,16 +1,24 @@
 package com.ikalagaming.entity;
 
 import com.ikalagaming.entity.component.Component;
+import com.ikalagaming.entity.component.ComponentType;
+import com.ikalagaming.logging.LogLevel;
+import com.ikalagaming.logging.Logging;
 import com.ikalagaming.util.NameRegistry;
 import com.ikalagaming.util.SafeResourceLoader;
 
 import lombok.CustomLog;
 
-import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * An entity that can be represented in the game world which has a unique name.
+ * <p>
+ * Entities are identified by a numeric {@link #getId() id}, which is what
+ * should be used to refer to and look up entities. The human readable name is
+ * only registered the first time it is requested.
+ * </p>
  *
  * @author Ches Burks
  *
@@ -19,13 +27,173 @@ import java.util.concurrent.locks.ReentrantLock;
 public class Entity {
 	private static NameRegistry registry = new NameRegistry();
 
+	/**
+	 * Guards registering names, since that is done lazily.
+	 */
+	private static ReentrantLock nameLock = new ReentrantLock();
+
+	/**
+	 * Hands out the ids of all entities.
+	 */
+	private static EntityIdAllocator ids = EntityManager.getInstance().ids;
+
+	/**
+	 * Hands out the sequence numbers of all entities.
+	 */
+	private static AtomicLong sequences = new AtomicLong();
+
+	/**
+	 * Where the components of all entities are kept.
+	 */
+	private static ComponentStorage storage =
+		EntityManager.getInstance().storage;
+
+	/**
+	 * The parent and child relationships of entities.
+	 */
+	private static EntityHierarchy hierarchy =
+		EntityManager.getInstance().getHierarchy();
+
+	/**
+	 * Returns the entity with the given id, or null if there is no such entity.
+	 * If the entity that had this id has been destroyed, null is returned even
+	 * if another entity has since been created in its place.
+	 *
+	 * @param id the id of the entity
+	 * @return the entity with that id, or null if it does not exist
+	 * @see #getId()
+	 */
+	public static Entity getEntity(long id) {
+		return Entity.ids.get(id);
+	}
+
+	/**
+	 * Creates entities in bulk from a template. All of the entities are placed
+	 * in storage together, which is much cheaper than creating them one at a
+	 * time and then adding each component. If the template fails to create
+	 * the components for any of them, none of the entities are created.
+	 *
+	 * @param count how many entities to create
+	 * @param template what the entities should look like
+	 * @return the newly created entities
+	 */
+	public static Entity[] spawn(int count, EntityTemplate template) {
+		if (count <= 0) {
+			return new Entity[0];
+		}
+		Entity[] spawned = new Entity[count];
+		Component[][] components = new Component[count][];
+		try {
+			for (int i = 0; i < count; ++i) {
+				spawned[i] = new Entity(template.getNameHint(), false);
+				components[i] = template.createComponents(spawned[i]);
+			}
+		}
+		catch (RuntimeException e) {
+			// the entities are not in storage yet, but already have ids
+			for (Entity entity : spawned) {
+				if (entity != null) {
+					entity.destroy();
+				}
+			}
+			throw e;
+		}
+		Entity.storage.insertAll(spawned, components);
+
+		if (Entity.isFinestLogged()) {
+			log.finest(Entity.fillName(Entity.getMessage("ENTITIES_SPAWNED",
+				"Spawned $COUNT entities named $NAME"), template.getNameHint())
+				.replace("$COUNT", Integer.toString(count)));
+		}
+		return spawned;
+	}
+
+	/**
+	 * Replaces the name placeholder in a message. This avoids compiling a
+	 * regular expression for every message.
+	 *
+	 * @param message the message containing $NAME
+	 * @param name what to replace the placeholder with
+	 * @return the message with the name filled in
+	 */
+	private static String fillName(String message, String name) {
+		final int index = message.indexOf("$NAME");
+		if (index < 0) {
+			return message;
+		}
+		return message.substring(0, index) + name
+			+ message.substring(index + "$NAME".length());
+	}
+
+	/**
+	 * Looks up a localized message.
+	 *
+	 * @param key the name of the message
+	 * @param fallback the message to use if it could not be found
+	 * @return the message
+	 */
+	private static String getMessage(String key, String fallback) {
+		return SafeResourceLoader.getString(key, Entity.resourceLocation,
+			fallback);
+	}
+
+	/**
+	 * Returns true if finest logs are actually recorded. Used to skip building
+	 * log messages that would be thrown away.
+	 *
+	 * @return true if finest messages are logged
+	 */
+	private static boolean isFinestLogged() {
+		return Logging.getLogLevel().intValue() <= LogLevel.FINEST.intValue();
+	}
+
 	private static final String resourceLocation =
 		"com.ikalagaming.entity.resources.Entity";
-	private final String name;
 
-	protected HashMap<String, Component> components;
+	/**
+	 * The base name used when the name is first requested.
+	 */
+	private final String nameHint;
+
+	/**
+	 * The unique name, or null if it has not been requested yet.
+	 */
+	private volatile String name;
+
+	/**
+	 * The unique id of this entity. This only changes if the entity is reused
+	 * by an {@link EntityPool}.
+	 */
+	private volatile long id;
+
+	/**
+	 * A number given to this entity when it is created, which unlike the id
+	 * never changes, even if the entity is reused by an {@link EntityPool}.
+	 */
+	private final long sequence;
 
-	private ReentrantLock componentLock;
+	/**
+	 * Components kept while the entity is waiting in an {@link EntityPool}.
+	 */
+	private Component[] detachedComponents;
+
+	/**
+	 * The table in {@link #storage} that holds this entities components, or
+	 * null if it has been destroyed. Guarded by the storage.
+	 */
+	Archetype archetype;
+
+	/**
+	 * The row of {@link #archetype} that holds this entities components.
+	 * Guarded by the storage.
+	 */
+	int row;
+
+	/**
+	 * Where this entity is in the {@link #hierarchy}, or null if it has no
+	 * parent, children, or flags. Guarded by the hierarchy.
+	 */
+	volatile EntityHierarchy.Node hierarchyNode;
 
 	/**
 	 * Constructs an entity with the name Entity.
@@ -40,13 +208,30 @@ public class Entity {
 	 * @param nameHint the base name
 	 */
 	public Entity(String nameHint) {
-		this.componentLock = new ReentrantLock();
-		this.name = Entity.registry.registerName(nameHint);
-		this.components = new HashMap<>();
-		String message = SafeResourceLoader.getString("ENTITY_CREATED",
-			Entity.resourceLocation, "Created entity $NAME");
-		message = message.replaceFirst("\\$NAME", this.name);
-		log.finest(message);
+		this(nameHint, true);
+	}
+
+	/**
+	 * Creates an entity with the given name, and optionally places it in
+	 * storage. Entities that are not inserted must be placed in storage by the
+	 * caller, which is done when spawning in bulk.
+	 *
+	 * @param nameHint the base name
+	 * @param insert true if the entity should be placed in storage and logged
+	 */
+	private Entity(String nameHint, boolean insert) {
+		this.nameHint = nameHint;
+		this.id = Entity.ids.allocate(this);
+		this.sequence = Entity.sequences.getAndIncrement();
+		if (!insert) {
+			return;
+		}
+		Entity.storage.insert(this);
+		if (Entity.isFinestLogged()) {
+			log.finest(Entity.fillName(
+				Entity.getMessage("ENTITY_CREATED", "Created entity $NAME"),
+				this.toString()));
+		}
 	}
 
 	/**
@@ -56,31 +241,56 @@ public class Entity {
 	 * @param toAdd the component to add
 	 */
 	public void addComponent(Component toAdd) {
-		this.componentLock.lock();
+		Entity.storage.addComponent(this, toAdd);
+	}
+
+	/**
+	 * Clears out itself and its children from the scene and unregisters the
+	 * name of this object
+	 */
+	public void destroy() {
+		if (!Entity.ids.free(this.id)) {
+			return;// already destroyed
+		}
+		Entity.storage.remove(this);
+		Entity.logDestroyed(this);
+		if (this.hierarchyNode != null) {
+			for (Entity child : Entity.hierarchy.remove(this)) {
+				child.destroy();
+			}
+		}
+
+		String freed;
+		Entity.nameLock.lock();
 		try {
-			if (this.components.containsKey(toAdd.getType())) {
-				return;
+			freed = this.name;
+			if (freed != null) {
+				// when objects are deleted, unregister their id
+				Entity.registry.unregisterName(freed);
+				// a pooled entity registers a new name if it is revived
+				this.name = null;
 			}
-			this.components.put(toAdd.getType(), toAdd);
 		}
 		finally {
-			this.componentLock.unlock();
+			Entity.nameLock.unlock();
+		}
+		if (freed != null && Entity.isFinestLogged()) {
+			log.finest(Entity.fillName(Entity.getMessage("NAME_FREED",
+				"Freed the entity name $NAME for re-use"), freed));
 		}
 	}
 
 	/**
-	 * Clears out itself and its children from the scene and unregisters the
-	 * name of this object
+	 * Logs that an entity was destroyed, if finest logs are recorded.
+	 *
+	 * @param entity the destroyed entity
 	 */
-	public void destroy() {
-		// when objects are deleted, unregister their id
-		final int dashPos = this.name.lastIndexOf("-");
-		Entity.registry.unregisterName(this.name.substring(0, dashPos));
-
-		String freedName = SafeResourceLoader.getString("NAME_FREED",
-			Entity.resourceLocation, "Freed the entity name $NAME for re-use");
-		freedName = freedName.replaceFirst("\\$NAME", this.name);
-		log.finest(freedName);
+	private static void logDestroyed(Entity entity) {
+		if (Entity.isFinestLogged()) {
+			log.finest(Entity.fillName(
+				Entity.getMessage("ENTITY_DESTROYED", "Destroyed entity $NAME"),
+				entity.toString()));
+		}
 	}
 
 	/**
@@ -93,26 +303,87 @@ public class Entity {
 	 *         string or null if none exist
 	 */
 	public Component getComponent(String type) {
-		Component ret;
+		ComponentType<?> componentType = ComponentType.getType(type);
+		if (componentType == null) {
+			return null;
+		}
+		return Entity.storage.getComponent(this, componentType.getIndex());
+	}
 
-		this.componentLock.lock();
+	/**
+	 * Returns the Component of the specified type belonging to this entity. If
+	 * no such component exists, null is returned instead. This avoids looking
+	 * up the type by name and casting the result, so should be preferred over
+	 * {@link #getComponent(String)}.
+	 *
+	 * @param <T> the class of component
+	 * @param type the type of component that should be returned
+	 * @return the component of that type, or null if none exist
+	 */
+	public <T extends Component> T getComponent(ComponentType<T> type) {
+		return type.cast(Entity.storage.getComponent(this, type.getIndex()));
+	}
+
+	/**
+	 * Returns the unique id of this entity. Ids are never reused by a
+	 * different entity, and can be used to find the entity again with
+	 * {@link #getEntity(long)}.
+	 *
+	 * @return the id of the entity
+	 */
+	public long getId() {
+		return this.id;
+	}
+
+	/**
+	 * Returns the number this entity was given when it was created. It is
+	 * unique and never changes, so it can be used to order locks.
+	 *
+	 * @return the sequence number of the entity
+	 */
+	long getSequence() {
+		return this.sequence;
+	}
+
+	/**
+	 * Returns the name of this entity. Names are unique, but will be recycled
+	 * when entities are deleted. The name is registered the first time this is
+	 * called. If the entity has been destroyed, its name has already been
+	 * given back, so the base name and id are returned instead.
+	 *
+	 * @return the entities name (including trailing dash and id)
+	 */
+	public String getName() {
+		String result = this.name;
+		if (result != null) {
+			return result;
+		}
+		Entity.nameLock.lock();
 		try {
-			ret = this.components.get(type);
+			if (this.name == null) {
+				if (Entity.ids.get(this.id) != this) {
+					return this.toString();// destroyed, don't leak a name
+				}
+				this.name = Entity.registry.registerName(this.nameHint);
+			}
+			return this.name;
 		}
 		finally {
-			this.componentLock.unlock();
+			Entity.nameLock.unlock();
 		}
-		return ret;
 	}
 
 	/**
-	 * Returns the name of this entity. Names are unique, but will be recycled
-	 * when entities are deleted.
+	 * Returns the entity this one is attached to.
 	 *
-	 * @return the entities name (including trailing dash and id)
+	 * @return the parent of this entity, or null if it has none
+	 * @see EntityHierarchy
 	 */
-	public String getName() {
-		return this.name;
+	public Entity getParent() {
+		if (this.hierarchyNode == null) {
+			return null;
+		}
+		return Entity.hierarchy.getParent(this);
 	}
 
 	/**
@@ -124,15 +395,45 @@ public class Entity {
 	 *         otherwise
 	 */
 	public boolean hasComponent(final String type) {
-		boolean result = false;
-		this.componentLock.lock();
-		try {
-			result = this.components.containsKey(type);
+		ComponentType<?> componentType = ComponentType.getType(type);
+		if (componentType == null) {
+			return false;
 		}
-		finally {
-			this.componentLock.unlock();
+		return Entity.storage.hasComponent(this, componentType.getIndex());
+	}
+
+	/**
+	 * Returns true if there is a Component of the specified type that belongs
+	 * to this entity.
+	 *
+	 * @param type the type of component to look for
+	 * @return true if this entity owns one of the specified components, false
+	 *         otherwise
+	 */
+	public boolean hasComponent(final ComponentType<?> type) {
+		return Entity.storage.hasComponent(this, type.getIndex());
+	}
+
+	/**
+	 * Destroys the entity but keeps hold of its components, after resetting
+	 * them, so that it can be {@link #revive() revived} later.
+	 *
+	 * @return true if the entity was detached, false if it was already
+	 *         destroyed
+	 * @see EntityPool
+	 */
+	boolean detach() {
+		Component[] components = Entity.storage.getComponents(this);
+		if (components == null) {
+			return false;
 		}
-		return result;
+		this.destroy();
+		for (Component component : components) {
+			component.reset();
+		}
+		this.reset();
+		this.detachedComponents = components;
+		return true;
 	}
 
 	/**
@@ -140,19 +441,80 @@ public class Entity {
 	 */
 	public void init() {}
 
+	/**
+	 * Restores any state held by the entity itself (not its components) to how
+	 * it was when the entity was constructed. This is called when an entity is
+	 * released to an {@link EntityPool}, and does nothing by default.
+	 */
+	protected void reset() {}
+
+	/**
+	 * Gives a detached entity a new id and puts its components back into
+	 * storage.
+	 *
+	 * @see #detach()
+	 */
+	void revive() {
+		Component[] components = this.detachedComponents;
+		this.detachedComponents = null;
+		this.id = Entity.ids.allocate(this);
+		Entity.storage.insertAll(new Entity[] {this},
+			new Component[][] {components});
+	}
+
 	/**
 	 * Removes the specified component from this entity.
 	 *
 	 * @param type the type of component to remove
 	 */
 	public void removeComponent(final String type) {
-		this.componentLock.lock();
-		try {
-			this.components.remove(type);
+		ComponentType<?> componentType = ComponentType.getType(type);
+		if (componentType == null) {
+			return;
 		}
-		finally {
-			this.componentLock.unlock();
+		Entity.storage.removeComponent(this, componentType.getIndex());
+	}
+
+	/**
+	 * Removes the specified component from this entity.
+	 *
+	 * @param type the type of component to remove
+	 */
+	public void removeComponent(final ComponentType<?> type) {
+		Entity.storage.removeComponent(this, type.getIndex());
+	}
+
+	/**
+	 * Attaches this entity to a parent, so that it is destroyed along with the
+	 * parent and inherits its flags. Passing null detaches it from its current
+	 * parent.
+	 *
+	 * @param parent the new parent, or null for none
+	 * @throws IllegalArgumentException if the parent is this entity or one of
+	 *             its descendants
+	 * @see EntityHierarchy
+	 */
+	public void setParent(Entity parent) {
+		if (parent == null) {
+			Entity.hierarchy.detach(this);
+		}
+		else {
+			Entity.hierarchy.attach(this, parent);
 		}
 	}
 
+	/**
+	 * Returns the name of this entity if it has been registered, otherwise the
+	 * base name and id. This never registers a name.
+	 *
+	 * @return a description of this entity for logging
+	 */
+	@Override
+	public String toString() {
+		String result = this.name;
+		if (result != null) {
+			return result;
+		}
+		return this.nameHint + "#" + this.id;
+	}
 }
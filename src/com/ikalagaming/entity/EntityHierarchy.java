@@ -0,0 +1,541 @@
+package com.ikalagaming.entity;
+
+import java.util.Arrays;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
+
+/**
+ * Parent and child relationships between entities, such as a rider and their
+ * mount or a player and the items they carry. When an entity is destroyed, all
+ * of its children are destroyed with it.
+ * <p>
+ * The links between entities are only used to record changes. Every entity in
+ * the hierarchy is also laid out in a flat array in depth first order, so that
+ * each parent comes before all of its children and each subtree is a
+ * contiguous range. Destroying a subtree and propagating to children are then
+ * single passes over that array. The array is rebuilt once after any number of
+ * changes, the next time it is needed.
+ * </p>
+ * <p>
+ * Each entity can also have a set of flags, such as being hidden or disabled,
+ * which apply to all of its children as well. The flags an entity ends up
+ * with are calculated by {@link #propagate()}, which the
+ * {@link SystemScheduler} calls at the end of every tick.
+ * </p>
+ *
+ * @author Ches Burks
+ *
+ */
+public class EntityHierarchy {
+	/**
+	 * An entity that is in the hierarchy. Guarded by the hierarchy lock.
+	 */
+	static class Node {
+		final Entity entity;
+		Node parent;
+		Node firstChild;
+		/**
+		 * The next child of the same parent, or next root if there is no
+		 * parent.
+		 */
+		Node nextSibling;
+		Node previousSibling;
+		int flags;
+		/**
+		 * Where the entity is in the flat layout, if it is up to date.
+		 */
+		int slot;
+
+		Node(Entity entity) {
+			this.entity = entity;
+		}
+	}
+
+	private static final Entity[] NO_ENTITIES = new Entity[0];
+
+	private static final int INITIAL_CAPACITY = 64;
+
+	/**
+	 * The first entity with no parent. The others follow by sibling links.
+	 */
+	private Node firstRoot;
+
+	/**
+	 * The entities in depth first order.
+	 */
+	private Entity[] order;
+
+	/**
+	 * The slot of the parent of each slot, or -1 for roots.
+	 */
+	private int[] parentSlots;
+
+	/**
+	 * The slot just past the end of the subtree starting at each slot.
+	 */
+	private int[] subtreeEnds;
+
+	/**
+	 * The flags set directly on the entity in each slot.
+	 */
+	private int[] ownFlags;
+
+	/**
+	 * The flags of the entity in each slot combined with all of its
+	 * ancestors.
+	 */
+	private int[] inheritedFlags;
+
+	/**
+	 * How many slots are in use.
+	 */
+	private int count;
+
+	/**
+	 * The total number of entities in the hierarchy.
+	 */
+	private int nodeCount;
+
+	/**
+	 * True if entities were attached or removed since the layout was built.
+	 */
+	private boolean structureChanged;
+
+	/**
+	 * True if flags changed since they were last propagated.
+	 */
+	private boolean flagsChanged;
+
+	private ReentrantLock hierarchyLock;
+
+	/**
+	 * Creates an empty hierarchy.
+	 */
+	EntityHierarchy() {
+		this.order = new Entity[EntityHierarchy.INITIAL_CAPACITY];
+		this.parentSlots = new int[EntityHierarchy.INITIAL_CAPACITY];
+		this.subtreeEnds = new int[EntityHierarchy.INITIAL_CAPACITY];
+		this.ownFlags = new int[EntityHierarchy.INITIAL_CAPACITY];
+		this.inheritedFlags = new int[EntityHierarchy.INITIAL_CAPACITY];
+		this.count = 0;
+		this.nodeCount = 0;
+		this.structureChanged = false;
+		this.flagsChanged = false;
+		this.hierarchyLock = new ReentrantLock();
+	}
+
+	/**
+	 * Makes one entity the child of another. If the child already has a
+	 * parent, it is moved. The child's own children come with it.
+	 *
+	 * @param child the entity to attach
+	 * @param parent the new parent
+	 * @throws IllegalArgumentException if the parent is the child or one of
+	 *             its descendants
+	 */
+	public void attach(Entity child, Entity parent) {
+		if (child == parent) {
+			throw new IllegalArgumentException(
+				"An entity cannot be attached to itself");
+		}
+		this.hierarchyLock.lock();
+		try {
+			// check before creating nodes, so a rejected attach adds nothing
+			for (Node ancestor = parent.hierarchyNode; ancestor != null;
+				ancestor = ancestor.parent) {
+				if (ancestor.entity == child) {
+					throw new IllegalArgumentException(
+						"An entity cannot be attached to its own descendant");
+				}
+			}
+			Node parentNode = this.getOrCreateNode(parent);
+			Node childNode = this.getOrCreateNode(child);
+			if (childNode.parent == parentNode) {
+				return;
+			}
+			Node oldParent = childNode.parent;
+			this.unlink(childNode);
+			this.pruneIfUnused(oldParent);
+			childNode.parent = parentNode;
+			childNode.nextSibling = parentNode.firstChild;
+			if (parentNode.firstChild != null) {
+				parentNode.firstChild.previousSibling = childNode;
+			}
+			parentNode.firstChild = childNode;
+			this.structureChanged = true;
+		}
+		finally {
+			this.hierarchyLock.unlock();
+		}
+	}
+
+	/**
+	 * Removes an entity from its parent, so that it has no parent. Its own
+	 * children stay attached to it.
+	 *
+	 * @param child the entity to detach
+	 */
+	public void detach(Entity child) {
+		this.hierarchyLock.lock();
+		try {
+			Node childNode = child.hierarchyNode;
+			if (childNode == null || childNode.parent == null) {
+				return;
+			}
+			Node oldParent = childNode.parent;
+			this.unlink(childNode);
+			childNode.parent = null;
+			this.linkRoot(childNode);
+			this.pruneIfUnused(oldParent);
+			this.pruneIfUnused(childNode);
+			this.structureChanged = true;
+		}
+		finally {
+			this.hierarchyLock.unlock();
+		}
+	}
+
+	/**
+	 * Performs an action on every parent and child pair, with parents always
+	 * visited before their children. This can be used to pass positions or
+	 * other state down the hierarchy in a single pass. The hierarchy must not
+	 * be changed by the action.
+	 *
+	 * @param action what to do with each parent and child
+	 */
+	public void forEachParentFirst(
+		BiConsumer<? super Entity, ? super Entity> action) {
+		this.hierarchyLock.lock();
+		try {
+			this.updateLayout();
+			for (int slot = 0; slot < this.count; ++slot) {
+				final int parentSlot = this.parentSlots[slot];
+				if (parentSlot >= 0) {
+					action.accept(this.order[parentSlot], this.order[slot]);
+				}
+			}
+		}
+		finally {
+			this.hierarchyLock.unlock();
+		}
+	}
+
+	/**
+	 * Returns the flags set directly on the entity.
+	 *
+	 * @param entity the entity to check
+	 * @return the flags of the entity, or 0 if none are set
+	 */
+	public int getFlags(Entity entity) {
+		this.hierarchyLock.lock();
+		try {
+			Node node = entity.hierarchyNode;
+			return node == null ? 0 : node.flags;
+		}
+		finally {
+			this.hierarchyLock.unlock();
+		}
+	}
+
+	/**
+	 * Returns the flags of the entity combined with the flags of all of its
+	 * ancestors.
+	 *
+	 * @param entity the entity to check
+	 * @return the flags that apply to the entity
+	 */
+	public int getInheritedFlags(Entity entity) {
+		this.hierarchyLock.lock();
+		try {
+			Node node = entity.hierarchyNode;
+			if (node == null) {
+				return 0;
+			}
+			this.propagateLocked();
+			return this.inheritedFlags[node.slot];
+		}
+		finally {
+			this.hierarchyLock.unlock();
+		}
+	}
+
+	/**
+	 * Returns the parent of the entity.
+	 *
+	 * @param entity the entity to check
+	 * @return the parent, or null if the entity has none
+	 */
+	public Entity getParent(Entity entity) {
+		this.hierarchyLock.lock();
+		try {
+			Node node = entity.hierarchyNode;
+			if (node == null || node.parent == null) {
+				return null;
+			}
+			return node.parent.entity;
+		}
+		finally {
+			this.hierarchyLock.unlock();
+		}
+	}
+
+	/**
+	 * Returns the node for the entity, adding it as a root if it was not in
+	 * the hierarchy. Must be called while holding the lock.
+	 *
+	 * @param entity the entity to look up
+	 * @return the node for the entity
+	 */
+	private Node getOrCreateNode(Entity entity) {
+		Node node = entity.hierarchyNode;
+		if (node == null) {
+			node = new Node(entity);
+			this.linkRoot(node);
+			++this.nodeCount;
+			entity.hierarchyNode = node;
+			this.structureChanged = true;
+		}
+		return node;
+	}
+
+	/**
+	 * Returns the number of entities that have a parent, children, or flags.
+	 *
+	 * @return the number of entities in the hierarchy
+	 */
+	public int getSize() {
+		this.hierarchyLock.lock();
+		try {
+			return this.nodeCount;
+		}
+		finally {
+			this.hierarchyLock.unlock();
+		}
+	}
+
+	/**
+	 * Adds a node with no parent to the list of roots. Must be called while
+	 * holding the lock.
+	 *
+	 * @param node the node to add
+	 */
+	private void linkRoot(Node node) {
+		node.previousSibling = null;
+		node.nextSibling = this.firstRoot;
+		if (this.firstRoot != null) {
+			this.firstRoot.previousSibling = node;
+		}
+		this.firstRoot = node;
+	}
+
+	/**
+	 * Places a node and all of its descendants at the end of the layout. Must
+	 * be called while holding the lock.
+	 *
+	 * @param root the first node to place
+	 */
+	private void placeSubtree(Node root) {
+		Node node = root;
+		while (node != null) {
+			final int slot = this.count;
+			node.slot = slot;
+			this.order[slot] = node.entity;
+			this.parentSlots[slot] =
+				node.parent == null ? -1 : node.parent.slot;
+			this.ownFlags[slot] = node.flags;
+			++this.count;
+			if (node.firstChild != null) {
+				node = node.firstChild;
+				continue;
+			}
+			// finish this node, and every ancestor that has no more children
+			while (true) {
+				this.subtreeEnds[node.slot] = this.count;
+				if (node == root) {
+					node = null;
+					break;
+				}
+				if (node.nextSibling != null) {
+					node = node.nextSibling;
+					break;
+				}
+				node = node.parent;
+			}
+		}
+	}
+
+	/**
+	 * Calculates the flags that apply to every entity, from the flags of the
+	 * entity and its ancestors. This is a single pass over all entities in the
+	 * hierarchy, and does nothing if nothing has changed.
+	 */
+	public void propagate() {
+		this.hierarchyLock.lock();
+		try {
+			this.propagateLocked();
+		}
+		finally {
+			this.hierarchyLock.unlock();
+		}
+	}
+
+	/**
+	 * Propagates flags if anything changed. Must be called while holding the
+	 * lock.
+	 */
+	private void propagateLocked() {
+		if (!this.structureChanged && !this.flagsChanged) {
+			return;
+		}
+		this.updateLayout();
+		for (int slot = 0; slot < this.count; ++slot) {
+			final int parentSlot = this.parentSlots[slot];
+			int flags = this.ownFlags[slot];
+			if (parentSlot >= 0) {
+				// the parent is always earlier, so is already done
+				flags |= this.inheritedFlags[parentSlot];
+			}
+			this.inheritedFlags[slot] = flags;
+		}
+		this.flagsChanged = false;
+	}
+
+	/**
+	 * Removes the node from the hierarchy if it has no parent, children, or
+	 * flags. Must be called while holding the lock.
+	 *
+	 * @param node the node to check, may be null
+	 */
+	private void pruneIfUnused(Node node) {
+		if (node == null || node.parent != null || node.firstChild != null
+			|| node.flags != 0) {
+			return;
+		}
+		this.unlink(node);
+		node.entity.hierarchyNode = null;
+		--this.nodeCount;
+		this.structureChanged = true;
+	}
+
+	/**
+	 * Removes an entity and all of its descendants from the hierarchy, and
+	 * returns the descendants so that they can be destroyed along with it.
+	 * They are returned with children before their parents.
+	 *
+	 * @param entity the entity being destroyed
+	 * @return the descendants of the entity
+	 */
+	Entity[] remove(Entity entity) {
+		this.hierarchyLock.lock();
+		try {
+			Node node = entity.hierarchyNode;
+			if (node == null) {
+				return EntityHierarchy.NO_ENTITIES;
+			}
+			this.updateLayout();
+			final int start = node.slot;
+			final int end = this.subtreeEnds[start];
+			Entity[] descendants = new Entity[end - start - 1];
+			for (int slot = end - 1; slot >= start; --slot) {
+				Entity removed = this.order[slot];
+				removed.hierarchyNode = null;
+				if (slot > start) {
+					descendants[end - 1 - slot] = removed;
+				}
+			}
+			Node oldParent = node.parent;
+			this.unlink(node);
+			this.pruneIfUnused(oldParent);
+			this.nodeCount -= end - start;
+			this.structureChanged = true;
+			return descendants;
+		}
+		finally {
+			this.hierarchyLock.unlock();
+		}
+	}
+
+	/**
+	 * Sets the flags of an entity, which also apply to all of its children.
+	 *
+	 * @param entity the entity to set flags on
+	 * @param flags the new flags
+	 */
+	public void setFlags(Entity entity, int flags) {
+		this.hierarchyLock.lock();
+		try {
+			Node node = entity.hierarchyNode;
+			if (node == null) {
+				if (flags == 0) {
+					return;
+				}
+				node = this.getOrCreateNode(entity);
+			}
+			node.flags = flags;
+			if (!this.structureChanged) {
+				this.ownFlags[node.slot] = flags;
+			}
+			this.flagsChanged = true;
+			this.pruneIfUnused(node);
+		}
+		finally {
+			this.hierarchyLock.unlock();
+		}
+	}
+
+	/**
+	 * Removes a node from its parent's children, or from the roots. Must be
+	 * called while holding the lock.
+	 *
+	 * @param node the node to unlink
+	 */
+	private void unlink(Node node) {
+		if (node.previousSibling != null) {
+			node.previousSibling.nextSibling = node.nextSibling;
+		}
+		else if (node.parent != null) {
+			node.parent.firstChild = node.nextSibling;
+		}
+		else if (this.firstRoot == node) {
+			this.firstRoot = node.nextSibling;
+		}
+		if (node.nextSibling != null) {
+			node.nextSibling.previousSibling = node.previousSibling;
+		}
+		node.nextSibling = null;
+		node.previousSibling = null;
+		node.parent = null;
+	}
+
+	/**
+	 * Rebuilds the flat layout if entities were attached or removed. Must be
+	 * called while holding the lock.
+	 */
+	private void updateLayout() {
+		if (!this.structureChanged) {
+			return;
+		}
+		if (this.nodeCount > this.order.length) {
+			int capacity = this.order.length;
+			while (capacity < this.nodeCount) {
+				capacity *= 2;
+			}
+			this.order = new Entity[capacity];
+			this.parentSlots = new int[capacity];
+			this.subtreeEnds = new int[capacity];
+			this.ownFlags = new int[capacity];
+			this.inheritedFlags = new int[capacity];
+		}
+		else if (this.count > this.nodeCount) {
+			Arrays.fill(this.order, this.nodeCount, this.count, null);
+		}
+		this.count = 0;
+		Node root = this.firstRoot;
+		while (root != null) {
+			this.placeSubtree(root);
+			root = root.nextSibling;
+		}
+		this.structureChanged = false;
+		this.flagsChanged = true;
+	}
+}
@@ -0,0 +1,214 @@
+package com.ikalagaming.entity;
+
+import java.util.Arrays;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * Hands out unique ids for entities and maps ids back to the entity that owns
+ * them. An id is made up of an index into a table of entities, which is reused
+ * once the entity is freed, and a generation for that index, which is bumped
+ * every time the index is freed. This means lookups are a simple array access,
+ * and an id that refers to an entity that has since been destroyed will never
+ * match the entity that now occupies the same index.
+ * <p>
+ * The index is stored in the low 32 bits of the id, and the generation in the
+ * high 32 bits. Generations start at 1, so 0 is never a valid id.
+ * </p>
+ *
+ * @author Ches Burks
+ *
+ */
+class EntityIdAllocator {
+	/**
+	 * An id that will never be assigned to an entity. ({@value})
+	 */
+	static final long INVALID_ID = 0L;
+
+	private static final int INITIAL_CAPACITY = 64;
+
+	/**
+	 * Returns the generation part of an id.
+	 *
+	 * @param id the entity id
+	 * @return the generation of the id
+	 */
+	static int getGeneration(long id) {
+		return (int) (id >>> 32);
+	}
+
+	/**
+	 * Returns the index part of an id.
+	 *
+	 * @param id the entity id
+	 * @return the index of the id
+	 */
+	static int getIndex(long id) {
+		return (int) id;
+	}
+
+	/**
+	 * Packs an index and generation into an id.
+	 *
+	 * @param index the index
+	 * @param generation the generation
+	 * @return the id
+	 */
+	private static long toId(int index, int generation) {
+		return ((long) generation << 32) | (index & 0xFFFFFFFFL);
+	}
+
+	/**
+	 * The current generation of each index.
+	 */
+	private int[] generations;
+
+	/**
+	 * The entity currently holding each index, or null if it is free.
+	 */
+	private Entity[] entities;
+
+	/**
+	 * A stack of indices that have been freed and can be reused.
+	 */
+	private int[] freeIndices;
+
+	/**
+	 * How many entries of {@link #freeIndices} are in use.
+	 */
+	private int freeCount;
+
+	/**
+	 * The lowest index that has never been handed out.
+	 */
+	private int nextIndex;
+
+	private StampedLock idLock;
+
+	/**
+	 * Creates an allocator with no ids handed out.
+	 */
+	EntityIdAllocator() {
+		this.generations = new int[EntityIdAllocator.INITIAL_CAPACITY];
+		this.entities = new Entity[EntityIdAllocator.INITIAL_CAPACITY];
+		this.freeIndices = new int[EntityIdAllocator.INITIAL_CAPACITY];
+		this.freeCount = 0;
+		this.nextIndex = 0;
+		this.idLock = new StampedLock();
+	}
+
+	/**
+	 * Assigns a new id to the entity. Freed indices are reused before new ones
+	 * are created.
+	 *
+	 * @param entity the entity that will own the id
+	 * @return the new id
+	 */
+	long allocate(Entity entity) {
+		final long stamp = this.idLock.writeLock();
+		try {
+			int index;
+			if (this.freeCount > 0) {
+				--this.freeCount;
+				index = this.freeIndices[this.freeCount];
+			}
+			else {
+				index = this.nextIndex;
+				++this.nextIndex;
+				if (index >= this.entities.length) {
+					final int capacity = this.entities.length * 2;
+					this.entities = Arrays.copyOf(this.entities, capacity);
+					this.generations =
+						Arrays.copyOf(this.generations, capacity);
+				}
+				this.generations[index] = 1;
+			}
+			this.entities[index] = entity;
+			return EntityIdAllocator.toId(index, this.generations[index]);
+		}
+		finally {
+			this.idLock.unlockWrite(stamp);
+		}
+	}
+
+	/**
+	 * Frees the id so that its index can be reused. The generation of the
+	 * index is increased so that the old id will no longer match anything.
+	 *
+	 * @param id the id to free
+	 * @return true if the id was in use and is now freed, false if it was not
+	 *         a current id
+	 */
+	boolean free(long id) {
+		final int index = EntityIdAllocator.getIndex(id);
+		final long stamp = this.idLock.writeLock();
+		try {
+			if (index < 0 || index >= this.nextIndex
+				|| this.entities[index] == null
+				|| this.generations[index] != EntityIdAllocator
+					.getGeneration(id)) {
+				return false;
+			}
+			this.entities[index] = null;
+			++this.generations[index];
+			if (this.generations[index] == 0) {
+				// wrapped around, skip the invalid generation
+				this.generations[index] = 1;
+			}
+			if (this.freeCount >= this.freeIndices.length) {
+				this.freeIndices = Arrays.copyOf(this.freeIndices,
+					this.freeIndices.length * 2);
+			}
+			this.freeIndices[this.freeCount] = index;
+			++this.freeCount;
+			return true;
+		}
+		finally {
+			this.idLock.unlockWrite(stamp);
+		}
+	}
+
+	/**
+	 * Returns the entity with the given id, or null if the id is not in use.
+	 * This will return null for an id whose entity has been destroyed, even if
+	 * the index has since been reused.
+	 *
+	 * @param id the entity id
+	 * @return the entity with that id, or null
+	 */
+	Entity get(long id) {
+		long stamp = this.idLock.tryOptimisticRead();
+		if (stamp != 0) {
+			Entity result = this.find(id);
+			if (this.idLock.validate(stamp)) {
+				return result;
+			}
+		}
+		stamp = this.idLock.readLock();
+		try {
+			return this.find(id);
+		}
+		finally {
+			this.idLock.unlockRead(stamp);
+		}
+	}
+
+	/**
+	 * Looks up an entity without locking. This may be called during an
+	 * optimistic read so must tolerate the arrays changing underneath it.
+	 *
+	 * @param id the entity id
+	 * @return the entity with that id, or null
+	 */
+	private Entity find(long id) {
+		final int index = EntityIdAllocator.getIndex(id);
+		final int[] gens = this.generations;
+		final Entity[] ents = this.entities;
+		if (index < 0 || index >= gens.length || index >= ents.length) {
+			return null;
+		}
+		if (gens[index] != EntityIdAllocator.getGeneration(id)) {
+			return null;
+		}
+		return ents[index];
+	}
+}
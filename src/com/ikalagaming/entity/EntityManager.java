@@ -0,0 +1,136 @@
+package com.ikalagaming.entity;
+
+import com.ikalagaming.entity.component.ComponentType;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Owns all of the entities in the game, and where their components are stored.
+ * Game systems use this to register {@link EntityQuery queries} for the
+ * entities they care about, rather than keeping their own lists of entities.
+ *
+ * @author Ches Burks
+ *
+ */
+public class EntityManager {
+	private static final EntityManager instance = new EntityManager();
+
+	private static final ComponentType<?>[] NO_TYPES = new ComponentType<?>[0];
+
+	/**
+	 * Returns the entity manager.
+	 *
+	 * @return the instance of the manager
+	 */
+	public static EntityManager getInstance() {
+		return EntityManager.instance;
+	}
+
+	/**
+	 * Where the components of all entities are kept.
+	 */
+	final ComponentStorage storage;
+
+	/**
+	 * Hands out the ids of all entities.
+	 */
+	final EntityIdAllocator ids;
+
+	/**
+	 * The parent and child relationships between entities.
+	 */
+	private final EntityHierarchy hierarchy;
+
+	/**
+	 * The current tick, used to stamp components when they change.
+	 */
+	private final AtomicLong tick;
+
+	private EntityManager() {
+		this.storage = new ComponentStorage();
+		this.ids = new EntityIdAllocator();
+		this.hierarchy = new EntityHierarchy();
+		this.tick = new AtomicLong(1);
+	}
+
+	/**
+	 * Moves on to the next tick, and returns the tick that just ended. Any
+	 * component that changes after this call is stamped with a later tick, so
+	 * the returned value can be saved and passed to
+	 * {@link com.ikalagaming.entity.component.Component#changedSince(long)
+	 * changedSince} later to find everything that changed in the meantime.
+	 *
+	 * @return the tick that just ended
+	 */
+	public long advanceTick() {
+		return this.tick.getAndIncrement();
+	}
+
+	/**
+	 * Returns the entity with the given id, or null if there is no such entity.
+	 *
+	 * @param id the id of the entity
+	 * @return the entity with that id, or null if it does not exist
+	 * @see Entity#getEntity(long)
+	 */
+	public Entity getEntity(long id) {
+		return this.ids.get(id);
+	}
+
+	/**
+	 * Returns the parent and child relationships between entities.
+	 *
+	 * @return the entity hierarchy
+	 */
+	public EntityHierarchy getHierarchy() {
+		return this.hierarchy;
+	}
+
+	/**
+	 * Returns the current tick. Components that change are stamped with this.
+	 *
+	 * @return the current tick
+	 * @see #advanceTick()
+	 */
+	public long getTick() {
+		return this.tick.get();
+	}
+
+	/**
+	 * Creates a query for all entities that have every one of the given
+	 * component types. The query is kept up to date as entities change until
+	 * it is {@link #unregisterQuery(EntityQuery) unregistered}.
+	 *
+	 * @param required the types an entity must have
+	 * @return the new query
+	 */
+	public EntityQuery registerQuery(ComponentType<?>... required) {
+		return this.registerQuery(required, EntityManager.NO_TYPES);
+	}
+
+	/**
+	 * Creates a query for all entities that have every one of the required
+	 * component types, and none of the excluded ones. The query is kept up to
+	 * date as entities change until it is
+	 * {@link #unregisterQuery(EntityQuery) unregistered}.
+	 *
+	 * @param required the types an entity must have
+	 * @param excluded the types an entity must not have
+	 * @return the new query
+	 */
+	public EntityQuery registerQuery(ComponentType<?>[] required,
+		ComponentType<?>[] excluded) {
+		EntityQuery query = new EntityQuery(this.storage, required, excluded);
+		this.storage.registerQuery(query);
+		return query;
+	}
+
+	/**
+	 * Stops updating a query. It should not be used after this.
+	 *
+	 * @param query the query to unregister
+	 */
+	public void unregisterQuery(EntityQuery query) {
+		this.storage.unregisterQuery(query);
+	}
+}
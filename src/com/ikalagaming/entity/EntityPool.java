@@ -0,0 +1,106 @@
+package com.ikalagaming.entity;
+
+import com.ikalagaming.entity.component.Component;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+
+/**
+ * Keeps destroyed entities around so they can be reused instead of creating
+ * new ones. When an entity is released to the pool it is destroyed, and its
+ * components are {@link Component#reset() reset} and kept with it. When it is
+ * acquired again, it is given a new id and the same components are put back.
+ * <p>
+ * This is useful for entities that are created and destroyed often, such as
+ * players logging in and out or enemies respawning, to avoid creating all of
+ * their components again each time.
+ * </p>
+ *
+ * @author Ches Burks
+ *
+ * @param <T> the type of entity that is pooled
+ */
+public class EntityPool<T extends Entity> {
+	private final Supplier<T> factory;
+
+	private final int maxSize;
+
+	private ArrayDeque<T> available;
+
+	private ReentrantLock poolLock;
+
+	/**
+	 * Creates an empty pool.
+	 *
+	 * @param factory creates new entities when the pool is empty
+	 * @param maxSize the most entities that will be kept in the pool, any
+	 *            more that are released are just destroyed
+	 */
+	public EntityPool(Supplier<T> factory, int maxSize) {
+		this.factory = factory;
+		this.maxSize = maxSize;
+		this.available = new ArrayDeque<>();
+		this.poolLock = new ReentrantLock();
+	}
+
+	/**
+	 * Returns an entity from the pool, or a new one if the pool is empty. A
+	 * pooled entity has a new id and the same (reset) components it had when
+	 * it was released.
+	 *
+	 * @return an entity that is ready for use
+	 */
+	public T acquire() {
+		T entity;
+		this.poolLock.lock();
+		try {
+			entity = this.available.poll();
+		}
+		finally {
+			this.poolLock.unlock();
+		}
+		if (entity == null) {
+			return this.factory.get();
+		}
+		entity.revive();
+		return entity;
+	}
+
+	/**
+	 * Returns the number of entities waiting in the pool.
+	 *
+	 * @return how many entities are available to reuse
+	 */
+	public int getAvailable() {
+		this.poolLock.lock();
+		try {
+			return this.available.size();
+		}
+		finally {
+			this.poolLock.unlock();
+		}
+	}
+
+	/**
+	 * Destroys the entity and keeps it to be reused later. The entity must not
+	 * be used by the caller after this, and should not have already been
+	 * destroyed.
+	 *
+	 * @param entity the entity to release
+	 */
+	public void release(T entity) {
+		if (!entity.detach()) {
+			return;// already destroyed
+		}
+		this.poolLock.lock();
+		try {
+			if (this.available.size() < this.maxSize) {
+				this.available.push(entity);
+			}
+		}
+		finally {
+			this.poolLock.unlock();
+		}
+	}
+}
@@ -0,0 +1,314 @@
+package com.ikalagaming.entity;
+
+import com.ikalagaming.entity.component.Component;
+import com.ikalagaming.entity.component.ComponentType;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+/**
+ * A registered search for every entity that has all of a set of required
+ * component types, and none of a set of excluded types. Queries are created
+ * through the {@link EntityManager}.
+ * <p>
+ * Rather than tracking individual entities, a query keeps a list of the
+ * {@link Archetype archetype} tables that match. Tables are checked once when
+ * they are created, so entities gaining or losing components automatically
+ * show up in or drop out of the results without any extra work, and iterating
+ * the results is just walking the rows of each matching table.
+ * </p>
+ * <p>
+ * Iteration holds a read lock on component storage. Adding or removing
+ * components, or creating or destroying entities, from inside an action passed
+ * to a forEach method is not allowed and will deadlock. Record those changes
+ * in a {@link CommandBuffer} and play it back afterwards instead. Parallel
+ * iteration only holds the lock while it copies the matching entities, since
+ * its tasks may be run by pool threads that are also waiting on the lock for
+ * other work.
+ * </p>
+ *
+ * @author Ches Burks
+ *
+ */
+public class EntityQuery {
+	/**
+	 * Performs an action on a range of rows in a table, splitting the range in
+	 * half until it is no larger than the chunk size.
+	 */
+	private static class ChunkTask extends RecursiveAction {
+		private static final long serialVersionUID = 2870312651853390415L;
+
+		private final transient Entity[] entities;
+		private final int start;
+		private final int end;
+		private final int chunkSize;
+		private final transient Consumer<? super Entity> action;
+
+		ChunkTask(Entity[] entities, int start, int end, int chunkSize,
+			Consumer<? super Entity> action) {
+			this.entities = entities;
+			this.start = start;
+			this.end = end;
+			this.chunkSize = chunkSize;
+			this.action = action;
+		}
+
+		@Override
+		protected void compute() {
+			if (this.end - this.start <= this.chunkSize) {
+				for (int row = this.start; row < this.end; ++row) {
+					this.action.accept(this.entities[row]);
+				}
+				return;
+			}
+			final int middle = (this.start + this.end) >>> 1;
+			ForkJoinTask.invokeAll(
+				new ChunkTask(this.entities, this.start, middle,
+					this.chunkSize, this.action),
+				new ChunkTask(this.entities, middle, this.end, this.chunkSize,
+					this.action));
+		}
+	}
+
+	private final ComponentStorage storage;
+
+	/**
+	 * The types an entity must have.
+	 */
+	private final BitSet required;
+
+	/**
+	 * The types an entity must not have.
+	 */
+	private final BitSet excluded;
+
+	/**
+	 * The tables that match the query. Guarded by the storage lock.
+	 */
+	private Archetype[] archetypes;
+
+	/**
+	 * How many entries of {@link #archetypes} are in use.
+	 */
+	private int archetypeCount;
+
+	/**
+	 * Creates a query that does not yet match any tables. It must be
+	 * registered with the storage to be populated.
+	 *
+	 * @param storage the storage this query searches
+	 * @param required the types an entity must have
+	 * @param excluded the types an entity must not have
+	 */
+	EntityQuery(ComponentStorage storage, ComponentType<?>[] required,
+		ComponentType<?>[] excluded) {
+		this.storage = storage;
+		this.required = new BitSet();
+		for (ComponentType<?> type : required) {
+			this.required.set(type.getIndex());
+		}
+		this.excluded = new BitSet();
+		for (ComponentType<?> type : excluded) {
+			this.excluded.set(type.getIndex());
+		}
+		this.archetypes = new Archetype[4];
+		this.archetypeCount = 0;
+	}
+
+	/**
+	 * Adds the table to the query results if it matches. Must be called while
+	 * holding the storage write lock.
+	 *
+	 * @param archetype the table to check
+	 */
+	void archetypeCreated(Archetype archetype) {
+		if (!this.matches(archetype.signature)) {
+			return;
+		}
+		if (this.archetypeCount >= this.archetypes.length) {
+			this.archetypes =
+				Arrays.copyOf(this.archetypes, this.archetypes.length * 2);
+		}
+		this.archetypes[this.archetypeCount] = archetype;
+		++this.archetypeCount;
+	}
+
+	/**
+	 * Returns the number of entities that currently match the query.
+	 *
+	 * @return the number of matching entities
+	 */
+	public int count() {
+		final long stamp = this.storage.readLock();
+		try {
+			int count = 0;
+			for (int i = 0; i < this.archetypeCount; ++i) {
+				count += this.archetypes[i].size;
+			}
+			return count;
+		}
+		finally {
+			this.storage.unlockRead(stamp);
+		}
+	}
+
+	/**
+	 * Performs an action on each entity that matches the query, passing along
+	 * its component of the given type. The type should be one of the required
+	 * types, or the component will be null.
+	 *
+	 * @param <T> the class of component
+	 * @param type the type of component to pass to the action
+	 * @param action what to do with each entity and component
+	 */
+	public <T extends Component> void forEach(ComponentType<T> type,
+		BiConsumer<? super Entity, ? super T> action) {
+		final int typeIndex = type.getIndex();
+		final long stamp = this.storage.readLock();
+		try {
+			for (int i = 0; i < this.archetypeCount; ++i) {
+				final Archetype archetype = this.archetypes[i];
+				final int column = archetype.column(typeIndex);
+				final Entity[] entities = archetype.entities;
+				final int size = archetype.size;
+				if (column < 0) {
+					for (int row = 0; row < size; ++row) {
+						action.accept(entities[row], null);
+					}
+					continue;
+				}
+				final Component[] components = archetype.columns[column];
+				for (int row = 0; row < size; ++row) {
+					action.accept(entities[row], type.cast(components[row]));
+				}
+			}
+		}
+		finally {
+			this.storage.unlockRead(stamp);
+		}
+	}
+
+	/**
+	 * Performs an action on each entity that matches the query and whose
+	 * component of the given type has {@link Component#changedSince(long)
+	 * changed since} the given tick, passing along that component. Entities
+	 * that do not have the type are skipped.
+	 *
+	 * @param <T> the class of component
+	 * @param type the type of component to check for changes
+	 * @param tick the tick to compare against
+	 * @param action what to do with each changed entity and component
+	 * @see EntityManager#advanceTick()
+	 */
+	public <T extends Component> void forEachChanged(ComponentType<T> type,
+		long tick, BiConsumer<? super Entity, ? super T> action) {
+		final int typeIndex = type.getIndex();
+		final long stamp = this.storage.readLock();
+		try {
+			for (int i = 0; i < this.archetypeCount; ++i) {
+				final Archetype archetype = this.archetypes[i];
+				final int column = archetype.column(typeIndex);
+				if (column < 0) {
+					continue;
+				}
+				final Component[] components = archetype.columns[column];
+				final Entity[] entities = archetype.entities;
+				final int size = archetype.size;
+				for (int row = 0; row < size; ++row) {
+					final Component component = components[row];
+					if (component.changedSince(tick)) {
+						action.accept(entities[row], type.cast(component));
+					}
+				}
+			}
+		}
+		finally {
+			this.storage.unlockRead(stamp);
+		}
+	}
+
+	/**
+	 * Performs an action on each entity that matches the query.
+	 *
+	 * @param action what to do with each entity
+	 */
+	public void forEach(Consumer<? super Entity> action) {
+		final long stamp = this.storage.readLock();
+		try {
+			for (int i = 0; i < this.archetypeCount; ++i) {
+				final Archetype archetype = this.archetypes[i];
+				final Entity[] entities = archetype.entities;
+				final int size = archetype.size;
+				for (int row = 0; row < size; ++row) {
+					action.accept(entities[row]);
+				}
+			}
+		}
+		finally {
+			this.storage.unlockRead(stamp);
+		}
+	}
+
+	/**
+	 * Performs an action on each entity that matches the query, splitting the
+	 * entities into chunks that are processed in parallel. This must be called
+	 * from within a {@link java.util.concurrent.ForkJoinPool ForkJoinPool},
+	 * and the action must be safe to run on several threads at once.
+	 * <p>
+	 * The matching entities are copied while holding the read lock, and the
+	 * lock is released before any task runs. A pool thread that picks up other
+	 * work needing the write lock while waiting on the tasks therefore can't
+	 * deadlock, since the lock is not held across the wait. An entity
+	 * destroyed while the tasks run may still be passed to the action.
+	 * </p>
+	 *
+	 * @param action what to do with each entity
+	 * @param chunkSize the largest number of entities processed in one task
+	 */
+	void forEachParallel(Consumer<? super Entity> action, int chunkSize) {
+		Entity[] matching;
+		final long stamp = this.storage.readLock();
+		try {
+			int count = 0;
+			for (int i = 0; i < this.archetypeCount; ++i) {
+				count += this.archetypes[i].size;
+			}
+			matching = new Entity[count];
+			int copied = 0;
+			for (int i = 0; i < this.archetypeCount; ++i) {
+				final Archetype archetype = this.archetypes[i];
+				System.arraycopy(archetype.entities, 0, matching, copied,
+					archetype.size);
+				copied += archetype.size;
+			}
+		}
+		finally {
+			this.storage.unlockRead(stamp);
+		}
+		if (matching.length > 0) {
+			new ChunkTask(matching, 0, matching.length, Math.max(1, chunkSize),
+				action).invoke();
+		}
+	}
+
+	/**
+	 * Returns true if a table with the given set of types matches the query.
+	 *
+	 * @param signature the types stored by a table
+	 * @return true if all required types are present, and none of the excluded
+	 *         ones are
+	 */
+	boolean matches(BitSet signature) {
+		for (int type = this.required.nextSetBit(0); type >= 0; type =
+			this.required.nextSetBit(type + 1)) {
+			if (!signature.get(type)) {
+				return false;
+			}
+		}
+		return !this.excluded.intersects(signature);
+	}
+}
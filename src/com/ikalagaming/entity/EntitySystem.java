@@ -0,0 +1,128 @@
+package com.ikalagaming.entity;
+
+import com.ikalagaming.entity.component.ComponentType;
+
+import java.util.BitSet;
+
+/**
+ * Game logic that runs every tick over all entities matching a query. Each
+ * system declares which component types it reads and which it writes, so that
+ * the {@link SystemScheduler} can run systems that do not conflict with each
+ * other at the same time.
+ * <p>
+ * The entities a system processes may be split into chunks that are processed
+ * on different threads at once, so {@link #process(Entity)} must be safe to
+ * call concurrently for different entities. It must also only touch the
+ * component types that were declared. Adding or removing components, and
+ * creating or destroying entities, must be recorded in the
+ * {@link #getCommands() command buffer} rather than done directly, and will
+ * happen at the end of the tick.
+ * </p>
+ *
+ * @author Ches Burks
+ *
+ */
+public abstract class EntitySystem {
+	/**
+	 * The default number of entities to process in one chunk. ({@value})
+	 */
+	public static final int DEFAULT_CHUNK_SIZE = 256;
+
+	private final EntityQuery query;
+
+	private final BitSet reads;
+
+	private final BitSet writes;
+
+	/**
+	 * The scheduler this system was added to, or null if it has not been.
+	 */
+	private volatile SystemScheduler scheduler;
+
+	/**
+	 * Creates a system that processes the entities matching the query.
+	 *
+	 * @param query the entities to process
+	 * @param reads the component types the system only reads
+	 * @param writes the component types the system changes
+	 */
+	protected EntitySystem(EntityQuery query, ComponentType<?>[] reads,
+		ComponentType<?>[] writes) {
+		this.query = query;
+		this.reads = new BitSet();
+		for (ComponentType<?> type : reads) {
+			this.reads.set(type.getIndex());
+		}
+		this.writes = new BitSet();
+		for (ComponentType<?> type : writes) {
+			this.writes.set(type.getIndex());
+		}
+	}
+
+	/**
+	 * Returns true if this system and the other may not run at the same time,
+	 * because one of them writes to a component type the other uses.
+	 *
+	 * @param other the other system
+	 * @return true if they conflict, false if they can run concurrently
+	 */
+	public boolean conflictsWith(EntitySystem other) {
+		return this.writes.intersects(other.writes)
+			|| this.writes.intersects(other.reads)
+			|| other.writes.intersects(this.reads);
+	}
+
+	/**
+	 * Returns the command buffer for the current thread, which is used to
+	 * record structural changes while processing. The system must have been
+	 * added to a scheduler.
+	 *
+	 * @return the command buffer to record changes in
+	 * @throws IllegalStateException if the system is not in a scheduler
+	 */
+	protected CommandBuffer getCommands() {
+		final SystemScheduler current = this.scheduler;
+		if (current == null) {
+			throw new IllegalStateException(
+				"The system has not been added to a scheduler");
+		}
+		return current.getCommandBuffer();
+	}
+
+	/**
+	 * Returns how many entities are processed together in one chunk. Chunks
+	 * may run on different threads. Returning {@link Integer#MAX_VALUE} keeps
+	 * each table of entities on a single thread.
+	 *
+	 * @return the number of entities in one chunk
+	 */
+	public int getChunkSize() {
+		return EntitySystem.DEFAULT_CHUNK_SIZE;
+	}
+
+	/**
+	 * Returns the query for the entities this system processes.
+	 *
+	 * @return the query
+	 */
+	public EntityQuery getQuery() {
+		return this.query;
+	}
+
+	/**
+	 * Updates a single entity. This may be called from several threads at
+	 * once for different entities.
+	 *
+	 * @param entity the entity to update
+	 */
+	public abstract void process(Entity entity);
+
+	/**
+	 * Sets the scheduler that runs this system.
+	 *
+	 * @param scheduler the scheduler, or null if it was removed
+	 */
+	void setScheduler(SystemScheduler scheduler) {
+		this.scheduler = scheduler;
+	}
+}
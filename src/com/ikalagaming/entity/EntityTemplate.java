@@ -0,0 +1,74 @@
+package com.ikalagaming.entity;
+
+import com.ikalagaming.entity.component.Component;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Function;
+
+/**
+ * A description of an entity that can be used to spawn many entities at once
+ * with {@link Entity#spawn(int, EntityTemplate)}. Each spawned entity gets its
+ * own components, created by the factories added to the template.
+ * <p>
+ * Every factory should always produce the same type of component, so that all
+ * of the spawned entities end up with the same set of component types and can
+ * be stored together in one step.
+ * </p>
+ *
+ * @author Ches Burks
+ *
+ */
+public class EntityTemplate {
+	private final String nameHint;
+
+	private List<Function<Entity, ? extends Component>> componentFactories;
+
+	/**
+	 * Creates a template for entities with the given base name, and no
+	 * components.
+	 *
+	 * @param nameHint the base name of the entities
+	 */
+	public EntityTemplate(String nameHint) {
+		this.nameHint = nameHint;
+		this.componentFactories = new ArrayList<>();
+	}
+
+	/**
+	 * Adds a component to the template. The factory is called once for each
+	 * spawned entity, and is given the entity so that components that need to
+	 * know their owner can be created.
+	 *
+	 * @param factory creates a new component for the given entity
+	 * @return this template, so calls can be chained
+	 */
+	public EntityTemplate addComponent(
+		Function<Entity, ? extends Component> factory) {
+		this.componentFactories.add(factory);
+		return this;
+	}
+
+	/**
+	 * Creates the components for one entity.
+	 *
+	 * @param owner the entity the components will belong to
+	 * @return a new array of components
+	 */
+	Component[] createComponents(Entity owner) {
+		Component[] components = new Component[this.componentFactories.size()];
+		for (int i = 0; i < components.length; ++i) {
+			components[i] = this.componentFactories.get(i).apply(owner);
+		}
+		return components;
+	}
+
+	/**
+	 * Returns the base name of the entities created from this template.
+	 *
+	 * @return the base name
+	 */
+	public String getNameHint() {
+		return this.nameHint;
+	}
+}
@@ -1,5 +1,7 @@
 package com.ikalagaming.entity;
 
+import java.util.concurrent.locks.Lock;
+
 /**
  * An interface for entities that own currency and can perform transactions.
  * Implementations of this should make sure to account for thread safety.
@@ -22,6 +24,27 @@ public interface ICurrencyHolder {
 	 */
 	public int getCurrency();
 
+	/**
+	 * Returns the lock that guards the currency. It must be held while the
+	 * currency is read or changed, and it must be reentrant, since
+	 * {@link CurrencyTransfer} holds the locks of both holders while calling
+	 * {@link #getCurrency()} and {@link #setCurrency(int)}.
+	 *
+	 * @return the currency lock
+	 */
+	public Lock getCurrencyLock();
+
+	/**
+	 * Returns the ledger account that durably keeps the currency, if there is
+	 * one. Transfers between holders backed by accounts of the same ledger are
+	 * logged as a single change.
+	 *
+	 * @return the account, or null if the currency is only kept in memory
+	 */
+	public default CurrencyLedger.Account getLedgerAccount() {
+		return null;
+	}
+
 	/**
 	 * Removes the given amount of currency.
 	 *
@@ -38,19 +61,27 @@ public interface ICurrencyHolder {
 
 	/**
 	 * Move currency from the given {@link ICurrencyHolder} to this one. This
-	 * removes currency from the other and adds it to this one.
+	 * removes currency from the other and adds it to this one, as a single
+	 * step. Nothing is moved if the other does not have enough or this one
+	 * would overflow.
 	 *
 	 * @param other The currencyHolder to remove from
 	 * @param amount How much to transfer
+	 * @return true if the currency was moved, false if it could not be
+	 * @see CurrencyTransfer#transfer(ICurrencyHolder, ICurrencyHolder, int)
 	 */
-	public void transferCurrencyFrom(ICurrencyHolder other, int amount);
+	public boolean transferCurrencyFrom(ICurrencyHolder other, int amount);
 
 	/**
 	 * Move currency from this {@link ICurrencyHolder} to the supplied one. This
-	 * removes currency from this and adds it to the other one.
+	 * removes currency from this and adds it to the other one, as a single
+	 * step. Nothing is moved if this does not have enough or the other one
+	 * would overflow.
 	 *
 	 * @param other The currencyHolder to add to
 	 * @param amount How much to transfer
+	 * @return true if the currency was moved, false if it could not be
+	 * @see CurrencyTransfer#transfer(ICurrencyHolder, ICurrencyHolder, int)
 	 */
-	public void transferCurrencyTo(ICurrencyHolder other, int amount);
+	public boolean transferCurrencyTo(ICurrencyHolder other, int amount);
 }
@@ -5,20 +5,55 @@ import com.ikalagaming.item.ItemStack;
 /**
  * A slot in an inventory that holds an {@link ItemStack ItemStack}. This may be
  * empty.
+ * <p>
+ * Slots can also be {@link #readOnly(ItemStack) read only}, which is how
+ * inventories hand out their slots. A read only slot holds a copy of what was
+ * in the inventory, can't be changed, and returns a new copy of its stack
+ * every time, so nothing done to it can change the inventory behind its back.
+ * </p>
  *
  * @author Ches Burks
  *
  */
 public class InventorySlot {
+	/**
+	 * Creates a slot that holds a copy of the given stack and can't be
+	 * changed.
+	 *
+	 * @param stack The stack to copy, which may be null or empty
+	 * @return A read only slot holding a copy of the stack
+	 */
+	public static InventorySlot readOnly(ItemStack stack) {
+		return new InventorySlot(stack == null || stack.isEmpty()
+				? new ItemStack(null, 0) : stack.clone(), true);
+	}
+
 	private ItemStack itemStack;
 
+	/**
+	 * True if the slot can't be changed.
+	 */
+	private final boolean readOnly;
+
 	/**
 	 * Constructs an empty InventorySlot.
 	 */
 	public InventorySlot() {
+		this.readOnly = false;
 		this.setEmpty();
 	}
 
+	/**
+	 * Constructs a slot holding the given stack.
+	 *
+	 * @param stack The stack to hold
+	 * @param readOnly True if the slot can't be changed
+	 */
+	private InventorySlot(ItemStack stack, boolean readOnly) {
+		this.itemStack = stack;
+		this.readOnly = readOnly;
+	}
+
 	/**
 	 * Returns true if the other stack can stack with this item type, and this
 	 * stack has enough space to accommodate the other stack.
@@ -51,6 +86,7 @@ public class InventorySlot {
 	 * @return A stack of overflow items
 	 */
 	public ItemStack combineItemStacks(ItemStack toAdd) {
+		this.checkWritable();
 		// if the items are different, replace the old ones and add a new one.
 		if (!toAdd.getItem().canStackWith(this.itemStack.getItem())) {
 			ItemStack overflow = this.itemStack;
@@ -62,11 +98,25 @@ public class InventorySlot {
 	}
 
 	/**
-	 * Returns the pointer to the ItemStack object.
+	 * Throws if the slot is read only.
+	 */
+	private void checkWritable() {
+		if (this.readOnly) {
+			throw new UnsupportedOperationException(
+					"Read only slots can't be changed");
+		}
+	}
+
+	/**
+	 * Returns the pointer to the ItemStack object. For a read only slot, this
+	 * is a new copy every time.
 	 *
 	 * @return The current ItemStack
 	 */
 	public ItemStack getItemStack() {
+		if (this.readOnly) {
+			return this.itemStack.clone();
+		}
 		return this.itemStack;
 	}
 
@@ -79,13 +129,39 @@ public class InventorySlot {
 		return this.itemStack.isEmpty();
 	}
 
+	/**
+	 * Returns true if the slot can't be changed.
+	 *
+	 * @return True if this is read only
+	 * @see #readOnly(ItemStack)
+	 */
+	public boolean isReadOnly() {
+		return this.readOnly;
+	}
+
+	/**
+	 * Removes everything from the current stack without replacing it, so
+	 * nothing is created.
+	 */
+	public void clear() {
+		this.checkWritable();
+		this.itemStack.setItem(null, 0);
+	}
+
 	/**
 	 * Sets the current stack to nothing and returns the old stack if it exists.
+	 * If the slot was already empty, nothing is created and the shared
+	 * {@link ItemStack#EMPTY} stack is returned.
 	 *
 	 * @return The old stack. This may be null.
+	 * @see #clear()
 	 */
 	public ItemStack setEmpty() {
+		this.checkWritable();
 		ItemStack oldStack = this.itemStack;
+		if (oldStack != null && oldStack.isEmpty()) {
+			return ItemStack.EMPTY;
+		}
 		this.itemStack = ItemStack.getEmptyStack();
 		return oldStack;
 	}
@@ -103,6 +179,7 @@ public class InventorySlot {
 	 * @return The stack that was replaced. This may not contain items.
 	 */
 	public ItemStack setItemStack(ItemStack newStack) {
+		this.checkWritable();
 		ItemStack oldStack;// the old stack to be returned
 
 		if (this.itemStack == null) {
@@ -113,7 +190,8 @@ public class InventorySlot {
 			oldStack = this.itemStack;
 		}
 
-		if (newStack == null) {
+		if (newStack == null || newStack == ItemStack.EMPTY) {
+			// slots change their stacks, so they can't hold the shared one
 			this.itemStack = new ItemStack(null, 0);
 		}
 		else {
@@ -127,18 +205,20 @@ public class InventorySlot {
 	 * Tries to take the requested amount of items from the stack and return it
 	 * in a new stack. If too many items are requested then it will return as
 	 * many as the stack currently has. The current stack size is reduced
-	 * appropriately. A negative or 0 value will return an empty stack.
+	 * appropriately. A negative or 0 value will return the shared
+	 * {@link ItemStack#EMPTY} stack.
 	 *
 	 * @param count The amount of items to take
 	 * @return The items that were removed, in a stack form
 	 */
 	public ItemStack takeItems(int count) {
+		this.checkWritable();
 		ItemStack toReturn;
 		if (count <= 0) {
-			toReturn = new ItemStack(null, 0);
+			toReturn = ItemStack.EMPTY;
 		}
 		else if (this.itemStack == null) {
-			toReturn = new ItemStack(null, 0);
+			toReturn = ItemStack.EMPTY;
 		}
 		else if (this.itemStack.getAmount() <= count) {
 			/*
@@ -155,7 +235,7 @@ public class InventorySlot {
 			 */
 			toReturn = new ItemStack(this.itemStack.getItem(), count);
 			// remove the items from the old stack
-			this.itemStack.removeItems(count);
+			this.itemStack.changeAmount(-count);
 		}
 
 		return toReturn;
@@ -1,9 +1,11 @@
 package com.ikalagaming.entity;
 
+import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
 import com.ikalagaming.entity.component.Health;
 import com.ikalagaming.entity.component.Inventory;
+import com.ikalagaming.entity.component.Resources;
 
 /**
  * A player in the game which might be controlled by a human. Humanoid NPC's
@@ -16,7 +18,11 @@ import com.ikalagaming.entity.component.Inventory;
 public class Player extends Entity implements ICurrencyHolder {
 
 	private int currency;
-	private ReentrantLock currencyLock = new ReentrantLock();
+	private final ReentrantLock currencyLock = new ReentrantLock();
+	/**
+	 * The ledger account that keeps the currency instead, if there is one.
+	 */
+	private volatile CurrencyLedger.Account ledgerAccount;
 	private final static int INVENTORY_SIZE = 32;
 
 	/**
@@ -36,10 +42,16 @@ public class Player extends Entity implements ICurrencyHolder {
 		super(nameHint);
 		this.addComponent(new Health());
 		this.addComponent(new Inventory(INVENTORY_SIZE));
+		this.addComponent(new Resources());
 	}
 
 	@Override
 	public void addCurency(int amount) {
+		CurrencyLedger.Account account = ledgerAccount;
+		if (account != null) {
+			account.addCurency(amount);
+			return;
+		}
 		if (amount <= 0) {
 			return;
 		}
@@ -55,6 +67,10 @@ public class Player extends Entity implements ICurrencyHolder {
 
 	@Override
 	public int getCurrency() {
+		CurrencyLedger.Account account = ledgerAccount;
+		if (account != null) {
+			return account.getCurrency();
+		}
 		int amt = 0;
 		currencyLock.lock();
 		try {
@@ -66,8 +82,27 @@ public class Player extends Entity implements ICurrencyHolder {
 		return amt;
 	}
 
+	@Override
+	public Lock getCurrencyLock() {
+		CurrencyLedger.Account account = ledgerAccount;
+		if (account != null) {
+			return account.getCurrencyLock();
+		}
+		return currencyLock;
+	}
+
+	@Override
+	public CurrencyLedger.Account getLedgerAccount() {
+		return ledgerAccount;
+	}
+
 	@Override
 	public void removeCurrency(int amount) {
+		CurrencyLedger.Account account = ledgerAccount;
+		if (account != null) {
+			account.removeCurrency(amount);
+			return;
+		}
 		if (amount <= 0) {
 			return;
 		}
@@ -80,8 +115,23 @@ public class Player extends Entity implements ICurrencyHolder {
 		}
 	}
 
+	/**
+	 * Clears out the currency of the player. A ledger account is detached
+	 * rather than emptied, since it belongs to whoever was playing.
+	 */
+	@Override
+	protected void reset() {
+		ledgerAccount = null;
+		this.setCurrency(0);
+	}
+
 	@Override
 	public void setCurrency(int amount) {
+		CurrencyLedger.Account account = ledgerAccount;
+		if (account != null) {
+			account.setCurrency(amount);
+			return;
+		}
 		currencyLock.lock();
 		try {
 			currency = amount;
@@ -91,16 +141,28 @@ public class Player extends Entity implements ICurrencyHolder {
 		}
 	}
 
+	/**
+	 * Keeps the currency of this player in a ledger account, so that it
+	 * survives a crash. Any currency the player had in memory is left behind
+	 * and the balance of the account is used from then on. This should be done
+	 * before the player starts trading, since it is not atomic with transfers
+	 * already in progress.
+	 *
+	 * @param account the account to use, or null to go back to keeping the
+	 *            currency in memory
+	 */
+	public void setLedgerAccount(CurrencyLedger.Account account) {
+		ledgerAccount = account;
+	}
+
 	@Override
-	public void transferCurrencyFrom(ICurrencyHolder other, int amount) {
-		other.removeCurrency(amount);// hopefully this is thread-safe
-		this.addCurency(amount);
+	public boolean transferCurrencyFrom(ICurrencyHolder other, int amount) {
+		return CurrencyTransfer.transfer(other, this, amount);
 	}
 
 	@Override
-	public void transferCurrencyTo(ICurrencyHolder other, int amount) {
-		this.removeCurrency(amount);// hopefully this is thread-safe
-		other.addCurency(amount);
+	public boolean transferCurrencyTo(ICurrencyHolder other, int amount) {
+		return CurrencyTransfer.transfer(this, other, amount);
 	}
 
 }
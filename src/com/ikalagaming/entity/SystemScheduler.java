@@ -0,0 +1,262 @@
+package com.ikalagaming.entity;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Runs {@link EntitySystem systems} every tick, using several threads. Systems
+ * run in the order they were added, except that any two systems which do not
+ * {@link EntitySystem#conflictsWith(EntitySystem) conflict} may run at the
+ * same time. A system will always see the changes made by every conflicting
+ * system that was added before it. Within a single system, entities are split
+ * into chunks which are also processed in parallel.
+ * <p>
+ * Systems may not change the structure of entities while they run, so each
+ * thread has a {@link CommandBuffer} to record those changes in. Buffers can
+ * only be used by the threads running systems, while a tick is running, so
+ * nothing can still be writing to them when they are all played back once
+ * every system has finished. The buffers of threads that have since stopped
+ * are dropped.
+ * </p>
+ *
+ * @author Ches Burks
+ *
+ */
+public class SystemScheduler {
+	private final ForkJoinPool pool;
+
+	/**
+	 * Submits work to the pool. This is used instead of the pool itself so
+	 * that systems always run on its threads, since completable futures run
+	 * tasks on new threads instead of a common pool that has only one thread.
+	 */
+	private final Executor executor;
+
+	/**
+	 * The thread running the current tick, or null if systems are not being
+	 * run right now.
+	 */
+	private volatile Thread ticking;
+
+	private ArrayList<EntitySystem> systems;
+
+	private ReentrantLock systemLock;
+
+	/**
+	 * Every buffer that has been handed out, by the thread it belongs to.
+	 * Guarded by the buffer lock.
+	 */
+	private HashMap<Thread, CommandBuffer> buffers;
+
+	private ReentrantLock bufferLock;
+
+	private final ThreadLocal<CommandBuffer> threadBuffers;
+
+	/**
+	 * Creates a scheduler that runs systems on the common fork join pool.
+	 */
+	public SystemScheduler() {
+		this(ForkJoinPool.commonPool());
+	}
+
+	/**
+	 * Creates a scheduler that runs systems on the given pool.
+	 *
+	 * @param pool the threads to run systems on
+	 */
+	public SystemScheduler(ForkJoinPool pool) {
+		this.pool = pool;
+		this.executor = pool::execute;
+		this.systems = new ArrayList<>();
+		this.systemLock = new ReentrantLock();
+		this.buffers = new HashMap<>();
+		this.bufferLock = new ReentrantLock();
+		this.threadBuffers = ThreadLocal.withInitial(this::createBuffer);
+	}
+
+	/**
+	 * Adds a system to the end of the list of systems to run.
+	 *
+	 * @param system the system to add
+	 */
+	public void addSystem(EntitySystem system) {
+		this.systemLock.lock();
+		try {
+			this.systems.add(system);
+			system.setScheduler(this);
+		}
+		finally {
+			this.systemLock.unlock();
+		}
+	}
+
+	/**
+	 * Creates a command buffer for the current thread and remembers it so that
+	 * it is played back at the end of each tick.
+	 *
+	 * @return the new buffer
+	 */
+	private CommandBuffer createBuffer() {
+		CommandBuffer buffer = new CommandBuffer();
+		this.bufferLock.lock();
+		try {
+			this.buffers.put(Thread.currentThread(), buffer);
+		}
+		finally {
+			this.bufferLock.unlock();
+		}
+		return buffer;
+	}
+
+	/**
+	 * Returns the command buffer for the current thread. Changes recorded in
+	 * it are made at the end of the current tick. This can only be called by
+	 * systems while they are running, since the buffer is played back as soon
+	 * as they are done.
+	 *
+	 * @return the buffer for this thread
+	 * @throws IllegalStateException if the current thread is not running
+	 *             systems for this scheduler
+	 */
+	public CommandBuffer getCommandBuffer() {
+		if (!this.isRunningSystems()) {
+			throw new IllegalStateException(
+				"Commands can only be recorded while systems run");
+		}
+		return this.threadBuffers.get();
+	}
+
+	/**
+	 * Checks if the current thread may be running systems, which is true for
+	 * the threads of the pool and the thread that started the tick, but only
+	 * while systems are running.
+	 *
+	 * @return true if the current thread may be running a system
+	 */
+	private boolean isRunningSystems() {
+		final Thread current = Thread.currentThread();
+		final Thread tickThread = this.ticking;
+		if (tickThread == null) {
+			return false;
+		}
+		if (current == tickThread) {
+			return true;
+		}
+		return current instanceof ForkJoinWorkerThread
+			&& ((ForkJoinWorkerThread) current).getPool() == this.pool;
+	}
+
+	/**
+	 * Removes a system so that it no longer runs.
+	 *
+	 * @param system the system to remove
+	 */
+	public void removeSystem(EntitySystem system) {
+		this.systemLock.lock();
+		try {
+			if (this.systems.remove(system)) {
+				system.setScheduler(null);
+			}
+		}
+		finally {
+			this.systemLock.unlock();
+		}
+	}
+
+	/**
+	 * Runs every system once, waiting until they have all finished. Each
+	 * system waits for the conflicting systems before it to finish, and then
+	 * is started on the pool. Once all systems are done, the command buffers
+	 * are played back, flags are {@link EntityHierarchy#propagate()
+	 * propagated} to children, and the {@link EntityManager#advanceTick()
+	 * tick} is advanced. If a system fails, the changes recorded during this
+	 * tick are thrown away instead. Only systems can record changes, so no
+	 * other changes are lost.
+	 *
+	 * @throws CompletionException if a system throws an exception
+	 */
+	public void tick() {
+		EntitySystem[] toRun;
+		this.systemLock.lock();
+		try {
+			toRun = this.systems.toArray(new EntitySystem[0]);
+		}
+		finally {
+			this.systemLock.unlock();
+		}
+
+		this.ticking = Thread.currentThread();
+		List<CompletableFuture<Void>> running = new ArrayList<>(toRun.length);
+		ArrayList<CompletableFuture<Void>> dependencies = new ArrayList<>();
+		for (int i = 0; i < toRun.length; ++i) {
+			final EntitySystem system = toRun[i];
+			dependencies.clear();
+			for (int j = 0; j < i; ++j) {
+				if (system.conflictsWith(toRun[j])) {
+					dependencies.add(running.get(j));
+				}
+			}
+			final Runnable work = () -> system.getQuery()
+				.forEachParallel(system::process, system.getChunkSize());
+			if (dependencies.isEmpty()) {
+				running.add(CompletableFuture.runAsync(work, this.executor));
+			}
+			else {
+				running.add(CompletableFuture
+					.allOf(dependencies.toArray(new CompletableFuture<?>[0]))
+					.thenRunAsync(work, this.executor));
+			}
+		}
+		CompletionException failure = null;
+		try {
+			CompletableFuture
+				.allOf(running.toArray(new CompletableFuture<?>[0])).join();
+		}
+		catch (CompletionException e) {
+			failure = e;
+		}
+		finally {
+			this.ticking = null;
+		}
+
+		/*
+		 * Every system is done, so nothing can write to the buffers now.
+		 * Buffers may have been created by threads during the tick. Threads
+		 * that have stopped can't record anything more, so their buffers are
+		 * played back one last time and then forgotten.
+		 */
+		ArrayList<CommandBuffer> toPlay;
+		this.bufferLock.lock();
+		try {
+			toPlay = new ArrayList<>(this.buffers.values());
+			Iterator<Map.Entry<Thread, CommandBuffer>> entries =
+				this.buffers.entrySet().iterator();
+			while (entries.hasNext()) {
+				if (!entries.next().getKey().isAlive()) {
+					entries.remove();
+				}
+			}
+		}
+		finally {
+			this.bufferLock.unlock();
+		}
+		if (failure != null) {
+			for (CommandBuffer buffer : toPlay) {
+				buffer.clear();
+			}
+			throw failure;
+		}
+		CommandBuffer.playback(toPlay);
+		EntityManager.getInstance().getHierarchy().propagate();
+		EntityManager.getInstance().advanceTick();
+	}
+}
@@ -0,0 +1,267 @@
+package com.ikalagaming.entity;
+
+import com.ikalagaming.entity.component.Inventory;
+import com.ikalagaming.item.Item;
+
+import java.util.Arrays;
+
+/**
+ * A set of currency payments and item moves between any number of parties that
+ * must all happen, or none of them. Trades are settled by
+ * {@link TradeSettlement}, which sets the {@link #getStatus() status} to say
+ * whether the trade went through or why it could not.
+ * <p>
+ * A trade should be fully built before it is submitted, and not changed
+ * afterwards.
+ * </p>
+ *
+ * @author Ches Burks
+ *
+ */
+public class Trade {
+	/**
+	 * The outcome of settling a trade.
+	 */
+	public enum Status {
+		/**
+		 * The trade has not been settled yet.
+		 */
+		PENDING,
+		/**
+		 * Everything in the trade was moved.
+		 */
+		SETTLED,
+		/**
+		 * Someone would have ended up with less than no currency.
+		 */
+		INSUFFICIENT_CURRENCY,
+		/**
+		 * Someone would have ended up with more currency than can be held.
+		 */
+		CURRENCY_OVERFLOW,
+		/**
+		 * A slot no longer held the items being traded, usually because an
+		 * earlier trade or something else already moved them.
+		 */
+		MISSING_ITEMS,
+		/**
+		 * An inventory did not have room for the items it was receiving.
+		 */
+		NO_ROOM;
+	}
+
+	private static final int INITIAL_CAPACITY = 4;
+
+	private ICurrencyHolder[] payers;
+
+	private ICurrencyHolder[] payees;
+
+	private int[] payments;
+
+	private int paymentCount;
+
+	private Inventory[] sources;
+
+	private int[] sourceSlots;
+
+	private Item[] items;
+
+	private int[] itemCounts;
+
+	private Inventory[] destinations;
+
+	private int moveCount;
+
+	private volatile Status status;
+
+	/**
+	 * Creates an empty trade.
+	 */
+	public Trade() {
+		this.payers = new ICurrencyHolder[Trade.INITIAL_CAPACITY];
+		this.payees = new ICurrencyHolder[Trade.INITIAL_CAPACITY];
+		this.payments = new int[Trade.INITIAL_CAPACITY];
+		this.paymentCount = 0;
+		this.sources = new Inventory[Trade.INITIAL_CAPACITY];
+		this.sourceSlots = new int[Trade.INITIAL_CAPACITY];
+		this.items = new Item[Trade.INITIAL_CAPACITY];
+		this.itemCounts = new int[Trade.INITIAL_CAPACITY];
+		this.destinations = new Inventory[Trade.INITIAL_CAPACITY];
+		this.moveCount = 0;
+		this.status = Status.PENDING;
+	}
+
+	/**
+	 * Adds a move of items from a slot of one inventory to another inventory.
+	 * The items are added to stacks of the same item first, and then to empty
+	 * slots.
+	 *
+	 * @param from the inventory the items are in
+	 * @param slot the index of the slot holding the items
+	 * @param item the item expected to be in the slot
+	 * @param count how many of the items to move
+	 * @param to the inventory to move the items to
+	 * @throws IllegalArgumentException if the count is not positive
+	 */
+	public void addItems(Inventory from, int slot, Item item, int count,
+		Inventory to) {
+		if (count <= 0) {
+			throw new IllegalArgumentException();
+		}
+		if (this.moveCount >= this.sources.length) {
+			final int capacity = this.sources.length * 2;
+			this.sources = Arrays.copyOf(this.sources, capacity);
+			this.sourceSlots = Arrays.copyOf(this.sourceSlots, capacity);
+			this.items = Arrays.copyOf(this.items, capacity);
+			this.itemCounts = Arrays.copyOf(this.itemCounts, capacity);
+			this.destinations = Arrays.copyOf(this.destinations, capacity);
+		}
+		this.sources[this.moveCount] = from;
+		this.sourceSlots[this.moveCount] = slot;
+		this.items[this.moveCount] = item;
+		this.itemCounts[this.moveCount] = count;
+		this.destinations[this.moveCount] = to;
+		++this.moveCount;
+	}
+
+	/**
+	 * Adds a payment of currency from one holder to another.
+	 *
+	 * @param from the holder paying
+	 * @param to the holder being paid
+	 * @param amount how much is paid
+	 * @throws IllegalArgumentException if the amount is negative
+	 */
+	public void addPayment(ICurrencyHolder from, ICurrencyHolder to,
+		int amount) {
+		if (amount < 0) {
+			throw new IllegalArgumentException();
+		}
+		if (this.paymentCount >= this.payers.length) {
+			final int capacity = this.payers.length * 2;
+			this.payers = Arrays.copyOf(this.payers, capacity);
+			this.payees = Arrays.copyOf(this.payees, capacity);
+			this.payments = Arrays.copyOf(this.payments, capacity);
+		}
+		this.payers[this.paymentCount] = from;
+		this.payees[this.paymentCount] = to;
+		this.payments[this.paymentCount] = amount;
+		++this.paymentCount;
+	}
+
+	/**
+	 * Returns the inventory receiving a move.
+	 *
+	 * @param index which move
+	 * @return the destination inventory
+	 */
+	Inventory getDestination(int index) {
+		return this.destinations[index];
+	}
+
+	/**
+	 * Returns the item being moved.
+	 *
+	 * @param index which move
+	 * @return the item
+	 */
+	Item getItem(int index) {
+		return this.items[index];
+	}
+
+	/**
+	 * Returns how many items are being moved.
+	 *
+	 * @param index which move
+	 * @return the number of items
+	 */
+	int getItemCount(int index) {
+		return this.itemCounts[index];
+	}
+
+	/**
+	 * Returns the number of item moves in the trade.
+	 *
+	 * @return how many moves there are
+	 */
+	int getMoveCount() {
+		return this.moveCount;
+	}
+
+	/**
+	 * Returns the holder being paid.
+	 *
+	 * @param index which payment
+	 * @return the payee
+	 */
+	ICurrencyHolder getPayee(int index) {
+		return this.payees[index];
+	}
+
+	/**
+	 * Returns the holder paying.
+	 *
+	 * @param index which payment
+	 * @return the payer
+	 */
+	ICurrencyHolder getPayer(int index) {
+		return this.payers[index];
+	}
+
+	/**
+	 * Returns how much is paid.
+	 *
+	 * @param index which payment
+	 * @return the amount
+	 */
+	int getPayment(int index) {
+		return this.payments[index];
+	}
+
+	/**
+	 * Returns the number of payments in the trade.
+	 *
+	 * @return how many payments there are
+	 */
+	int getPaymentCount() {
+		return this.paymentCount;
+	}
+
+	/**
+	 * Returns the inventory items are moved out of.
+	 *
+	 * @param index which move
+	 * @return the source inventory
+	 */
+	Inventory getSource(int index) {
+		return this.sources[index];
+	}
+
+	/**
+	 * Returns the index of the slot items are moved out of.
+	 *
+	 * @param index which move
+	 * @return the source slot
+	 */
+	int getSourceSlot(int index) {
+		return this.sourceSlots[index];
+	}
+
+	/**
+	 * Returns whether the trade has been settled, and if it could not be, why.
+	 *
+	 * @return the status of the trade
+	 */
+	public Status getStatus() {
+		return this.status;
+	}
+
+	/**
+	 * Records the outcome of settling the trade.
+	 *
+	 * @param newStatus the outcome
+	 */
+	void setStatus(Status newStatus) {
+		this.status = newStatus;
+	}
+}
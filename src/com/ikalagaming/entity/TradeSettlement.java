@@ -0,0 +1,397 @@
+package com.ikalagaming.entity;
+
+import com.ikalagaming.entity.component.Inventory;
+import com.ikalagaming.item.Item;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * Settles {@link Trade trades}, moving all of the currency and items in each
+ * one or none of them.
+ * <p>
+ * Trades can be submitted from any thread, and are settled in the order they
+ * were submitted when {@link #settlePending()} is called, typically once per
+ * tick. If an earlier trade already moved the items or currency a later one
+ * needed, the later one fails with a status saying why, and nothing in it is
+ * changed.
+ * </p>
+ * <p>
+ * Each trade only locks the inventories and currency holders taking part in
+ * it, always in the same global order, so trades between different players
+ * can be settled on different threads at once without deadlocking. Currency
+ * locks are ordered the same way as by {@link CurrencyTransfer}, so transfers
+ * and trades can be mixed freely. Inventory locks are ordered by the identity
+ * of the inventory rather than its owner, since an inventory can be moved to
+ * another entity and entity ids change when pooled entities are reused.
+ * Holders or inventories that can't be told apart fall back to the same tie
+ * lock that transfers use. Everything is checked and changed while all of
+ * the locks are held, and any item changes are undone if a later part of the
+ * trade fails.
+ * </p>
+ *
+ * @author Ches Burks
+ *
+ */
+public class TradeSettlement {
+	/**
+	 * A lock that needs to be held to settle a trade, and where it goes in the
+	 * global order.
+	 */
+	private static class OrderedLock {
+		final Lock lock;
+		final long order;
+		/**
+		 * 0 for currency, 1 for inventories.
+		 */
+		final int kind;
+
+		OrderedLock(Lock lock, long order, int kind) {
+			this.lock = lock;
+			this.order = order;
+			this.kind = kind;
+		}
+	}
+
+	/**
+	 * What a slot held before the trade changed it, so it can be put back.
+	 */
+	private static class SlotChange {
+		final Inventory inventory;
+		final int index;
+		final Item item;
+		final int amount;
+
+		SlotChange(Inventory inventory, int index) {
+			this.inventory = inventory;
+			this.index = index;
+			this.item = inventory.getItem(index);
+			this.amount = inventory.getAmount(index);
+		}
+	}
+
+	private static final Comparator<OrderedLock> LOCK_ORDER =
+		Comparator.<OrderedLock>comparingLong(held -> held.order)
+			.thenComparingInt(held -> held.kind);
+
+	/**
+	 * Adds a lock to the map of locks to take, if it is not there already.
+	 *
+	 * @param locks the locks found so far
+	 * @param lock the lock
+	 * @param order where the lock goes in the global order
+	 * @param kind 0 for currency, 1 for inventories
+	 */
+	private static void addLock(Map<Lock, OrderedLock> locks, Lock lock,
+		long order, int kind) {
+		if (!locks.containsKey(lock)) {
+			locks.put(lock, new OrderedLock(lock, order, kind));
+		}
+	}
+
+	/**
+	 * Moves items into an inventory, filling stacks of the same item first
+	 * and then empty slots.
+	 *
+	 * @param inventory the inventory to add to
+	 * @param item the item to add
+	 * @param count how many to add
+	 * @param changes where to record the slots that are changed
+	 * @return true if everything fit, false if there was not enough room
+	 */
+	private static boolean addToInventory(Inventory inventory, Item item,
+		int count, List<SlotChange> changes) {
+		int remaining = count;
+		int i = inventory.nextPartialStack(item, 0);
+		while (remaining > 0 && i >= 0) {
+			final Item stacked = inventory.getItem(i);
+			final int amount = inventory.getAmount(i);
+			final int added =
+				Math.min(remaining, stacked.getMaxStackSize() - amount);
+			changes.add(new SlotChange(inventory, i));
+			inventory.setSlot(i, stacked, amount + added);
+			remaining -= added;
+			i = inventory.nextPartialStack(item, i + 1);
+		}
+		i = inventory.nextFreeSlot(0);
+		while (remaining > 0 && i >= 0) {
+			final int added = Math.min(item.getMaxStackSize(), remaining);
+			changes.add(new SlotChange(inventory, i));
+			inventory.setSlot(i, item, added);
+			remaining -= added;
+			i = inventory.nextFreeSlot(i + 1);
+		}
+		return remaining == 0;
+	}
+
+	/**
+	 * Finds every lock the trade needs, in the order they must be taken.
+	 *
+	 * @param trade the trade
+	 * @return the locks to take
+	 */
+	private static List<OrderedLock> findLocks(Trade trade) {
+		Map<Lock, OrderedLock> locks = new IdentityHashMap<>();
+		for (int i = 0; i < trade.getPaymentCount(); ++i) {
+			ICurrencyHolder payer = trade.getPayer(i);
+			ICurrencyHolder payee = trade.getPayee(i);
+			TradeSettlement.addLock(locks, payer.getCurrencyLock(),
+				CurrencyTransfer.orderOf(payer), 0);
+			TradeSettlement.addLock(locks, payee.getCurrencyLock(),
+				CurrencyTransfer.orderOf(payee), 0);
+		}
+		for (int i = 0; i < trade.getMoveCount(); ++i) {
+			Inventory source = trade.getSource(i);
+			Inventory destination = trade.getDestination(i);
+			TradeSettlement.addLock(locks, source.getLock(),
+				TradeSettlement.orderOf(source), 1);
+			TradeSettlement.addLock(locks, destination.getLock(),
+				TradeSettlement.orderOf(destination), 1);
+		}
+		List<OrderedLock> sorted = new ArrayList<>(locks.values());
+		sorted.sort(TradeSettlement.LOCK_ORDER);
+		return sorted;
+	}
+
+	/**
+	 * Moves all of the items in the trade. Items are taken out of every
+	 * source before any are added, so inventories that both give and receive
+	 * can use the room they free up.
+	 *
+	 * @param trade the trade
+	 * @param changes where to record the slots that are changed
+	 * @return {@link Trade.Status#SETTLED} if everything was moved, or why it
+	 *         could not be
+	 */
+	private static Trade.Status moveItems(Trade trade,
+		List<SlotChange> changes) {
+		final int moves = trade.getMoveCount();
+		Item[] taken = new Item[moves];
+		for (int i = 0; i < moves; ++i) {
+			Inventory source = trade.getSource(i);
+			final int index = trade.getSourceSlot(i);
+			final int count = trade.getItemCount(i);
+			if (index < 0 || index >= source.getSize()) {
+				return Trade.Status.MISSING_ITEMS;
+			}
+			final Item held = source.getItem(index);
+			final int amount = source.getAmount(index);
+			if (held == null || !held.canStackWith(trade.getItem(i))
+				|| amount < count) {
+				return Trade.Status.MISSING_ITEMS;
+			}
+			changes.add(new SlotChange(source, index));
+			taken[i] = held;
+			source.setSlot(index, held, amount - count);
+		}
+		for (int i = 0; i < moves; ++i) {
+			if (!TradeSettlement.addToInventory(trade.getDestination(i),
+				taken[i], trade.getItemCount(i), changes)) {
+				return Trade.Status.NO_ROOM;
+			}
+		}
+		return Trade.Status.SETTLED;
+	}
+
+	/**
+	 * Returns the value used to decide which inventory lock is taken first.
+	 *
+	 * @param inventory the inventory
+	 * @return a number that stays the same for the life of the inventory
+	 */
+	private static long orderOf(Inventory inventory) {
+		return System.identityHashCode(inventory);
+	}
+
+	/**
+	 * Settles a single trade right away, on the calling thread.
+	 *
+	 * @param trade the trade to settle
+	 * @return the new status of the trade
+	 */
+	public static Trade.Status settle(Trade trade) {
+		List<OrderedLock> locks = TradeSettlement.findLocks(trade);
+		boolean tied = false;
+		for (int i = 1; i < locks.size(); ++i) {
+			if (TradeSettlement.LOCK_ORDER.compare(locks.get(i - 1),
+				locks.get(i)) == 0) {
+				tied = true;
+				break;
+			}
+		}
+		if (tied) {
+			CurrencyTransfer.TIE_LOCK.lock();
+		}
+		int locked = 0;
+		try {
+			for (OrderedLock held : locks) {
+				held.lock.lock();
+				++locked;
+			}
+			final Trade.Status status = TradeSettlement.settleLocked(trade);
+			trade.setStatus(status);
+			return status;
+		}
+		finally {
+			for (int i = locked - 1; i >= 0; --i) {
+				locks.get(i).lock.unlock();
+			}
+			if (tied) {
+				CurrencyTransfer.TIE_LOCK.unlock();
+			}
+		}
+	}
+
+	/**
+	 * Checks and settles a trade. The caller must hold every lock it needs.
+	 *
+	 * @param trade the trade
+	 * @return the outcome
+	 */
+	private static Trade.Status settleLocked(Trade trade) {
+		/*
+		 * Balances are found by lock, since a player and its ledger account
+		 * are different holders of the same currency.
+		 */
+		Map<Lock, ICurrencyHolder> holders = new IdentityHashMap<>();
+		Map<Lock, Long> changes = new IdentityHashMap<>();
+		for (int i = 0; i < trade.getPaymentCount(); ++i) {
+			final long amount = trade.getPayment(i);
+			ICurrencyHolder payer = trade.getPayer(i);
+			ICurrencyHolder payee = trade.getPayee(i);
+			holders.putIfAbsent(payer.getCurrencyLock(), payer);
+			holders.putIfAbsent(payee.getCurrencyLock(), payee);
+			changes.merge(payer.getCurrencyLock(), -amount, Long::sum);
+			changes.merge(payee.getCurrencyLock(), amount, Long::sum);
+		}
+		for (Map.Entry<Lock, Long> change : changes.entrySet()) {
+			final long balance =
+				holders.get(change.getKey()).getCurrency() + change.getValue();
+			if (balance < 0) {
+				return Trade.Status.INSUFFICIENT_CURRENCY;
+			}
+			if (balance > Integer.MAX_VALUE) {
+				return Trade.Status.CURRENCY_OVERFLOW;
+			}
+		}
+
+		List<SlotChange> slotChanges = new ArrayList<>();
+		final Trade.Status moved =
+			TradeSettlement.moveItems(trade, slotChanges);
+		if (moved != Trade.Status.SETTLED) {
+			TradeSettlement.undo(slotChanges);
+			return moved;
+		}
+
+		/*
+		 * Holders backed by the same ledger are changed as one logged change,
+		 * like a transfer, so a crash can't keep only part of the trade. A
+		 * ledger that has failed refuses the change, so ledgers go first and
+		 * anything already changed is put back if one of them does.
+		 */
+		Map<CurrencyLedger, List<CurrencyLedger.Account>> byLedger =
+			new IdentityHashMap<>();
+		List<ICurrencyHolder> inMemory = new ArrayList<>();
+		for (Map.Entry<Lock, Long> change : changes.entrySet()) {
+			if (change.getValue() == 0) {
+				continue;
+			}
+			ICurrencyHolder holder = holders.get(change.getKey());
+			CurrencyLedger.Account account = holder.getLedgerAccount();
+			if (account == null) {
+				inMemory.add(holder);
+				continue;
+			}
+			byLedger.computeIfAbsent(account.getLedger(),
+				ledger -> new ArrayList<>()).add(account);
+		}
+		List<Map.Entry<CurrencyLedger, List<CurrencyLedger.Account>>> applied =
+			new ArrayList<>();
+		List<int[]> oldBalances = new ArrayList<>();
+		try {
+			for (Map.Entry<CurrencyLedger, List<CurrencyLedger.Account>> batch
+				: byLedger.entrySet()) {
+				final List<CurrencyLedger.Account> accounts = batch.getValue();
+				final int[] before = new int[accounts.size()];
+				final int[] after = new int[accounts.size()];
+				for (int i = 0; i < accounts.size(); ++i) {
+					CurrencyLedger.Account account = accounts.get(i);
+					before[i] = account.getCurrency();
+					after[i] = (int) (before[i]
+						+ changes.get(account.getCurrencyLock()));
+				}
+				batch.getKey().setBalances(accounts, after);
+				applied.add(batch);
+				oldBalances.add(before);
+			}
+		}
+		catch (RuntimeException e) {
+			for (int i = 0; i < applied.size(); ++i) {
+				applied.get(i).getKey().setBalances(applied.get(i).getValue(),
+					oldBalances.get(i));
+			}
+			TradeSettlement.undo(slotChanges);
+			throw e;
+		}
+		for (ICurrencyHolder holder : inMemory) {
+			holder.setCurrency((int) (holder.getCurrency()
+				+ changes.get(holder.getCurrencyLock())));
+		}
+		return Trade.Status.SETTLED;
+	}
+
+	/**
+	 * Puts back every slot a trade changed, in reverse, so each slot ends up
+	 * as it was at the start.
+	 *
+	 * @param slotChanges the slots that were changed, in the order they were
+	 *            changed
+	 */
+	private static void undo(List<SlotChange> slotChanges) {
+		for (int i = slotChanges.size() - 1; i >= 0; --i) {
+			SlotChange change = slotChanges.get(i);
+			change.inventory.setSlot(change.index, change.item, change.amount);
+		}
+	}
+
+	private final ConcurrentLinkedQueue<Trade> pending;
+
+	/**
+	 * Creates a settlement with no pending trades.
+	 */
+	public TradeSettlement() {
+		this.pending = new ConcurrentLinkedQueue<>();
+	}
+
+	/**
+	 * Settles every trade that has been submitted, in the order they were
+	 * submitted. Trades submitted while this is running may be settled too.
+	 *
+	 * @return how many trades were settled successfully
+	 */
+	public int settlePending() {
+		int settled = 0;
+		Trade trade;
+		while ((trade = this.pending.poll()) != null) {
+			if (TradeSettlement.settle(trade) == Trade.Status.SETTLED) {
+				++settled;
+			}
+		}
+		return settled;
+	}
+
+	/**
+	 * Adds a trade to be settled by the next call to {@link #settlePending()}.
+	 * This may be called from any thread.
+	 *
+	 * @param trade the trade to settle
+	 */
+	public void submit(Trade trade) {
+		this.pending.add(trade);
+	}
+}
@@ -1,15 +1,108 @@
 package com.ikalagaming.entity.component;
 
+import com.ikalagaming.entity.ComponentAccess;
+import com.ikalagaming.entity.Entity;
+import com.ikalagaming.entity.EntityManager;
+
 /**
  * A useful part of an entity. All entities are essentially a generic thing that
  * has various components added to it to make something unique. These are like
  * interfaces that can be added and removed from entities dynamically to modify
  * their behavior.
+ * <p>
+ * Each component remembers the last {@link EntityManager#getTick() tick} it
+ * was changed in, so that things like saving and network updates can skip
+ * components that have not changed. Components must call
+ * {@link #markChanged()} from every method that modifies them.
+ * </p>
  *
  * @author Ches Burks
  *
  */
 public abstract class Component {
+	static {
+		ComponentAccess.set(new ComponentAccess() {
+			@Override
+			protected void setOwner(Component component, Entity owner) {
+				component.setOwner(owner);
+			}
+		});
+	}
+
+	/**
+	 * The tick this component last changed in.
+	 */
+	private long changedTick;
+
+	/**
+	 * The entity this component was last added to.
+	 */
+	private volatile Entity owner;
+
+	/**
+	 * The registered type, found from the type name the first time it is
+	 * needed by components that do not override {@link #getComponentType()}.
+	 */
+	private ComponentType<?> componentType;
+
+	/**
+	 * Creates a component, which counts as a change in the current tick.
+	 */
+	protected Component() {
+		this.markChanged();
+	}
+
+	/**
+	 * Returns true if this component has changed after the given tick.
+	 *
+	 * @param tick the tick to compare against, usually one returned by
+	 *            {@link EntityManager#advanceTick()}
+	 * @return true if the component changed after that tick
+	 */
+	public boolean changedSince(long tick) {
+		return this.getChangedTick() > tick;
+	}
+
+	/**
+	 * Returns the tick this component was last changed in.
+	 *
+	 * @return the tick of the last change
+	 */
+	public long getChangedTick() {
+		return this.changedTick;
+	}
+
+	/**
+	 * Returns the entity this component was last added to.
+	 *
+	 * @return the owner of this component, or null if it was never added to
+	 *         an entity
+	 */
+	public final Entity getOwner() {
+		return this.owner;
+	}
+
+	/**
+	 * Returns the registered type of this component. This must match the type
+	 * name returned by {@link #getType()}, and is used to look up components
+	 * by index instead of by name. By default the type is looked up by name,
+	 * and registered for this class if it does not exist yet. Components
+	 * should override this to return a type they register themselves, which
+	 * saves the lookup.
+	 *
+	 * @return the type of this component
+	 */
+	public ComponentType<?> getComponentType() {
+		ComponentType<?> type = this.componentType;
+		if (type == null) {
+			type = ComponentType.getType(this.getType());
+			if (type == null) {
+				type = ComponentType.register(this.getClass(), this.getType());
+			}
+			this.componentType = type;
+		}
+		return type;
+	}
 
 	/**
 	 * Returns the type of this component. Each different component should have
@@ -19,4 +112,30 @@ public abstract class Component {
 	 * @return the string representing what component this is
 	 */
 	public abstract String getType();
+
+	/**
+	 * Sets the entity that owns this component. This is done by entity
+	 * storage, through {@link ComponentAccess}, when the component is added to
+	 * an entity.
+	 *
+	 * @param newOwner the entity the component was added to
+	 */
+	final void setOwner(Entity newOwner) {
+		this.owner = newOwner;
+	}
+
+	/**
+	 * Records that the component was changed in the current tick.
+	 */
+	protected void markChanged() {
+		this.changedTick = EntityManager.getInstance().getTick();
+	}
+
+	/**
+	 * Restores the component to a fresh state so that it can be reused by
+	 * another entity. This is called when an entity is released to an
+	 * {@link com.ikalagaming.entity.EntityPool EntityPool}, and does nothing by
+	 * default.
+	 */
+	public void reset() {}
 }
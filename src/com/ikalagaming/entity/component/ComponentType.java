@@ -0,0 +1,187 @@
+package com.ikalagaming.entity.component;
+
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A registered kind of {@link Component}. Each type is given a small, dense
+ * integer index when it is registered, so that entities can store and look up
+ * components using array slots and bit sets rather than hashing the type name.
+ * <p>
+ * Component classes should register themselves in a static field so that the
+ * type exists as soon as the class is initialized, for example:
+ * </p>
+ *
+ * <pre>
+ * public static final ComponentType&lt;Health&gt; TYPE =
+ * 	ComponentType.register(Health.class, Health.TYPE_NAME);
+ * </pre>
+ *
+ * @author Ches Burks
+ *
+ * @param <T> the class of component this type describes
+ */
+public final class ComponentType<T extends Component> {
+	/**
+	 * Registered types by name.
+	 */
+	private static ConcurrentHashMap<String, ComponentType<?>> typesByName =
+		new ConcurrentHashMap<>();
+
+	/**
+	 * Registered types by index.
+	 */
+	private static ArrayList<ComponentType<?>> typesByIndex = new ArrayList<>();
+
+	/**
+	 * Guards registration so that indices are handed out in order.
+	 */
+	private static ReentrantLock registryLock = new ReentrantLock();
+
+	/**
+	 * Returns the number of component types that have been registered. Every
+	 * registered index is less than this value.
+	 *
+	 * @return the number of types
+	 */
+	public static int getTypeCount() {
+		ComponentType.registryLock.lock();
+		try {
+			return ComponentType.typesByIndex.size();
+		}
+		finally {
+			ComponentType.registryLock.unlock();
+		}
+	}
+
+	/**
+	 * Returns the type registered with the given index, or null if there is
+	 * no such type.
+	 *
+	 * @param index the index of the type
+	 * @return the type with that index, or null if none exists
+	 */
+	public static ComponentType<?> getType(int index) {
+		ComponentType.registryLock.lock();
+		try {
+			if (index < 0 || index >= ComponentType.typesByIndex.size()) {
+				return null;
+			}
+			return ComponentType.typesByIndex.get(index);
+		}
+		finally {
+			ComponentType.registryLock.unlock();
+		}
+	}
+
+	/**
+	 * Returns the type registered with the given name, or null if there is no
+	 * such type. A type will not exist until the class that registers it has
+	 * been initialized.
+	 *
+	 * @param name the name of the type, as returned by
+	 *            {@link Component#getType()}
+	 * @return the type with that name, or null if none exists
+	 */
+	public static ComponentType<?> getType(String name) {
+		if (name == null) {
+			return null;
+		}
+		return ComponentType.typesByName.get(name);
+	}
+
+	/**
+	 * Registers a component class under the given name and assigns it the next
+	 * free index. If the name is already registered to the same class, the
+	 * existing type is returned.
+	 *
+	 * @param <T> the class of component
+	 * @param componentClass the class of component
+	 * @param name the name of the type, as returned by
+	 *            {@link Component#getType()}
+	 * @return the type for that class
+	 * @throws IllegalArgumentException if the name is already registered to a
+	 *             different class
+	 */
+	@SuppressWarnings("unchecked")
+	public static <T extends Component> ComponentType<T> register(
+		Class<T> componentClass, String name) {
+		ComponentType.registryLock.lock();
+		try {
+			ComponentType<?> existing = ComponentType.typesByName.get(name);
+			if (existing != null) {
+				if (existing.componentClass != componentClass) {
+					throw new IllegalArgumentException(name);
+				}
+				return (ComponentType<T>) existing;
+			}
+			ComponentType<T> type = new ComponentType<>(componentClass, name,
+				ComponentType.typesByIndex.size());
+			ComponentType.typesByIndex.add(type);
+			ComponentType.typesByName.put(name, type);
+			return type;
+		}
+		finally {
+			ComponentType.registryLock.unlock();
+		}
+	}
+
+	private final Class<T> componentClass;
+
+	private final String name;
+
+	private final int index;
+
+	private ComponentType(Class<T> componentClass, String name, int index) {
+		this.componentClass = componentClass;
+		this.name = name;
+		this.index = index;
+	}
+
+	/**
+	 * Casts the component to the class this type describes. This does not
+	 * check the type, the caller is expected to have looked the component up
+	 * using this type.
+	 *
+	 * @param component the component to cast
+	 * @return the same component
+	 */
+	@SuppressWarnings("unchecked")
+	public T cast(Component component) {
+		return (T) component;
+	}
+
+	/**
+	 * Returns the class of component this type describes.
+	 *
+	 * @return the component class
+	 */
+	public Class<T> getComponentClass() {
+		return this.componentClass;
+	}
+
+	/**
+	 * Returns the dense index assigned to this type.
+	 *
+	 * @return the index, starting at zero
+	 */
+	public int getIndex() {
+		return this.index;
+	}
+
+	/**
+	 * Returns the name of this type, as returned by
+	 * {@link Component#getType()}.
+	 *
+	 * @return the type name
+	 */
+	public String getName() {
+		return this.name;
+	}
+
+	@Override
+	public String toString() {
+		return this.name;
+	}
+}
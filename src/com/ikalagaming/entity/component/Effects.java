@@ -35,6 +35,12 @@ public class Effects extends Component {
 	 */
 	public static final String TYPE_NAME = "Effects";
 
+	/**
+	 * The registered type of this component, with the name {@link #TYPE_NAME}.
+	 */
+	public static final ComponentType<Effects> TYPE =
+		ComponentType.register(Effects.class, TYPE_NAME);
+
 	private Set<Effect> currentEffects;
 
 	/**
@@ -47,6 +53,7 @@ public class Effects extends Component {
 			return;
 		}
 		currentEffects.add(effect);
+		markChanged();
 		EffectActivated e = new EffectActivated(effect, theOwner);
 		EventManager.getInstance().fireEvent(e);
 	}
@@ -61,6 +68,7 @@ public class Effects extends Component {
 			return;
 		}
 		currentEffects.remove(effect);
+		markChanged();
 		EffectDeactivated e = new EffectDeactivated(effect, theOwner);
 		EventManager.getInstance().fireEvent(e);
 	}
@@ -75,6 +83,24 @@ public class Effects extends Component {
 
 	}
 
+	/**
+	 * Removes all effects without firing any events, as the owner is no
+	 * longer in the game.
+	 */
+	@Override
+	public void reset() {
+		currentEffects.clear();
+		markChanged();
+	}
+
+	/**
+	 * Returns {@link #TYPE}.
+	 */
+	@Override
+	public ComponentType<Effects> getComponentType() {
+		return TYPE;
+	}
+
 	/**
 	 * Returns {@link #TYPE_NAME}.
 	 */
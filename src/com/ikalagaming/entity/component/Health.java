@@ -1,8 +1,34 @@
 package com.ikalagaming.entity.component;
 
+import com.ikalagaming.entity.EntityManager;
+
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+
 /**
  * The health of an entity. Typically it will be some positive number, and when
  * it reaches zero, the entity is destroyed.
+ * <p>
+ * Health may either hold its own values, or be a view onto a row of a
+ * {@link HealthStore} so that many can be processed in bulk. Both work the
+ * same way through the methods here.
+ * </p>
+ * <p>
+ * Health that holds its own values may be damaged, healed, and set from many
+ * threads at once without locking. Each change is a compare and swap on the
+ * current health, so no change is ever lost and the health always stays within
+ * bounds. Health kept in a store is not thread safe, like the store itself.
+ * </p>
+ * <p>
+ * Health can {@link #setRegenRate(int) regenerate} a fixed amount every tick
+ * of the {@link EntityManager#getTick() entity manager}. Nothing is done each
+ * tick, instead the health remembers the tick it was last changed in and works
+ * out how much it has regenerated since whenever it is read or changed, so
+ * entities that are not being looked at cost nothing. The result is exactly
+ * the same as adding the rate every tick, stopping at the maximum and never
+ * regenerating while dead. Health counts as changed in every tick it
+ * regenerates in, and threshold listeners are told about crossings caused by
+ * regeneration the next time the health is read or changed.
+ * </p>
  *
  * @author Ches Burks
  *
@@ -14,6 +40,12 @@ public class Health extends Component {
 	 */
 	public static final String TYPE_NAME = "Health";
 
+	/**
+	 * The registered type of this component, with the name {@link #TYPE_NAME}.
+	 */
+	public static final ComponentType<Health> TYPE =
+		ComponentType.register(Health.class, Health.TYPE_NAME);
+
 	/**
 	 * No entity may ever have a health value greater than this number ({@value}
 	 * )
@@ -31,14 +63,191 @@ public class Health extends Component {
 	 * The value that is default for minimum health ({@value} )
 	 */
 	public static final int DEFAULT_MAX_HEALTH = 100;
+	/**
+	 * The threshold crossed downward when an entity dies, and upward when it
+	 * leaves its minimum health. ({@value} )
+	 */
+	public static final float DEATH_THRESHOLD = 0.0f;
+	/**
+	 * The threshold crossed upward when an entity is fully healed. ({@value}
+	 * )
+	 */
+	public static final float FULL_THRESHOLD = 1.0f;
 
-	private int healthQuantity;
+	/**
+	 * Used to compare and swap {@link #healthState}.
+	 */
+	private static final AtomicLongFieldUpdater<Health> STATE_UPDATER =
+			AtomicLongFieldUpdater.newUpdater(Health.class, "healthState");
 
-	private int maxHealth;
+	/**
+	 * Returns the low bits of the current tick, which is all that is stored
+	 * along with the health.
+	 *
+	 * @return the current tick
+	 */
+	private static int currentTick() {
+		return (int) EntityManager.getInstance().getTick();
+	}
 
-	private int minHealth;
+	/**
+	 * Returns the health part of a packed state.
+	 *
+	 * @param state the health and tick
+	 * @return the health
+	 */
+	private static int healthOf(final long state) {
+		return (int) state;
+	}
 
-	private boolean immortal;
+	/**
+	 * Keeps the health within the lowest and highest possible values.
+	 *
+	 * @param health the health, which may be out of range
+	 * @return the closest possible health
+	 */
+	private static int limit(final long health) {
+		if (health < Health.LOWEST_POSSIBLE_HEALTH) {
+			return Health.LOWEST_POSSIBLE_HEALTH;
+		}
+		if (health > Health.HIGHEST_POSSIBLE_HEALTH) {
+			return Health.HIGHEST_POSSIBLE_HEALTH;
+		}
+		return (int) health;
+	}
+
+	/**
+	 * Packs health and the tick it was set in into one value, so both can be
+	 * swapped together.
+	 *
+	 * @param tick the low bits of the tick
+	 * @param health the health
+	 * @return the packed state
+	 */
+	private static long pack(final int tick, final int health) {
+		return ((long) tick << 32) | (health & 0xFFFFFFFFL);
+	}
+
+	/**
+	 * Works out what the health is after regenerating for some number of
+	 * ticks. This is the same as adding the rate once per tick, since health
+	 * only moves one way and stops at the maximum, and dead entities do not
+	 * regenerate.
+	 *
+	 * @param health the health when regeneration was last worked out
+	 * @param min the minimum health
+	 * @param max the maximum health
+	 * @param rate how much is regenerated each tick
+	 * @param elapsed how many ticks have passed
+	 * @return the regenerated health
+	 */
+	static int regenerate(final int health, final int min, final int max,
+			final int rate, final long elapsed) {
+		if (rate == 0 || elapsed <= 0 || health <= min) {
+			return health;
+		}
+		final long regenerated = health + rate * elapsed;
+		return (int) Math.max(min, Math.min(max, regenerated));
+	}
+
+	/**
+	 * Works out how many ticks health kept changing for while regenerating,
+	 * which stops early once it reaches the maximum, or the minimum for a
+	 * negative rate.
+	 *
+	 * @param health the health when regeneration was last worked out
+	 * @param min the minimum health
+	 * @param max the maximum health
+	 * @param rate how much is regenerated each tick
+	 * @param elapsed how many ticks have passed
+	 * @return how many ticks after regeneration was last worked out the health
+	 *         last changed, or zero if it has not changed
+	 * @see #regenerate(int, int, int, int, long)
+	 */
+	static long regenerationTicks(final int health, final int min,
+			final int max, final int rate, final long elapsed) {
+		if (rate == 0 || elapsed <= 0 || health <= min) {
+			return 0;
+		}
+		final long distance =
+				rate > 0 ? (long) max - health : (long) health - min;
+		if (distance <= 0) {
+			return 0;
+		}
+		final long step = Math.abs((long) rate);
+		return Math.min(elapsed, (distance + step - 1) / step);
+	}
+
+	/**
+	 * Returns the tick part of a packed state.
+	 *
+	 * @param state the health and tick
+	 * @return the low bits of the tick
+	 */
+	private static int tickOf(final long state) {
+		return (int) (state >>> 32);
+	}
+
+	/**
+	 * Registers a listener that is told whenever the health of any entity
+	 * crosses the given percentage, as reported by
+	 * {@link #getHealthPercentage()}. Health crosses going down when it goes
+	 * from above the threshold to at or below it, and going up when it goes
+	 * from below the threshold to at or above it. Nothing is fired when health
+	 * changes without crossing, so there is no need to check every entity
+	 * every tick.
+	 * <p>
+	 * Use {@link #DEATH_THRESHOLD} to find out about deaths. Immortal entities
+	 * still cross it, so listeners should check {@link #isDead()} if that
+	 * matters. Since health can't go below its minimum, leaving the minimum is
+	 * treated as crossing the death threshold going up.
+	 * </p>
+	 *
+	 * @param threshold the percentage to listen for, between 0 and 1
+	 * @param listener the listener to register
+	 */
+	public static void addThresholdListener(final float threshold,
+			final HealthListener listener) {
+		HealthThresholds.add(threshold, listener);
+	}
+
+	/**
+	 * Removes a listener that was registered for the given threshold.
+	 *
+	 * @param threshold the percentage the listener was registered for
+	 * @param listener the listener to remove
+	 */
+	public static void removeThresholdListener(final float threshold,
+			final HealthListener listener) {
+		HealthThresholds.remove(threshold, listener);
+	}
+
+	/**
+	 * The current health in the low bits, and the low bits of the tick it was
+	 * set in, for working out regeneration, in the high bits.
+	 */
+	private volatile long healthState;
+
+	/**
+	 * How much health is regenerated each tick.
+	 */
+	private volatile int regenRate;
+
+	private volatile int maxHealth;
+
+	private volatile int minHealth;
+
+	private volatile boolean immortal;
+
+	/**
+	 * The store holding the values, or null if they are held here.
+	 */
+	private HealthStore store;
+
+	/**
+	 * The row of the store holding the values.
+	 */
+	private int row;
 
 	/**
 	 * Constructs a Health component with default values. Minimum health is
@@ -122,6 +331,22 @@ public class Health extends Component {
 	 * @param initial what value the health should start at
 	 */
 	public Health(final int min, final int max, final int initial) {
+		this(null, min, max, initial);
+	}
+
+	/**
+	 * Constructs a Health component the same way as
+	 * {@link #Health(int, int, int)}, keeping its values in the given store
+	 * if it is not null.
+	 *
+	 * @param store the store to keep values in, or null to keep them here
+	 * @param min the minimum allowed health
+	 * @param max the maximum allowed health
+	 * @param initial what value the health should start at
+	 * @see HealthStore#add(int, int, int)
+	 */
+	Health(final HealthStore store, final int min, final int max,
+			final int initial) {
 		int theMax = max;
 		int theMin = min;
 		int init = initial;
@@ -148,19 +373,21 @@ public class Health extends Component {
 		if (init > Health.HIGHEST_POSSIBLE_HEALTH) {
 			init = Health.HIGHEST_POSSIBLE_HEALTH;
 		}
-		this.minHealth = theMin;
-		this.maxHealth = theMax;
-
 		if (init > theMax) {
-			this.healthQuantity = theMax;
+			init = theMax;
 		}
 		else if (init < theMin) {
-			this.healthQuantity = theMin;
-		}
-		else {
-			this.healthQuantity = init;
+			init = theMin;
 		}
 
+		if (store != null) {
+			this.store = store;
+			this.row = store.addRow(this, theMin, theMax, init);
+			return;
+		}
+		this.minHealth = theMin;
+		this.maxHealth = theMax;
+		this.healthState = Health.pack(Health.currentTick(), init);
 		this.immortal = false;
 	}
 
@@ -176,13 +403,75 @@ public class Health extends Component {
 			this.heal(-amount);
 			return;
 		}
-		if (this.healthQuantity - amount < Health.LOWEST_POSSIBLE_HEALTH) {
-			this.healthQuantity = Health.LOWEST_POSSIBLE_HEALTH;
+		this.changeHealth(-(long) amount);
+	}
+
+	/**
+	 * Adds to the current health, keeping it within bounds. Without a store,
+	 * this retries until it changes the health without another thread having
+	 * changed it first.
+	 *
+	 * @param delta how much to add, negative to remove health
+	 */
+	private void changeHealth(final long delta) {
+		if (this.store != null) {
+			final int old = this.readHealth();
+			this.updateHealth(old, Health.limit(old + delta));
+			return;
 		}
-		else {
-			this.healthQuantity -= amount;
+		final int now = Health.currentTick();
+		long state;
+		int updated;
+		do {
+			state = this.healthState;
+			final int old = this.settle(state, now);
+			updated = this.validateHealth(Health.limit(old + delta));
+			if (updated == old) {
+				return;
+			}
+		} while (!Health.STATE_UPDATER.compareAndSet(this, state,
+				Health.pack(now, updated)));
+		this.healthChanged(Health.healthOf(state), updated);
+	}
+
+	/**
+	 * Moves the values out of the store and into this object.
+	 */
+	void detachFromStore() {
+		final HealthStore oldStore = this.store;
+		final int oldRow = this.row;
+		final int health =
+				oldStore.settle(oldRow, EntityManager.getInstance().getTick());
+		this.healthState = Health.pack(Health.currentTick(), health);
+		this.regenRate = oldStore.regenRates[oldRow];
+		this.minHealth = oldStore.min[oldRow];
+		this.maxHealth = oldStore.max[oldRow];
+		this.immortal = oldStore.immortal.get(oldRow);
+		this.store = null;
+		this.markChanged();
+	}
+
+	/**
+	 * Returns the tick the health last changed in, which is kept in the store
+	 * if there is one. Regeneration that has not been worked out yet counts,
+	 * so health that is still regenerating has changed in the current tick.
+	 */
+	@Override
+	public long getChangedTick() {
+		final long tick = EntityManager.getInstance().getTick();
+		if (this.store != null) {
+			return this.store.getChangedTick(this.row, tick);
+		}
+		final long changed = super.getChangedTick();
+		final long state = this.healthState;
+		final int elapsed = (int) tick - Health.tickOf(state);
+		final long regenerated = Health.regenerationTicks(
+				Health.healthOf(state), this.minHealth, this.maxHealth,
+				this.regenRate, elapsed);
+		if (regenerated == 0) {
+			return changed;
 		}
-		this.validateHealth();
+		return Math.max(changed, tick - elapsed + regenerated);
 	}
 
 	/**
@@ -191,7 +480,7 @@ public class Health extends Component {
 	 * @return the health
 	 */
 	public int getHealth() {
-		return this.healthQuantity;
+		return this.readHealth();
 	}
 
 	/**
@@ -202,8 +491,9 @@ public class Health extends Component {
 	 * @return the percent of full health this entity currently has
 	 */
 	public float getHealthPercentage() {
-		final float top = this.healthQuantity - this.minHealth;
-		final float bottom = this.maxHealth - this.minHealth;
+		final int min = this.getMinHealth();
+		final float top = this.readHealth() - min;
+		final float bottom = this.getMaxHealth() - min;
 		return top / bottom;
 	}
 
@@ -213,6 +503,9 @@ public class Health extends Component {
 	 * @return the maximum health this entity can have
 	 */
 	public int getMaxHealth() {
+		if (this.store != null) {
+			return this.store.max[this.row];
+		}
 		return this.maxHealth;
 	}
 
@@ -223,9 +516,51 @@ public class Health extends Component {
 	 * @return the minimum health this entity can have
 	 */
 	public int getMinHealth() {
+		if (this.store != null) {
+			return this.store.min[this.row];
+		}
 		return this.minHealth;
 	}
 
+	/**
+	 * Returns how much health is regenerated every tick.
+	 *
+	 * @return the health regenerated per tick
+	 * @see #setRegenRate(int)
+	 */
+	public int getRegenRate() {
+		if (this.store != null) {
+			return this.store.regenRates[this.row];
+		}
+		return this.regenRate;
+	}
+
+	/**
+	 * Returns the row of the store that holds the values.
+	 *
+	 * @return the row, only meaningful if there is a store
+	 */
+	int getRow() {
+		return this.row;
+	}
+
+	/**
+	 * Returns the store that holds the values.
+	 *
+	 * @return the store, or null if the values are held here
+	 */
+	HealthStore getStore() {
+		return this.store;
+	}
+
+	/**
+	 * Returns {@link #TYPE}.
+	 */
+	@Override
+	public ComponentType<Health> getComponentType() {
+		return Health.TYPE;
+	}
+
 	/**
 	 * Returns {@link #TYPE_NAME}.
 	 */
@@ -246,13 +581,25 @@ public class Health extends Component {
 			this.damage(-amount);
 			return;
 		}
-		if (this.healthQuantity + amount > Health.HIGHEST_POSSIBLE_HEALTH) {
-			this.healthQuantity = Health.HIGHEST_POSSIBLE_HEALTH;
-		}
-		else {
-			this.healthQuantity += amount;
+		this.changeHealth(amount);
+	}
+
+	/**
+	 * Called after the health was swapped to a new value without a store.
+	 * Records the change, and fixes the health if the minimum or maximum was
+	 * changed by another thread at the same time.
+	 *
+	 * @param old the health before the change
+	 * @param updated the new health
+	 */
+	private void healthChanged(final int old, final int updated) {
+		final int min = this.minHealth;
+		final int max = this.maxHealth;
+		if (updated < min || updated > max) {
+			this.revalidate();
 		}
-		this.validateHealth();
+		this.markChanged();
+		HealthThresholds.fire(this, old, updated, min, max);
 	}
 
 	/**
@@ -267,7 +614,7 @@ public class Health extends Component {
 		if (this.isImmortal()) {
 			return false;
 		}
-		return this.healthQuantity == this.minHealth;
+		return this.readHealth() == this.getMinHealth();
 	}
 
 	/**
@@ -277,17 +624,101 @@ public class Health extends Component {
 	 * @return true if this entity is immortal.
 	 */
 	public boolean isImmortal() {
+		if (this.store != null) {
+			return this.store.immortal.get(this.row);
+		}
 		return this.immortal;
 	}
 
+	/**
+	 * Records a change in the store if there is one, or in this object.
+	 */
+	@Override
+	protected void markChanged() {
+		if (this.store != null) {
+			this.store.changedTicks[this.row] =
+					EntityManager.getInstance().getTick();
+			return;
+		}
+		super.markChanged();
+	}
+
+	/**
+	 * Updates the row of the store that holds the values, after another row
+	 * was removed.
+	 *
+	 * @param newRow the new row
+	 */
+	void moveToRow(int newRow) {
+		this.row = newRow;
+	}
+
+	/**
+	 * Returns the current health, from the store if there is one. Health
+	 * regenerated since it was last worked out is stored, and threshold
+	 * listeners are told about any crossings it caused.
+	 *
+	 * @return the current health
+	 */
+	private int readHealth() {
+		if (this.store != null) {
+			final int stored = this.store.current[this.row];
+			final int value = this.store.settle(this.row,
+					EntityManager.getInstance().getTick());
+			if (value != stored) {
+				HealthThresholds.fire(this, stored, value, this.getMinHealth(),
+						this.getMaxHealth());
+			}
+			return value;
+		}
+		final int now = Health.currentTick();
+		long state;
+		int value;
+		do {
+			state = this.healthState;
+			value = this.settle(state, now);
+			if (value == Health.healthOf(state)) {
+				return value;
+			}
+		} while (!Health.STATE_UPDATER.compareAndSet(this, state,
+				Health.pack(now, value)));
+		this.healthChanged(Health.healthOf(state), value);
+		return value;
+	}
+
+	/**
+	 * Restores the entity to full health and makes it mortal again. The
+	 * minimum and maximum health are left as they are.
+	 */
+	@Override
+	public void reset() {
+		this.writeHealth(this.getMaxHealth());
+		this.writeImmortal(false);
+		this.markChanged();
+	}
+
 	/**
 	 * Sets the health of the entity to the given health.
 	 *
 	 * @param newHealth the new health of the entity
 	 */
 	public void setHealth(final int newHealth) {
-		this.healthQuantity = newHealth;
-		this.validateHealth();
+		if (this.store != null) {
+			this.updateHealth(this.readHealth(), newHealth);
+			return;
+		}
+		final int now = Health.currentTick();
+		long state;
+		int updated;
+		do {
+			state = this.healthState;
+			updated = this.validateHealth(newHealth);
+			if (updated == this.settle(state, now)) {
+				return;
+			}
+		} while (!Health.STATE_UPDATER.compareAndSet(this, state,
+				Health.pack(now, updated)));
+		this.healthChanged(Health.healthOf(state), updated);
 	}
 
 	/**
@@ -297,12 +728,16 @@ public class Health extends Component {
 	 * @param isNowImmortal if the entity should now be immortal or not
 	 */
 	public void setImmortal(boolean isNowImmortal) {
-		this.immortal = isNowImmortal;
+		if (this.isImmortal() != isNowImmortal) {
+			this.writeImmortal(isNowImmortal);
+			this.markChanged();
+		}
 	}
 
 	/**
 	 * Sets the new max health. If the current health is now larger than the
-	 * maximum health, it is shifted down to the new max.
+	 * maximum health, it is shifted down to the new max. Threshold listeners
+	 * are told about any thresholds the percentage of health crossed.
 	 *
 	 * @param newMax the new maximum health
 	 * @throws InvalidInputException if the new max is less than the min or
@@ -313,17 +748,35 @@ public class Health extends Component {
 				|| newMax < Health.LOWEST_POSSIBLE_HEALTH) {
 			throw new InvalidInputException();
 		}
-		if (newMax < this.minHealth) {
+		if (newMax < this.getMinHealth()) {
 			throw new InvalidInputException();
 		}
-		this.maxHealth = newMax;
-		this.validateHealth();
+		final int oldMin = this.getMinHealth();
+		final int oldMax = this.getMaxHealth();
+		final int old = this.readHealth();
+		final int updated;
+		if (this.store != null) {
+			this.store.max[this.row] = newMax;
+			updated = this.validateHealth(old);
+			this.writeHealth(updated);
+		}
+		else {
+			this.revalidate();
+			this.maxHealth = newMax;
+			this.revalidate();
+			updated = this.readHealth();
+		}
+		this.markChanged();
+		HealthThresholds.fire(this, old, oldMin, oldMax, updated,
+				this.getMinHealth(), this.getMaxHealth());
 	}
 
 	/**
 	 * Sets the new min health. If the current health is now less than the
 	 * minimum health, it is shifted down to the new min. Note that if this
-	 * happens, the entity will be considered dead.
+	 * happens, the entity will be considered dead, and listeners for the
+	 * {@link #DEATH_THRESHOLD} are told. Listeners for any other thresholds
+	 * the percentage of health crossed are told as well.
 	 *
 	 * @param newMin the new minimum health
 	 * @throws InvalidInputException if the new min is more than the max or
@@ -334,19 +787,136 @@ public class Health extends Component {
 				|| newMin < Health.LOWEST_POSSIBLE_HEALTH) {
 			throw new InvalidInputException();
 		}
-		if (newMin > this.maxHealth) {
+		if (newMin > this.getMaxHealth()) {
 			throw new InvalidInputException();
 		}
-		this.minHealth = newMin;
-		this.validateHealth();
+		final int oldMin = this.getMinHealth();
+		final int oldMax = this.getMaxHealth();
+		final int old = this.readHealth();
+		final int updated;
+		if (this.store != null) {
+			this.store.min[this.row] = newMin;
+			updated = this.validateHealth(old);
+			this.writeHealth(updated);
+		}
+		else {
+			this.revalidate();
+			this.minHealth = newMin;
+			this.revalidate();
+			updated = this.readHealth();
+		}
+		this.markChanged();
+		HealthThresholds.fire(this, old, oldMin, oldMax, updated,
+				this.getMinHealth(), this.getMaxHealth());
+	}
+
+	/**
+	 * Stores the health regenerated up to the current tick, and moves it back
+	 * within the minimum and maximum if it is not. Only used without a store.
+	 */
+	private void revalidate() {
+		final int now = Health.currentTick();
+		long state;
+		int updated;
+		do {
+			state = this.healthState;
+			updated = this.validateHealth(this.settle(state, now));
+			if (updated == Health.healthOf(state)
+					&& Health.tickOf(state) == now) {
+				return;
+			}
+		} while (!Health.STATE_UPDATER.compareAndSet(this, state,
+				Health.pack(now, updated)));
+	}
+
+	/**
+	 * Sets how much health is regenerated every tick. Regeneration up to now
+	 * is worked out with the old rate first. Zero stops regeneration, and a
+	 * negative rate drains health each tick down to the minimum.
+	 *
+	 * @param rate the health regenerated per tick
+	 */
+	public void setRegenRate(final int rate) {
+		if (this.store != null) {
+			this.store.settle(this.row,
+					EntityManager.getInstance().getTick());
+			this.store.regenRates[this.row] = rate;
+			return;
+		}
+		this.revalidate();
+		this.regenRate = rate;
+	}
+
+	/**
+	 * Works out the health at the given tick from a stored state. Only used
+	 * without a store.
+	 *
+	 * @param state the stored health and tick
+	 * @param now the low bits of the current tick
+	 * @return the health after regenerating up to now
+	 */
+	private int settle(final long state, final int now) {
+		return Health.regenerate(Health.healthOf(state), this.minHealth,
+				this.maxHealth, this.regenRate, now - Health.tickOf(state));
+	}
+
+	/**
+	 * Clamps the health to the minimum and maximum, stores it, and records a
+	 * change if it is different from the old value. Only used with a store.
+	 *
+	 * @param old the health before the change
+	 * @param updated the new health, which may be out of bounds
+	 */
+	private void updateHealth(final int old, final int updated) {
+		final int valid = this.validateHealth(updated);
+		if (valid != old) {
+			final int stored = this.store.current[this.row];
+			this.writeHealth(valid);
+			this.markChanged();
+			HealthThresholds.fire(this, stored, valid, this.getMinHealth(),
+					this.getMaxHealth());
+		}
+	}
+
+	private int validateHealth(final int health) {
+		final int min = this.getMinHealth();
+		if (health < min) {
+			return min;
+		}
+		final int max = this.getMaxHealth();
+		if (health > max) {
+			return max;
+		}
+		return health;
 	}
 
-	private void validateHealth() {
-		if (this.healthQuantity < this.minHealth) {
-			this.healthQuantity = this.minHealth;
+	/**
+	 * Sets the current health, in the store if there is one.
+	 *
+	 * @param health the new health
+	 */
+	private void writeHealth(final int health) {
+		if (this.store != null) {
+			this.store.current[this.row] = health;
+			this.store.regenTicks[this.row] =
+					EntityManager.getInstance().getTick();
 		}
-		if (this.healthQuantity > this.maxHealth) {
-			this.healthQuantity = this.maxHealth;
+		else {
+			this.healthState = Health.pack(Health.currentTick(), health);
+		}
+	}
+
+	/**
+	 * Sets the immortality, in the store if there is one.
+	 *
+	 * @param isNowImmortal the new immortality
+	 */
+	private void writeImmortal(final boolean isNowImmortal) {
+		if (this.store != null) {
+			this.store.immortal.set(this.row, isNowImmortal);
+		}
+		else {
+			this.immortal = isNowImmortal;
 		}
 	}
 
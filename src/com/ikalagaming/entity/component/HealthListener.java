@@ -0,0 +1,27 @@
+package com.ikalagaming.entity.component;
+
+/**
+ * Is told when the health of any entity crosses a threshold it was registered
+ * for.
+ *
+ * @author Ches Burks
+ * @see Health#addThresholdListener(float, HealthListener)
+ *
+ */
+@FunctionalInterface
+public interface HealthListener {
+	/**
+	 * Called when health crosses the threshold, on the thread that changed
+	 * the health. Crossings caused by regeneration are reported on the thread
+	 * that next reads or changes the health. This should be quick, and must
+	 * not register or remove listeners.
+	 *
+	 * @param health the health that changed, whose owner is
+	 *            {@link Component#getOwner()}
+	 * @param threshold the percentage that was crossed
+	 * @param downward true if health went down past the threshold, false if
+	 *            it went up past it
+	 */
+	public void thresholdCrossed(Health health, float threshold,
+		boolean downward);
+}
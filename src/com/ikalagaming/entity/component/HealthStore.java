@@ -0,0 +1,367 @@
+package com.ikalagaming.entity.component;
+
+import com.ikalagaming.entity.EntityManager;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * Stores the health of many entities together in arrays, instead of in
+ * separate objects. Each {@link Health} created by the store is a view onto
+ * one row of the arrays, so it can be used exactly like any other health
+ * component, while systems that deal with large numbers of entities can use
+ * the bulk operations here to update all of them in a single tight loop.
+ * <p>
+ * Like {@link Health}, the store is not thread safe. Bulk operations tell
+ * {@link HealthListener threshold listeners} about crossings just like
+ * changing each health would, but skip that work entirely when there are no
+ * listeners.
+ * </p>
+ * <p>
+ * Rows can {@link Health#setRegenRate(int) regenerate} lazily, just like health
+ * that holds its own values. Rows that regenerate are brought up to date when
+ * they are read or changed, including by the bulk operations, and rows that
+ * are never touched cost nothing. A row that is still regenerating counts as
+ * changed in the current tick.
+ * </p>
+ *
+ * @author Ches Burks
+ *
+ */
+public class HealthStore {
+	private static final int INITIAL_CAPACITY = 64;
+
+	/**
+	 * The current health of each row.
+	 */
+	int[] current;
+
+	/**
+	 * The minimum health of each row.
+	 */
+	int[] min;
+
+	/**
+	 * The maximum health of each row.
+	 */
+	int[] max;
+
+	/**
+	 * Which rows are immortal.
+	 */
+	BitSet immortal;
+
+	/**
+	 * The tick each row last changed in.
+	 */
+	long[] changedTicks;
+
+	/**
+	 * How much each row regenerates per tick.
+	 */
+	int[] regenRates;
+
+	/**
+	 * The tick regeneration was last worked out for each row.
+	 */
+	long[] regenTicks;
+
+	/**
+	 * The view for each row.
+	 */
+	private Health[] views;
+
+	private int size;
+
+	/**
+	 * Creates an empty store.
+	 */
+	public HealthStore() {
+		this.current = new int[HealthStore.INITIAL_CAPACITY];
+		this.min = new int[HealthStore.INITIAL_CAPACITY];
+		this.max = new int[HealthStore.INITIAL_CAPACITY];
+		this.immortal = new BitSet();
+		this.changedTicks = new long[HealthStore.INITIAL_CAPACITY];
+		this.regenRates = new int[HealthStore.INITIAL_CAPACITY];
+		this.regenTicks = new long[HealthStore.INITIAL_CAPACITY];
+		this.views = new Health[HealthStore.INITIAL_CAPACITY];
+		this.size = 0;
+	}
+
+	/**
+	 * Creates a health component with the given values, stored in this store.
+	 * The values are checked the same way as by
+	 * {@link Health#Health(int, int, int)}.
+	 *
+	 * @param minimum the minimum allowed health
+	 * @param maximum the maximum allowed health
+	 * @param initial what value the health should start at
+	 * @return the new health component
+	 */
+	public Health add(int minimum, int maximum, int initial) {
+		return new Health(this, minimum, maximum, initial);
+	}
+
+	/**
+	 * Adds a row for the view. Called by the view's constructor once the
+	 * values have been checked.
+	 *
+	 * @param view the health component for the new row
+	 * @param minimum the minimum health
+	 * @param maximum the maximum health
+	 * @param initial the current health
+	 * @return the new row
+	 */
+	int addRow(Health view, int minimum, int maximum, int initial) {
+		if (this.size >= this.views.length) {
+			final int capacity = this.views.length * 2;
+			this.current = Arrays.copyOf(this.current, capacity);
+			this.min = Arrays.copyOf(this.min, capacity);
+			this.max = Arrays.copyOf(this.max, capacity);
+			this.changedTicks = Arrays.copyOf(this.changedTicks, capacity);
+			this.regenRates = Arrays.copyOf(this.regenRates, capacity);
+			this.regenTicks = Arrays.copyOf(this.regenTicks, capacity);
+			this.views = Arrays.copyOf(this.views, capacity);
+		}
+		final int row = this.size;
+		this.current[row] = initial;
+		this.min[row] = minimum;
+		this.max[row] = maximum;
+		this.immortal.clear(row);
+		final long tick = EntityManager.getInstance().getTick();
+		this.changedTicks[row] = tick;
+		this.regenRates[row] = 0;
+		this.regenTicks[row] = tick;
+		this.views[row] = view;
+		++this.size;
+		return row;
+	}
+
+	/**
+	 * Damages every row by the amount at the same index in the array, exactly
+	 * as if {@link Health#damage(int)} had been called on each one. Negative
+	 * amounts heal.
+	 *
+	 * @param amounts how much to damage each row, with at least
+	 *            {@link #getSize()} entries
+	 */
+	public void applyDamage(int[] amounts) {
+		final long tick = EntityManager.getInstance().getTick();
+		final int[] health = this.current;
+		final int[] lowest = this.min;
+		final int[] highest = this.max;
+		final long[] changed = this.changedTicks;
+		final int[] before = this.copyIfListening();
+		this.settleRegenerating(tick);
+		for (int row = 0; row < this.size; ++row) {
+			final int old = health[row];
+			final long damaged = (long) old - amounts[row];
+			final int clamped =
+				(int) Math.max(lowest[row], Math.min(highest[row], damaged));
+			health[row] = clamped;
+			changed[row] = clamped == old ? changed[row] : tick;
+		}
+		this.notifyChanged(before);
+	}
+
+	/**
+	 * Copies the current health of every row, so that a bulk operation can
+	 * tell listeners what changed afterwards. Nothing is copied when there
+	 * are no listeners.
+	 *
+	 * @return the health of each row, or null if there are no listeners
+	 */
+	private int[] copyIfListening() {
+		if (!HealthThresholds.hasListeners()) {
+			return null;
+		}
+		return Arrays.copyOf(this.current, this.size);
+	}
+
+	/**
+	 * Finds every row that is dead, meaning it is at minimum health and not
+	 * immortal.
+	 *
+	 * @param rows where to write the dead rows, with at least
+	 *            {@link #getSize()} entries
+	 * @return how many rows were written
+	 * @see Health#isDead()
+	 */
+	public int findDead(int[] rows) {
+		final long tick = EntityManager.getInstance().getTick();
+		final int[] health = this.current;
+		final int[] lowest = this.min;
+		final int[] rates = this.regenRates;
+		int found = 0;
+		for (int row = 0; row < this.size; ++row) {
+			final int value =
+				rates[row] == 0 ? health[row] : this.peek(row, tick);
+			if (value == lowest[row] && !this.immortal.get(row)) {
+				rows[found] = row;
+				++found;
+			}
+		}
+		return found;
+	}
+
+	/**
+	 * Returns the tick a row last changed in, counting regeneration that has
+	 * not been worked out yet.
+	 *
+	 * @param row the row
+	 * @param tick the current tick
+	 * @return the tick the health of the row last changed in
+	 */
+	long getChangedTick(int row, long tick) {
+		final long regenerated = Health.regenerationTicks(this.current[row],
+			this.min[row], this.max[row], this.regenRates[row],
+			tick - this.regenTicks[row]);
+		if (regenerated == 0) {
+			return this.changedTicks[row];
+		}
+		return Math.max(this.changedTicks[row],
+			this.regenTicks[row] + regenerated);
+	}
+
+	/**
+	 * Returns the health component that views the given row.
+	 *
+	 * @param row the row
+	 * @return the view for that row
+	 */
+	public Health getHealth(int row) {
+		return this.views[row];
+	}
+
+	/**
+	 * Works out the health of a row at the given tick, without storing it.
+	 *
+	 * @param row the row
+	 * @param tick the current tick
+	 * @return the health after regenerating up to the tick
+	 */
+	int peek(int row, long tick) {
+		return Health.regenerate(this.current[row], this.min[row],
+			this.max[row], this.regenRates[row], tick - this.regenTicks[row]);
+	}
+
+	/**
+	 * Tells threshold listeners about every row whose health is different
+	 * from before a bulk operation.
+	 *
+	 * @param before the health of each row before the operation, or null if
+	 *            there are no listeners
+	 */
+	private void notifyChanged(int[] before) {
+		if (before == null) {
+			return;
+		}
+		final int[] health = this.current;
+		for (int row = 0; row < this.size; ++row) {
+			if (health[row] != before[row]) {
+				HealthThresholds.fire(this.views[row], before[row], health[row],
+					this.min[row], this.max[row]);
+			}
+		}
+	}
+
+	/**
+	 * Returns the number of rows in the store.
+	 *
+	 * @return how many health components are stored here
+	 */
+	public int getSize() {
+		return this.size;
+	}
+
+	/**
+	 * Heals every row that is not dead by the amount at the same index in the
+	 * array. Rows that are at their minimum health are left alone, so this
+	 * does not bring anything back to life.
+	 *
+	 * @param rates how much to heal each row, with at least {@link #getSize()}
+	 *            entries
+	 */
+	public void regenerate(int[] rates) {
+		final long tick = EntityManager.getInstance().getTick();
+		final int[] health = this.current;
+		final int[] lowest = this.min;
+		final int[] highest = this.max;
+		final long[] changed = this.changedTicks;
+		final int[] before = this.copyIfListening();
+		this.settleRegenerating(tick);
+		for (int row = 0; row < this.size; ++row) {
+			final int old = health[row];
+			final int rate = old > lowest[row] ? rates[row] : 0;
+			final long healed = (long) old + rate;
+			final int clamped =
+				(int) Math.max(lowest[row], Math.min(highest[row], healed));
+			health[row] = clamped;
+			changed[row] = clamped == old ? changed[row] : tick;
+		}
+		this.notifyChanged(before);
+	}
+
+	/**
+	 * Removes a health component from the store. It keeps its current values
+	 * and continues to work on its own, but is no longer part of the bulk
+	 * operations. The last row is moved into the gap, so row numbers are not
+	 * stable across removals.
+	 *
+	 * @param health the health component to remove
+	 */
+	public void remove(Health health) {
+		if (health.getStore() != this) {
+			return;
+		}
+		final int row = health.getRow();
+		health.detachFromStore();
+		final int last = this.size - 1;
+		if (row != last) {
+			this.current[row] = this.current[last];
+			this.min[row] = this.min[last];
+			this.max[row] = this.max[last];
+			this.immortal.set(row, this.immortal.get(last));
+			this.changedTicks[row] = this.changedTicks[last];
+			this.regenRates[row] = this.regenRates[last];
+			this.regenTicks[row] = this.regenTicks[last];
+			this.views[row] = this.views[last];
+			this.views[row].moveToRow(row);
+		}
+		this.immortal.clear(last);
+		this.views[last] = null;
+		--this.size;
+	}
+
+	/**
+	 * Brings every row that regenerates up to date, so that the bulk
+	 * operations can then treat all rows the same way.
+	 *
+	 * @param tick the current tick
+	 */
+	private void settleRegenerating(long tick) {
+		final int[] rates = this.regenRates;
+		for (int row = 0; row < this.size; ++row) {
+			if (rates[row] != 0) {
+				this.settle(row, tick);
+			}
+		}
+	}
+
+	/**
+	 * Stores the health of a row regenerated up to the given tick.
+	 *
+	 * @param row the row
+	 * @param tick the current tick
+	 * @return the up to date health
+	 */
+	int settle(int row, long tick) {
+		final int value = this.peek(row, tick);
+		if (value != this.current[row]) {
+			this.current[row] = value;
+			this.changedTicks[row] = tick;
+		}
+		this.regenTicks[row] = tick;
+		return value;
+	}
+}
@@ -0,0 +1,261 @@
+package com.ikalagaming.entity.component;
+
+import java.util.Arrays;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The health percentages that listeners are registered for, and the listeners
+ * for each. Thresholds are kept sorted in one array, so finding the ones
+ * crossed by a change is a binary search, and a change that does not cross
+ * any costs almost nothing. The arrays are replaced together rather than
+ * changed when listeners are added or removed, so firing needs no locking.
+ *
+ * @author Ches Burks
+ *
+ */
+final class HealthThresholds {
+	/**
+	 * The thresholds and listeners at some point in time. Never modified.
+	 */
+	private static class Registered {
+		/**
+		 * The registered thresholds, in increasing order.
+		 */
+		final float[] thresholds;
+
+		/**
+		 * The listeners for each threshold, by index.
+		 */
+		final HealthListener[][] listeners;
+
+		Registered(float[] thresholds, HealthListener[][] listeners) {
+			this.thresholds = thresholds;
+			this.listeners = listeners;
+		}
+	}
+
+	private static final ReentrantLock registryLock = new ReentrantLock();
+
+	private static volatile Registered registered =
+		new Registered(new float[0], new HealthListener[0][]);
+
+	/**
+	 * Registers a listener for a threshold.
+	 *
+	 * @param threshold the percentage to listen for
+	 * @param listener the listener
+	 */
+	static void add(float threshold, HealthListener listener) {
+		HealthThresholds.registryLock.lock();
+		try {
+			final Registered old = HealthThresholds.registered;
+			final float[] oldThresholds = old.thresholds;
+			final HealthListener[][] oldListeners = old.listeners;
+			int index = Arrays.binarySearch(oldThresholds, threshold);
+			if (index >= 0) {
+				HealthListener[][] updated = oldListeners.clone();
+				HealthListener[] forThreshold = Arrays.copyOf(
+					oldListeners[index], oldListeners[index].length + 1);
+				forThreshold[forThreshold.length - 1] = listener;
+				updated[index] = forThreshold;
+				HealthThresholds.registered =
+					new Registered(oldThresholds, updated);
+				return;
+			}
+			index = -index - 1;
+			float[] newThresholds = new float[oldThresholds.length + 1];
+			HealthListener[][] newListeners =
+				new HealthListener[oldListeners.length + 1][];
+			System.arraycopy(oldThresholds, 0, newThresholds, 0, index);
+			System.arraycopy(oldListeners, 0, newListeners, 0, index);
+			newThresholds[index] = threshold;
+			newListeners[index] = new HealthListener[] {listener};
+			System.arraycopy(oldThresholds, index, newThresholds, index + 1,
+				oldThresholds.length - index);
+			System.arraycopy(oldListeners, index, newListeners, index + 1,
+				oldListeners.length - index);
+			HealthThresholds.registered =
+				new Registered(newThresholds, newListeners);
+		}
+		finally {
+			HealthThresholds.registryLock.unlock();
+		}
+	}
+
+	/**
+	 * Tells the listeners for every threshold between the old and new health.
+	 *
+	 * @param health the health that changed
+	 * @param old the health before the change
+	 * @param updated the health after the change
+	 * @param min the minimum health
+	 * @param max the maximum health
+	 */
+	static void fire(Health health, int old, int updated, int min, int max) {
+		if (old == updated) {
+			return;
+		}
+		HealthThresholds.fire(health, old, min, max, updated, min, max);
+	}
+
+	/**
+	 * Tells the listeners for every threshold between the old and new health,
+	 * when the minimum or maximum may have changed as well. The percentages
+	 * before and after are each worked out with their own bounds.
+	 *
+	 * @param health the health that changed
+	 * @param old the health before the change
+	 * @param oldMin the minimum health before the change
+	 * @param oldMax the maximum health before the change
+	 * @param updated the health after the change
+	 * @param min the minimum health after the change
+	 * @param max the maximum health after the change
+	 */
+	static void fire(Health health, int old, int oldMin, int oldMax,
+		int updated, int min, int max) {
+		final Registered snapshot = HealthThresholds.registered;
+		final float[] current = snapshot.thresholds;
+		if (current.length == 0 || oldMax == oldMin || max == min) {
+			return;
+		}
+		final HealthListener[][] currentListeners = snapshot.listeners;
+		final float before = (old - oldMin) / (float) (oldMax - oldMin);
+		final float after = (updated - min) / (float) (max - min);
+		if (after < before) {
+			// down past thresholds where after <= threshold < before
+			int index = HealthThresholds.firstAtLeast(current, after);
+			for (; index < current.length && current[index] < before; ++index) {
+				for (HealthListener listener : currentListeners[index]) {
+					listener.thresholdCrossed(health, current[index], true);
+				}
+			}
+		}
+		else if (after > before) {
+			/*
+			 * Up past thresholds where before < threshold <= after. Leaving
+			 * the minimum also counts as going up past the death threshold,
+			 * which could otherwise never be crossed upward.
+			 */
+			int index = old == oldMin
+				? HealthThresholds.firstAtLeast(current, Health.DEATH_THRESHOLD)
+				: HealthThresholds.firstAbove(current, before);
+			for (; index < current.length && current[index] <= after; ++index) {
+				for (HealthListener listener : currentListeners[index]) {
+					listener.thresholdCrossed(health, current[index], false);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Returns the index of the first threshold greater than the value.
+	 *
+	 * @param sorted the thresholds
+	 * @param value the value to compare
+	 * @return the index, or the length if there is none
+	 */
+	private static int firstAbove(float[] sorted, float value) {
+		int low = 0;
+		int high = sorted.length;
+		while (low < high) {
+			final int middle = (low + high) >>> 1;
+			if (sorted[middle] > value) {
+				high = middle;
+			}
+			else {
+				low = middle + 1;
+			}
+		}
+		return low;
+	}
+
+	/**
+	 * Returns the index of the first threshold greater than or equal to the
+	 * value.
+	 *
+	 * @param sorted the thresholds
+	 * @param value the value to compare
+	 * @return the index, or the length if there is none
+	 */
+	private static int firstAtLeast(float[] sorted, float value) {
+		int low = 0;
+		int high = sorted.length;
+		while (low < high) {
+			final int middle = (low + high) >>> 1;
+			if (sorted[middle] >= value) {
+				high = middle;
+			}
+			else {
+				low = middle + 1;
+			}
+		}
+		return low;
+	}
+
+	/**
+	 * Returns true if any listeners are registered.
+	 *
+	 * @return true if there is at least one listener
+	 */
+	static boolean hasListeners() {
+		return HealthThresholds.registered.thresholds.length > 0;
+	}
+
+	/**
+	 * Removes a listener from a threshold, if it was registered.
+	 *
+	 * @param threshold the percentage it was registered for
+	 * @param listener the listener
+	 */
+	static void remove(float threshold, HealthListener listener) {
+		HealthThresholds.registryLock.lock();
+		try {
+			final Registered old = HealthThresholds.registered;
+			final float[] oldThresholds = old.thresholds;
+			final HealthListener[][] oldListeners = old.listeners;
+			final int index = Arrays.binarySearch(oldThresholds, threshold);
+			if (index < 0) {
+				return;
+			}
+			HealthListener[] forThreshold = oldListeners[index];
+			int found = -1;
+			for (int i = 0; i < forThreshold.length; ++i) {
+				if (forThreshold[i] == listener) {
+					found = i;
+					break;
+				}
+			}
+			if (found < 0) {
+				return;
+			}
+			if (forThreshold.length > 1) {
+				HealthListener[] remaining =
+					new HealthListener[forThreshold.length - 1];
+				System.arraycopy(forThreshold, 0, remaining, 0, found);
+				System.arraycopy(forThreshold, found + 1, remaining, found,
+					remaining.length - found);
+				HealthListener[][] updated = oldListeners.clone();
+				updated[index] = remaining;
+				HealthThresholds.registered =
+					new Registered(oldThresholds, updated);
+				return;
+			}
+			float[] newThresholds = new float[oldThresholds.length - 1];
+			HealthListener[][] newListeners =
+				new HealthListener[oldListeners.length - 1][];
+			System.arraycopy(oldThresholds, 0, newThresholds, 0, index);
+			System.arraycopy(oldListeners, 0, newListeners, 0, index);
+			System.arraycopy(oldThresholds, index + 1, newThresholds, index,
+				newThresholds.length - index);
+			System.arraycopy(oldListeners, index + 1, newListeners, index,
+				newListeners.length - index);
+			HealthThresholds.registered =
+				new Registered(newThresholds, newListeners);
+		}
+		finally {
+			HealthThresholds.registryLock.unlock();
+		}
+	}
+
+	private HealthThresholds() {}
+}
@@ -2,15 +2,249 @@ package com.ikalagaming.entity.component;
 
 import com.ikalagaming.entity.InventorySlot;
 import com.ikalagaming.item.Item;
+import com.ikalagaming.item.ItemRegistry;
 import com.ikalagaming.item.ItemStack;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Predicate;
+
 /**
  * Contains slots for items and methods for modifying the contents.
+ * <p>
+ * The inventory keeps track of which slots are empty, and for each type of
+ * item, which slots hold stacks that are not full yet and how many of the
+ * item there are in total. This lets items be added, and the inventory be
+ * checked for space or counted, without looking at every slot, which matters
+ * for containers with thousands of slots. Slots are only changed through the
+ * methods of the inventory, which keep the indexes up to date, so
+ * {@link #getSlot(int)} hands out read only copies of the slots.
+ * </p>
+ * <p>
+ * An inventory can also be created packed, for large containers that are kept
+ * in memory but rarely looked at, such as banks. A packed inventory stores
+ * each slot as a single {@code long} holding the count of items and either
+ * the {@link ItemRegistry registry} id of the item, or for items that are not
+ * registered, an index into a small table of the items it contains. This is
+ * instead of a slot object, a stack object, and an item reference per slot.
+ * Items that stack with each other share one place in the table, so a slot
+ * may give back an equivalent item rather than the one that was put in, and
+ * places no slot refers to any more are reused.
+ * The methods that read and write slots as plain values, like
+ * {@link #getItem(int)} and {@link #setSlot(int, Item, int)}, never create
+ * any objects in either form.
+ * </p>
+ * <p>
+ * An inventory that other threads need to read, for example to send it over
+ * the network or save it, can be created {@link Storage#CONCURRENT
+ * concurrent}. It is packed, and changes are only made while holding
+ * {@link #getLock() its lock}, which the methods that change it take
+ * themselves. When the lock is released, an immutable {@link Snapshot} of the
+ * slots is published, copying only the parts that changed. Other threads
+ * read from {@link #snapshot()} instead of the inventory, which never blocks
+ * and never shows a slot halfway through changing.
+ * </p>
  *
  * @author Ches Burks
  *
  */
 public class Inventory extends Component {
+	/**
+	 * The slots holding one type of item.
+	 */
+	private static class ItemIndex {
+		/**
+		 * Slots holding stacks that have room for more.
+		 */
+		final BitSet partial = new BitSet();
+
+		/**
+		 * How many of the item there are across all slots.
+		 */
+		long total;
+
+		/**
+		 * How many slots hold the item.
+		 */
+		int stacks;
+	}
+
+	/**
+	 * The lock given out by a concurrent inventory, which publishes a new
+	 * snapshot when the last hold on it is released.
+	 */
+	private class PublishingLock implements Lock {
+		@Override
+		public void lock() {
+			Inventory.this.lock.lock();
+		}
+
+		@Override
+		public void lockInterruptibly() throws InterruptedException {
+			Inventory.this.lock.lockInterruptibly();
+		}
+
+		@Override
+		public Condition newCondition() {
+			return Inventory.this.lock.newCondition();
+		}
+
+		@Override
+		public boolean tryLock() {
+			return Inventory.this.lock.tryLock();
+		}
+
+		@Override
+		public boolean tryLock(long time, TimeUnit unit)
+			throws InterruptedException {
+			return Inventory.this.lock.tryLock(time, unit);
+		}
+
+		@Override
+		public void unlock() {
+			if (Inventory.this.lock.getHoldCount() != 1) {
+				Inventory.this.lock.unlock();
+				return;
+			}
+			try {
+				Inventory.this.publish();
+			}
+			finally {
+				Inventory.this.lock.unlock();
+			}
+		}
+	}
+
+	/**
+	 * An immutable copy of the slots of a {@link Storage#CONCURRENT
+	 * concurrent} inventory, as of when its lock was last released. Snapshots
+	 * can be read from any thread without locking. Each one has a version
+	 * that goes up by one each time a changed inventory is published, so
+	 * readers can tell whether anything changed since the last one they saw.
+	 *
+	 * @author Ches Burks
+	 *
+	 */
+	public static final class Snapshot {
+		private final long version;
+
+		private final int size;
+
+		/**
+		 * The packed slots, in chunks that are shared with the snapshots
+		 * before and after this one if they did not change.
+		 */
+		private final long[][] chunks;
+
+		private final Item[] itemTable;
+
+		Snapshot(long version, int size, long[][] chunks, Item[] itemTable) {
+			this.version = version;
+			this.size = size;
+			this.chunks = chunks;
+			this.itemTable = itemTable;
+		}
+
+		/**
+		 * Returns how many items were in the slot.
+		 *
+		 * @param index The index of the slot
+		 * @return The amount of items, or zero if the slot was empty
+		 */
+		public int getAmount(int index) {
+			return (int) (this.getPacked(index) & Inventory.AMOUNT_MASK);
+		}
+
+		/**
+		 * Returns the item that was in the slot.
+		 *
+		 * @param index The index of the slot
+		 * @return The item, or null if the slot was empty
+		 */
+		public Item getItem(int index) {
+			return Inventory.unpackItem(this.getPacked(index), this.itemTable);
+		}
+
+		/**
+		 * Returns the packed value of a slot.
+		 *
+		 * @param index The index of the slot
+		 * @return The packed slot
+		 */
+		private long getPacked(int index) {
+			if (index < 0 || index >= this.size) {
+				throw new IndexOutOfBoundsException(Integer.toString(index));
+			}
+			return this.chunks[index / Inventory.SNAPSHOT_CHUNK][index
+				% Inventory.SNAPSHOT_CHUNK];
+		}
+
+		/**
+		 * Returns how many slots the inventory contains.
+		 *
+		 * @return The number of slots
+		 */
+		public int getSize() {
+			return this.size;
+		}
+
+		/**
+		 * Returns the version of the snapshot, which starts at zero for a new
+		 * inventory and goes up by one for each snapshot published after.
+		 *
+		 * @return The version
+		 */
+		public long getVersion() {
+			return this.version;
+		}
+	}
+
+	/**
+	 * How an inventory stores its slots.
+	 */
+	public enum Storage {
+		/**
+		 * A slot object and stack object for each slot.
+		 */
+		OBJECTS,
+		/**
+		 * Each slot packed into a single number, to save memory.
+		 */
+		PACKED,
+		/**
+		 * Packed, with snapshots published for other threads to read.
+		 */
+		CONCURRENT;
+	}
+
+	/**
+	 * The total amount of one type of item, used to plan bulk operations.
+	 */
+	private static class ItemTotal {
+		/**
+		 * The item the amount is made up of.
+		 */
+		final Item item;
+
+		/**
+		 * How many of the item there are, or are left to place.
+		 */
+		long amount;
+
+		ItemTotal(Item item) {
+			this.item = item;
+		}
+	}
 
 	/**
 	 * The name of the component returned by {@link #getType()}. ( {@value} )
@@ -18,10 +252,247 @@ public class Inventory extends Component {
 	public static final String TYPE_NAME = "Inventory";
 
 	/**
-	 * The array of slots that contain items in this inventory.
+	 * The registered type of this component, with the name {@link #TYPE_NAME}.
+	 */
+	public static final ComponentType<Inventory> TYPE =
+		ComponentType.register(Inventory.class, Inventory.TYPE_NAME);
+
+	/**
+	 * The bits of a packed slot holding the item count.
+	 */
+	private static final long AMOUNT_MASK = 0xFFFFFFFFL;
+
+	/**
+	 * How far the item index is shifted in a packed slot. The index is one more
+	 * than the position in the table, so that an empty slot is zero.
+	 */
+	private static final int ITEM_SHIFT = 32;
+
+	/**
+	 * The bits of a packed slot holding the item index, once shifted down.
+	 * The top byte is left free for slot flags.
+	 */
+	private static final int ITEM_MASK = 0xFFFFFF;
+
+	/**
+	 * Set on packed slots where the item index is a registry id rather than a
+	 * position in the item table.
+	 */
+	private static final long REGISTERED_FLAG = 1L << 56;
+
+	/**
+	 * How many slots are copied together when publishing a snapshot.
+	 */
+	private static final int SNAPSHOT_CHUNK = 64;
+
+	/**
+	 * Returns the key items are indexed under, so that items which can stack
+	 * together have equal keys. Registered items use their shared definition,
+	 * which is the only item with their id. Other items stack with others of
+	 * the same class, so that is used for them.
+	 *
+	 * @param item the item
+	 * @return the key for the item
+	 * @see Item#canStackWith(Item)
+	 */
+	private static Object keyOf(Item item) {
+		if (!item.isRegistered()) {
+			return item.getClass();
+		}
+		return ItemRegistry.getItem(item.getId());
+	}
+
+	/**
+	 * Returns the key an item is totaled under when planning bulk operations.
+	 * This is the same as the index key, unless the item is pickier than that
+	 * about what it stacks with, in which case it is totaled on its own.
+	 *
+	 * @param totals the totals found so far
+	 * @param item the item
+	 * @return the key to total the item under
+	 */
+	private static Object totalKey(Map<Object, ItemTotal> totals, Item item) {
+		final Object key = Inventory.keyOf(item);
+		ItemTotal existing = totals.get(key);
+		if (existing == null || existing.item.canStackWith(item)) {
+			return key;
+		}
+		return item;
+	}
+
+	/**
+	 * Moves every item that matches the filter from one inventory to another,
+	 * as many as there is room for. Matching items are totaled by type first,
+	 * so partial stacks in the source are merged, and each type is added to
+	 * the stacks of the destination that have room before empty slots are
+	 * used. Every slot that changes is written once, no matter how many
+	 * stacks are moved.
+	 * <p>
+	 * Neither inventory is locked. Inventories shared between threads should
+	 * have both of their {@link #getLock() locks} held while this is called.
+	 * </p>
+	 *
+	 * @param from The inventory to move items out of
+	 * @param to The inventory to move items into
+	 * @param filter Which items to move
+	 * @return How many items were moved
+	 */
+	public static long transferAll(Inventory from, Inventory to,
+		Predicate<? super Item> filter) {
+		if (from == to) {
+			return 0;
+		}
+		final int size = from.getSize();
+		BitSet matched = new BitSet(size);
+		Map<Object, ItemTotal> totals = new LinkedHashMap<>();
+		for (int i = from.nextUsedSlot(0); i >= 0; i =
+			from.nextUsedSlot(i + 1)) {
+			final Item item = from.getItem(i);
+			if (!filter.test(item)) {
+				continue;
+			}
+			matched.set(i);
+			totals.computeIfAbsent(Inventory.totalKey(totals, item),
+				unused -> new ItemTotal(item)).amount += from.getAmount(i);
+		}
+
+		long moved = 0;
+		for (ItemTotal total : totals.values()) {
+			total.amount = to.insert(total.item, total.amount);
+			moved += total.amount;
+		}
+		if (moved == 0) {
+			return 0;
+		}
+
+		// take what was moved out of the source, now holding how many to take
+		for (int i = matched.nextSetBit(0); i >= 0; i =
+			matched.nextSetBit(i + 1)) {
+			final Item item = from.getItem(i);
+			ItemTotal total = totals.get(Inventory.totalKey(totals, item));
+			final int amount = from.getAmount(i);
+			final int taken = (int) Math.min(total.amount, amount);
+			if (taken > 0) {
+				total.amount -= taken;
+				from.setSlot(i, item, amount - taken);
+			}
+		}
+		return moved;
+	}
+
+	/**
+	 * Returns the item a packed slot refers to.
+	 *
+	 * @param packed The packed slot
+	 * @param itemTable The item table of the inventory the slot is from
+	 * @return The item, or null if the slot is empty
+	 */
+	private static Item unpackItem(long packed, Item[] itemTable) {
+		final int position =
+			(int) (packed >>> Inventory.ITEM_SHIFT) & Inventory.ITEM_MASK;
+		if (position == 0) {
+			return null;
+		}
+		if ((packed & Inventory.REGISTERED_FLAG) != 0) {
+			return ItemRegistry.getItem(position - 1);
+		}
+		return itemTable[position - 1];
+	}
+
+	/**
+	 * The array of slots that contain items in this inventory, or null if it
+	 * is packed.
 	 */
 	private InventorySlot[] inventorySlots;
 
+	/**
+	 * The packed slots, or null if the inventory is not packed.
+	 */
+	private long[] packedSlots;
+
+	/**
+	 * The items referred to by packed slots.
+	 */
+	private Item[] itemTable;
+
+	/**
+	 * How many slots refer to each position in {@link #itemTable}.
+	 */
+	private int[] itemTableCounts;
+
+	/**
+	 * The position in {@link #itemTable} of each kind of item, by
+	 * {@link #keyOf(Item)}.
+	 */
+	private Map<Object, Integer> itemTableIndexes;
+
+	/**
+	 * Positions in {@link #itemTable} that no slot refers to, which can be
+	 * reused.
+	 */
+	private BitSet freeTablePositions;
+
+	/**
+	 * How many positions in {@link #itemTable} have ever been used.
+	 */
+	private int itemTableSize;
+
+	/**
+	 * True if {@link #itemTable} was published in a snapshot, so it has to be
+	 * copied before a position in it is reused.
+	 */
+	private boolean itemTableShared;
+
+	/**
+	 * The tick each slot last changed in.
+	 */
+	private long[] slotChangedTicks;
+
+	/**
+	 * Held while changing the inventory from more than one thread.
+	 */
+	private final ReentrantLock lock;
+
+	/**
+	 * The lock given out by {@link #getLock()}, which is the same lock unless
+	 * the inventory is concurrent.
+	 */
+	private final Lock writerLock;
+
+	/**
+	 * The latest snapshot, or null if the inventory is not concurrent.
+	 */
+	private volatile Snapshot published;
+
+	/**
+	 * The chunks of slots changed since the last snapshot was published, or
+	 * null if the inventory is not concurrent.
+	 */
+	private final BitSet dirtyChunks;
+
+	/**
+	 * The empty slots.
+	 */
+	private final BitSet freeSlots;
+
+	private int freeCount;
+
+	/**
+	 * The slots holding each type of item, by {@link #keyOf(Item)}.
+	 */
+	private final Map<Object, ItemIndex> itemIndexes;
+
+	/**
+	 * The key each slot is indexed under, or null if it is indexed as empty.
+	 * Not needed when packed, since the old value is still in the slot.
+	 */
+	private final Object[] indexedKeys;
+
+	/**
+	 * The amount each slot was indexed with, or null when packed.
+	 */
+	private final int[] indexedAmounts;
+
 	/**
 	 * Constructs a new Inventory with the given amount of slots and a component
 	 * type of Inventory.
@@ -29,49 +500,240 @@ public class Inventory extends Component {
 	 * @param slots The number of slots the inventory will have
 	 */
 	public Inventory(int slots) {
-		this.inventorySlots = new InventorySlot[slots];
+		this(slots, false);
 	}
 
 	/**
-	 * Adds the item to the first available {@link InventorySlot InventorySlot},
-	 * if possible.
+	 * Constructs a new Inventory with the given amount of slots, which may be
+	 * packed to save memory.
+	 *
+	 * @param slots The number of slots the inventory will have
+	 * @param packed True to store each slot as a single number
+	 */
+	public Inventory(int slots, boolean packed) {
+		this(slots, packed ? Storage.PACKED : Storage.OBJECTS);
+	}
+
+	/**
+	 * Constructs a new Inventory with the given amount of slots, stored the
+	 * given way.
+	 *
+	 * @param slots The number of slots the inventory will have
+	 * @param storage How to store the slots
+	 */
+	public Inventory(int slots, Storage storage) {
+		if (storage != Storage.OBJECTS) {
+			this.packedSlots = new long[slots];
+			this.itemTable = new Item[4];
+			this.itemTableCounts = new int[4];
+			this.itemTableIndexes = new HashMap<>();
+			this.freeTablePositions = new BitSet();
+			this.itemTableSize = 0;
+			this.indexedKeys = null;
+			this.indexedAmounts = null;
+		}
+		else {
+			this.inventorySlots = new InventorySlot[slots];
+			for (int i = 0; i < slots; ++i) {
+				this.inventorySlots[i] = new InventorySlot();
+			}
+			this.indexedKeys = new Object[slots];
+			this.indexedAmounts = new int[slots];
+		}
+		this.slotChangedTicks = new long[slots];
+		this.lock = new ReentrantLock();
+		if (storage == Storage.CONCURRENT) {
+			this.writerLock = new PublishingLock();
+			final int chunk = Inventory.SNAPSHOT_CHUNK;
+			final int chunkCount = (slots + chunk - 1) / chunk;
+			this.dirtyChunks = new BitSet(chunkCount);
+			long[][] chunks = new long[chunkCount][];
+			for (int i = 0; i < chunkCount; ++i) {
+				chunks[i] = new long[Math.min(chunk, slots - i * chunk)];
+			}
+			this.published = new Snapshot(0, slots, chunks, this.itemTable);
+			this.itemTableShared = true;
+		}
+		else {
+			this.writerLock = this.lock;
+			this.dirtyChunks = null;
+		}
+		this.freeSlots = new BitSet(slots);
+		this.freeSlots.set(0, slots);
+		this.freeCount = slots;
+		this.itemIndexes = new HashMap<>();
+		Arrays.fill(this.slotChangedTicks, this.getChangedTick());
+	}
+
+	/**
+	 * Adds the item to a stack of the same item that has room, or to the first
+	 * empty {@link InventorySlot InventorySlot} if there is no such stack.
+	 * Nothing happens if there is no room.
 	 *
 	 * @param item The item to add
+	 * @return True if the item was added, false if there was no room
 	 */
-	public void addItem(Item item) {
-		for (InventorySlot slot : this.inventorySlots) {
-			if (slot.isEmpty()) {
-				slot.getItemStack().setItem(item);
-				slot.getItemStack().setAmount(1);
+	public boolean addItem(Item item) {
+		final boolean locked = this.beginWrite();
+		try {
+			final int partial = this.nextPartialStack(item, 0);
+			if (partial >= 0) {
+				this.setSlot(partial, this.getItem(partial),
+					this.getAmount(partial) + 1);
+				return true;
 			}
-			else if (slot.getItemStack().getItem().canStackWith(item)) {
-				slot.getItemStack().addItems(1);
-				break;
+			final int free = this.nextFreeSlot(0);
+			if (free < 0) {
+				return false;
 			}
+			this.setSlot(free, item, 1);
+			return true;
+		}
+		finally {
+			this.endWrite(locked);
 		}
 	}
 
 	/**
-	 * Combines the {@link ItemStack ItemStack} with the first available stack,
-	 * if possible.
+	 * Adds the items in the {@link ItemStack ItemStack} to stacks of the same
+	 * item that have room, and then to empty slots. The given stack is reduced
+	 * by however many items were added, so anything left in it did not fit.
 	 *
 	 * @param items The itemstack to add
 	 */
 	public void addItemStack(ItemStack items) {
-		// try and add to an existing slot
-		for (InventorySlot slot : this.inventorySlots) {
-			if (slot.getItemStack().getItem().canStackWith(items.getItem())) {
-				ItemStack overflow = slot.combineItemStacks(items);
-				/*
-				 * Combine stacks with the first available. if it can't all fit,
-				 * add the extra items to another slot/stack.
-				 */
-				if (!overflow.isEmpty()) {
-					this.addItemStack(overflow);
+		final boolean locked = this.beginWrite();
+		try {
+			if (items.isEmpty()) {
+				return;
+			}
+			final int added =
+				(int) this.insert(items.getItem(), items.getAmount());
+			items.setAmount(items.getAmount() - added);
+		}
+		finally {
+			this.endWrite(locked);
+		}
+	}
+
+	/**
+	 * Takes the writer lock if the inventory is concurrent.
+	 *
+	 * @return True if the lock was taken, and must be released by
+	 *         {@link #endWrite(boolean)}
+	 */
+	private boolean beginWrite() {
+		if (this.dirtyChunks == null) {
+			return false;
+		}
+		this.writerLock.lock();
+		return true;
+	}
+
+	/**
+	 * Merges stacks of the same item, so that as many stacks as possible are
+	 * full. Items stay in the slots they are in, with the earliest stacks of
+	 * each item filled first and the items in later stacks moved into them.
+	 * The whole inventory is planned before any slot is changed, and each
+	 * slot that changes is written once.
+	 *
+	 * @see #sortBy(Comparator)
+	 */
+	public void compact() {
+		final boolean locked = this.beginWrite();
+		try {
+			Map<Object, ItemTotal> totals = this.totalItems();
+			for (int i = this.nextUsedSlot(0); i >= 0; i =
+				this.nextUsedSlot(i + 1)) {
+				final Item item = this.getItem(i);
+				ItemTotal total = totals.get(Inventory.totalKey(totals, item));
+				final int amount =
+					(int) Math.min(total.amount, item.getMaxStackSize());
+				total.amount -= amount;
+				if (amount != this.getAmount(i)) {
+					this.setSlot(i, item, amount);
 				}
-				break;
 			}
 		}
+		finally {
+			this.endWrite(locked);
+		}
+	}
+
+	/**
+	 * Returns how many of the item there are in the inventory, counting every
+	 * item it can stack with.
+	 *
+	 * @param item The item to count
+	 * @return The total number of that item across all slots
+	 */
+	public long countItems(Item item) {
+		ItemIndex index = this.itemIndexes.get(Inventory.keyOf(item));
+		return index == null ? 0 : index.total;
+	}
+
+	/**
+	 * Releases the writer lock if it was taken by {@link #beginWrite()}, which
+	 * publishes a snapshot if this was the last hold on it.
+	 *
+	 * @param locked What {@link #beginWrite()} returned
+	 */
+	private void endWrite(boolean locked) {
+		if (locked) {
+			this.writerLock.unlock();
+		}
+	}
+
+	/**
+	 * Returns how many items are in the slot, without creating a slot object.
+	 *
+	 * @param index The index of the slot
+	 * @return The number of items, or zero if the slot is empty
+	 */
+	public int getAmount(int index) {
+		if (this.packedSlots != null) {
+			return (int) (this.packedSlots[index] & Inventory.AMOUNT_MASK);
+		}
+		ItemStack stack = this.inventorySlots[index].getItemStack();
+		return stack == null ? 0 : stack.getAmount();
+	}
+
+	/**
+	 * Returns how many slots are empty.
+	 *
+	 * @return The number of empty slots
+	 */
+	public int getFreeSlotCount() {
+		return this.freeCount;
+	}
+
+	/**
+	 * Returns the item in the slot, without creating a slot object.
+	 *
+	 * @param index The index of the slot
+	 * @return The item, or null if the slot is empty
+	 */
+	public Item getItem(int index) {
+		if (this.packedSlots != null) {
+			return Inventory.unpackItem(this.packedSlots[index],
+				this.itemTable);
+		}
+		ItemStack stack = this.inventorySlots[index].getItemStack();
+		return stack == null || stack.isEmpty() ? null : stack.getItem();
+	}
+
+	/**
+	 * Returns the lock for the inventory. It is held by
+	 * {@link com.ikalagaming.entity.TradeSettlement trade settlement} while it
+	 * checks and changes slots, and should be held by anything else that
+	 * changes the inventory while trades might be settled on another thread.
+	 * For a concurrent inventory, holding it makes several changes show up in
+	 * a single snapshot, which is published when it is released.
+	 *
+	 * @return the inventory lock
+	 */
+	public Lock getLock() {
+		return this.writerLock;
 	}
 
 	/**
@@ -80,18 +742,77 @@ public class Inventory extends Component {
 	 * @return The size of the slot array
 	 */
 	public int getSize() {
-		return this.inventorySlots.length;
+		return this.slotChangedTicks.length;
 	}
 
 	/**
-	 * Returns the {@link InventorySlot InventorySlot} in the given index, if it
-	 * exists.
+	 * Returns a {@link InventorySlot#readOnly(ItemStack) read only} copy of
+	 * the {@link InventorySlot InventorySlot} in the given index. Changing it
+	 * is not possible, since that would get around the indexes, so slots are
+	 * changed with {@link #setSlot(int, Item, int)} and the other methods of
+	 * the inventory instead. This creates objects every time, unlike
+	 * {@link #getItem(int)} and {@link #getAmount(int)}.
 	 *
 	 * @param index The index of the slot to retrieve
-	 * @return The slot in the given index
+	 * @return A copy of the slot in the given index
 	 */
 	public InventorySlot getSlot(int index) {
-		return this.inventorySlots[index];
+		if (this.packedSlots == null) {
+			return InventorySlot
+				.readOnly(this.inventorySlots[index].getItemStack());
+		}
+		final int amount = this.getAmount(index);
+		return InventorySlot.readOnly(
+			amount > 0 ? new ItemStack(this.getItem(index), amount) : null);
+	}
+
+	/**
+	 * Returns the tick the slot at the given index last changed in.
+	 *
+	 * @param index The index of the slot
+	 * @return The tick of the last change to that slot
+	 */
+	public long getSlotChangedTick(int index) {
+		return this.slotChangedTicks[index];
+	}
+
+	/**
+	 * Returns how many slots hold the item, or items it can stack with.
+	 *
+	 * @param item The item to look for
+	 * @return The number of stacks of that item
+	 */
+	public int getStackCount(Item item) {
+		ItemIndex index = this.itemIndexes.get(Inventory.keyOf(item));
+		return index == null ? 0 : index.stacks;
+	}
+
+	/**
+	 * Returns true if the inventory publishes snapshots for other threads.
+	 *
+	 * @return True if the inventory is concurrent
+	 * @see Storage#CONCURRENT
+	 */
+	public boolean isConcurrent() {
+		return this.dirtyChunks != null;
+	}
+
+	/**
+	 * Returns true if the inventory stores each slot as a single number.
+	 *
+	 * @return True if the inventory is packed
+	 * @see #Inventory(int, boolean)
+	 */
+	public boolean isPacked() {
+		return this.packedSlots != null;
+	}
+
+	/**
+	 * Returns {@link #TYPE}.
+	 */
+	@Override
+	public ComponentType<Inventory> getComponentType() {
+		return Inventory.TYPE;
 	}
 
 	/**
@@ -102,19 +823,456 @@ public class Inventory extends Component {
 		return Inventory.TYPE_NAME;
 	}
 
+	/**
+	 * Records that a slot needs to be copied into the next snapshot, if the
+	 * inventory is concurrent.
+	 *
+	 * @param index The index of the slot
+	 */
+	private void markChunkDirty(int index) {
+		if (this.dirtyChunks != null) {
+			this.dirtyChunks.set(index / Inventory.SNAPSHOT_CHUNK);
+		}
+	}
+
+	/**
+	 * Records that the slot at the given index of an inventory that is not
+	 * packed changed in the current tick, and updates the indexes for it.
+	 *
+	 * @param index The index of the slot that changed
+	 */
+	private void markSlotChanged(int index) {
+		this.markChanged();
+		this.slotChangedTicks[index] = this.getChangedTick();
+		this.reindex(index, this.indexedKeys[index],
+			this.indexedAmounts[index]);
+		this.indexedKeys[index] = this.indexKey(index);
+		this.indexedAmounts[index] = this.getAmount(index);
+	}
+
+	/**
+	 * Adds as many of an item as there is room for, to stacks of the same
+	 * item that have room and then to empty slots.
+	 *
+	 * @param item The item to add
+	 * @param count How many to add
+	 * @return How many were added
+	 */
+	private long insert(Item item, long count) {
+		long remaining = count;
+		int index = this.nextPartialStack(item, 0);
+		while (remaining > 0 && index >= 0) {
+			final Item stacked = this.getItem(index);
+			final int amount = this.getAmount(index);
+			final int added = (int) Math.min(remaining,
+				stacked.getMaxStackSize() - amount);
+			this.setSlot(index, stacked, amount + added);
+			remaining -= added;
+			index = this.nextPartialStack(item, index + 1);
+		}
+		index = this.nextFreeSlot(0);
+		while (remaining > 0 && index >= 0) {
+			final int added =
+				(int) Math.min(remaining, item.getMaxStackSize());
+			this.setSlot(index, item, added);
+			remaining -= added;
+			index = this.nextFreeSlot(index + 1);
+		}
+		return count - remaining;
+	}
+
+	/**
+	 * Returns the key the slot should be indexed under.
+	 *
+	 * @param index The index of the slot
+	 * @return The key of the item in the slot, or null if it is empty
+	 */
+	private Object indexKey(int index) {
+		final Item item = this.getItem(index);
+		return item == null ? null : Inventory.keyOf(item);
+	}
+
+	/**
+	 * Returns the index of the first empty slot at or after the given index.
+	 *
+	 * @param fromIndex The index to start looking at
+	 * @return The index of an empty slot, or -1 if there are none
+	 */
+	public int nextFreeSlot(int fromIndex) {
+		if (fromIndex >= this.getSize()) {
+			return -1;
+		}
+		return this.freeSlots.nextSetBit(fromIndex);
+	}
+
+	/**
+	 * Returns the index of the first slot at or after the given index that is
+	 * not empty.
+	 *
+	 * @param fromIndex The index to start looking at
+	 * @return The index of a slot holding items, or -1 if there are none
+	 */
+	private int nextUsedSlot(int fromIndex) {
+		final int slot = this.freeSlots.nextClearBit(fromIndex);
+		return slot < this.getSize() ? slot : -1;
+	}
+
+	/**
+	 * Returns the index of the first slot at or after the given index that
+	 * holds a stack the item can be added to, which is not full yet.
+	 *
+	 * @param item The item to find a stack for
+	 * @param fromIndex The index to start looking at
+	 * @return The index of a stack with room, or -1 if there are none
+	 */
+	public int nextPartialStack(Item item, int fromIndex) {
+		ItemIndex index = this.itemIndexes.get(Inventory.keyOf(item));
+		if (index == null) {
+			return -1;
+		}
+		int slot = index.partial.nextSetBit(fromIndex);
+		while (slot >= 0) {
+			// items may be pickier than the class they are indexed by
+			if (this.getItem(slot).canStackWith(item)) {
+				return slot;
+			}
+			slot = index.partial.nextSetBit(slot + 1);
+		}
+		return -1;
+	}
+
+	/**
+	 * Packs an item and amount into a single number.
+	 *
+	 * @param item The item, which must not be null
+	 * @param amount How many of the item, which must be positive
+	 * @return The packed slot
+	 */
+	private long pack(Item item, int amount) {
+		final int id = item.getId();
+		if (id != Item.UNREGISTERED && id < Inventory.ITEM_MASK
+			&& ItemRegistry.getItem(id) == item) {
+			// the shared definition can be found again from its id
+			return Inventory.REGISTERED_FLAG
+				| ((long) (id + 1) << Inventory.ITEM_SHIFT)
+				| (amount & Inventory.AMOUNT_MASK);
+		}
+		final Object key = Inventory.keyOf(item);
+		Integer position = this.itemTableIndexes.get(key);
+		// items may be pickier than their key, and then get their own place
+		if (position == null || !this.itemTable[position].canStackWith(item)) {
+			position = this.addToItemTable(item);
+			this.itemTableIndexes.putIfAbsent(key, position);
+		}
+		++this.itemTableCounts[position];
+		return ((long) (position + 1) << Inventory.ITEM_SHIFT)
+			| (amount & Inventory.AMOUNT_MASK);
+	}
+
+	/**
+	 * Puts an item in the item table, reusing a position no slot refers to if
+	 * there is one.
+	 *
+	 * @param item The item to add
+	 * @return The position of the item in the table
+	 */
+	private int addToItemTable(Item item) {
+		int position = this.freeTablePositions.nextSetBit(0);
+		if (position >= 0) {
+			this.freeTablePositions.clear(position);
+			if (this.itemTableShared) {
+				// snapshots may still have slots that refer to the old item
+				this.itemTable = this.itemTable.clone();
+				this.itemTableShared = false;
+			}
+		}
+		else {
+			position = this.itemTableSize;
+			if (position >= Inventory.ITEM_MASK) {
+				throw new IllegalStateException("Too many different items");
+			}
+			++this.itemTableSize;
+			if (position >= this.itemTable.length) {
+				this.itemTable =
+					Arrays.copyOf(this.itemTable, this.itemTable.length * 2);
+				this.itemTableCounts = Arrays.copyOf(this.itemTableCounts,
+					this.itemTableCounts.length * 2);
+				this.itemTableShared = false;
+			}
+		}
+		this.itemTable[position] = item;
+		return position;
+	}
+
+	/**
+	 * Gives back the place in the item table a packed slot referred to, which
+	 * is freed once no slot refers to it.
+	 *
+	 * @param packed The old value of the slot
+	 */
+	private void releaseItem(long packed) {
+		if ((packed & Inventory.REGISTERED_FLAG) != 0) {
+			return;
+		}
+		final int position =
+			((int) (packed >>> Inventory.ITEM_SHIFT) & Inventory.ITEM_MASK) - 1;
+		if (position < 0 || --this.itemTableCounts[position] > 0) {
+			return;
+		}
+		final Item item = this.itemTable[position];
+		this.itemTableIndexes.remove(Inventory.keyOf(item), position);
+		this.freeTablePositions.set(position);
+		if (!this.itemTableShared) {
+			this.itemTable[position] = null;
+		}
+	}
+
+	/**
+	 * Publishes a snapshot of the slots if any changed since the last one. The
+	 * writer lock must be held. Only the chunks of slots that changed are
+	 * copied, the rest are shared with the last snapshot.
+	 */
+	private void publish() {
+		if (this.dirtyChunks.isEmpty()) {
+			return;
+		}
+		final Snapshot last = this.published;
+		long[][] chunks = last.chunks.clone();
+		final int chunk = Inventory.SNAPSHOT_CHUNK;
+		for (int i = this.dirtyChunks.nextSetBit(0); i >= 0; i =
+			this.dirtyChunks.nextSetBit(i + 1)) {
+			chunks[i] = Arrays.copyOfRange(this.packedSlots, i * chunk,
+				Math.min((i + 1) * chunk, this.packedSlots.length));
+		}
+		this.dirtyChunks.clear();
+		this.published = new Snapshot(last.version + 1,
+			this.packedSlots.length, chunks, this.itemTable);
+		this.itemTableShared = true;
+	}
+
+	/**
+	 * Moves a slot to where it belongs in the indexes, based on what it holds
+	 * now.
+	 *
+	 * @param slot The index of the slot
+	 * @param oldKey The key the slot was indexed under, or null if empty
+	 * @param oldAmount The amount the slot was indexed with
+	 */
+	private void reindex(int slot, Object oldKey, int oldAmount) {
+		if (oldKey == null) {
+			if (this.freeSlots.get(slot)) {
+				this.freeSlots.clear(slot);
+				--this.freeCount;
+			}
+		}
+		else {
+			ItemIndex old = this.itemIndexes.get(oldKey);
+			old.total -= oldAmount;
+			--old.stacks;
+			old.partial.clear(slot);
+			if (old.stacks == 0) {
+				this.itemIndexes.remove(oldKey);
+			}
+		}
+
+		final Item item = this.getItem(slot);
+		if (item == null) {
+			this.freeSlots.set(slot);
+			++this.freeCount;
+			return;
+		}
+		final int amount = this.getAmount(slot);
+		ItemIndex index = this.itemIndexes.computeIfAbsent(
+			Inventory.keyOf(item), unused -> new ItemIndex());
+		index.total += amount;
+		++index.stacks;
+		if (amount < item.getMaxStackSize()) {
+			index.partial.set(slot);
+		}
+	}
+
+	/**
+	 * Moves a packed slot to where it belongs in the indexes.
+	 *
+	 * @param index The index of the slot
+	 * @param old The packed value the slot was indexed with
+	 */
+	private void reindexPacked(int index, long old) {
+		final Item oldItem = Inventory.unpackItem(old, this.itemTable);
+		this.reindex(index, oldItem == null ? null : Inventory.keyOf(oldItem),
+			(int) (old & Inventory.AMOUNT_MASK));
+	}
+
+	/**
+	 * Empties every slot in the inventory.
+	 */
+	@Override
+	public void reset() {
+		final boolean locked = this.beginWrite();
+		try {
+			if (this.packedSlots != null) {
+				Arrays.fill(this.packedSlots, 0);
+				// replaced rather than cleared, snapshots may still use it
+				this.itemTable = new Item[4];
+				this.itemTableCounts = new int[4];
+				this.itemTableIndexes.clear();
+				this.freeTablePositions.clear();
+				this.itemTableSize = 0;
+				this.itemTableShared = false;
+				if (this.dirtyChunks != null) {
+					this.dirtyChunks.set(0, this.published.chunks.length);
+				}
+			}
+			else {
+				for (InventorySlot slot : this.inventorySlots) {
+					slot.clear();
+				}
+				Arrays.fill(this.indexedKeys, null);
+				Arrays.fill(this.indexedAmounts, 0);
+			}
+			this.markChanged();
+			Arrays.fill(this.slotChangedTicks, this.getChangedTick());
+			this.itemIndexes.clear();
+			this.freeSlots.set(0, this.getSize());
+			this.freeCount = this.getSize();
+		}
+		finally {
+			this.endWrite(locked);
+		}
+	}
+
+	/**
+	 * Puts the given amount of an item in a slot, replacing whatever was there,
+	 * and marks it as changed. This does not create any objects, even for a
+	 * packed inventory.
+	 *
+	 * @param index The index of the slot
+	 * @param item The item to put in the slot, or null to empty it
+	 * @param amount How many of the item, or zero to empty the slot
+	 * @throws IllegalArgumentException if the amount is more than the
+	 *             {@link Item#getMaxStackSize() maximum stack size} of the
+	 *             item
+	 */
+	public void setSlot(int index, Item item, int amount) {
+		final boolean empty = item == null || amount <= 0;
+		if (!empty && amount > item.getMaxStackSize()) {
+			throw new IllegalArgumentException("More than a full stack");
+		}
+		final boolean locked = this.beginWrite();
+		try {
+			if (this.packedSlots == null) {
+				this.inventorySlots[index].getItemStack().setItem(
+					empty ? null : item, empty ? 0 : amount);
+				this.markSlotChanged(index);
+				return;
+			}
+			final long old = this.packedSlots[index];
+			this.packedSlots[index] = empty ? 0 : this.pack(item, amount);
+			this.markChunkDirty(index);
+			this.markChanged();
+			this.slotChangedTicks[index] = this.getChangedTick();
+			this.reindexPacked(index, old);
+			this.releaseItem(old);
+		}
+		finally {
+			this.endWrite(locked);
+		}
+	}
+
+	/**
+	 * Returns true if the slot at the given index changed after the given
+	 * tick.
+	 *
+	 * @param index The index of the slot
+	 * @param tick The tick to compare against
+	 * @return True if the slot changed after that tick
+	 * @see Component#changedSince(long)
+	 */
+	public boolean slotChangedSince(int index, long tick) {
+		return this.slotChangedTicks[index] > tick;
+	}
+
+	/**
+	 * Returns the latest snapshot of a concurrent inventory. This can be
+	 * called from any thread, and never blocks. Changes made while the
+	 * inventory lock is held are not included until it is released.
+	 *
+	 * @return The latest published snapshot
+	 * @throws IllegalStateException if the inventory is not concurrent
+	 */
+	public Snapshot snapshot() {
+		final Snapshot latest = this.published;
+		if (latest == null) {
+			throw new IllegalStateException("The inventory is not concurrent");
+		}
+		return latest;
+	}
+
+	/**
+	 * Merges stacks of the same item and sorts them, so that the inventory
+	 * holds full stacks in the order given, followed by any partial stack of
+	 * each item, with the empty slots at the end. Items that the comparator
+	 * finds equal keep the order they were first found in. The whole
+	 * inventory is planned before any slot is changed, and only slots that
+	 * end up holding something different are written.
+	 *
+	 * @param comparator The order to sort items in
+	 * @see #compact()
+	 */
+	public void sortBy(Comparator<? super Item> comparator) {
+		final boolean locked = this.beginWrite();
+		try {
+			List<ItemTotal> sorted =
+				new ArrayList<>(this.totalItems().values());
+			sorted.sort((first, second) -> comparator.compare(first.item,
+				second.item));
+			int slot = 0;
+			for (ItemTotal total : sorted) {
+				final int max = total.item.getMaxStackSize();
+				while (total.amount > 0) {
+					final int amount = (int) Math.min(total.amount, max);
+					total.amount -= amount;
+					if (this.getItem(slot) != total.item
+						|| this.getAmount(slot) != amount) {
+						this.setSlot(slot, total.item, amount);
+					}
+					++slot;
+				}
+			}
+			for (; slot < this.getSize(); ++slot) {
+				if (this.getItem(slot) != null) {
+					this.setSlot(slot, null, 0);
+				}
+			}
+		}
+		finally {
+			this.endWrite(locked);
+		}
+	}
+
+	/**
+	 * Adds up how many of each type of item the inventory holds, in the order
+	 * they are first found.
+	 *
+	 * @return The total of each item
+	 */
+	private Map<Object, ItemTotal> totalItems() {
+		Map<Object, ItemTotal> totals = new LinkedHashMap<>();
+		for (int i = this.nextUsedSlot(0); i >= 0; i =
+			this.nextUsedSlot(i + 1)) {
+			final Item item = this.getItem(i);
+			totals.computeIfAbsent(Inventory.totalKey(totals, item),
+				unused -> new ItemTotal(item)).amount += this.getAmount(i);
+		}
+		return totals;
+	}
+
 	/**
 	 * Returns true if the inventory has no empty slots, false otherwise.
 	 *
 	 * @return True if the inventory has no empty slots, false otherwise.
 	 */
 	public boolean isFull() {
-		boolean empty = false;
-		for (InventorySlot slot : this.inventorySlots) {
-			if (slot.isEmpty()) {
-				empty = true;
-				break;
-			}
-		}
-		return !empty;
+		return this.freeCount == 0;
 	}
 }
@@ -0,0 +1,353 @@
+package com.ikalagaming.entity.component;
+
+import com.ikalagaming.entity.EntityManager;
+import com.ikalagaming.entity.Resource;
+
+/**
+ * The pools of {@link Resource#MANA mana} and {@link Resource#STAMINA stamina}
+ * that an entity can spend and that refill over time. Health has its own
+ * {@link Health} component, and experience is not a pool, so neither is kept
+ * here and both are rejected by every method that takes a resource.
+ * <p>
+ * Each pool goes from zero up to its maximum and can regenerate a fixed amount
+ * every tick of the {@link EntityManager#getTick() entity manager}. Like
+ * health, nothing is done each tick. The tick each pool was last changed in is
+ * remembered, and the amount regenerated since then is worked out when the
+ * pool is read or changed, which gives exactly the same result as adding the
+ * rate every tick. The pools count as changed in every tick one of them
+ * regenerates in.
+ * </p>
+ * <p>
+ * This is not thread safe.
+ * </p>
+ *
+ * @author Ches Burks
+ *
+ */
+public class Resources extends Component {
+
+	/**
+	 * The name of the component returned by {@link #getType()}. ( {@value} )
+	 */
+	public static final String TYPE_NAME = "Resources";
+
+	/**
+	 * The registered type of this component, with the name {@link #TYPE_NAME}.
+	 */
+	public static final ComponentType<Resources> TYPE =
+		ComponentType.register(Resources.class, Resources.TYPE_NAME);
+
+	/**
+	 * The value that is default for the maximum of each pool ({@value} )
+	 */
+	public static final int DEFAULT_MAX = 100;
+
+	/**
+	 * The number of pools that are kept.
+	 */
+	private static final int POOLS = 2;
+
+	/**
+	 * The amount in each pool, indexed by {@link #indexOf(Resource)}.
+	 */
+	private final int[] values;
+
+	/**
+	 * The maximum of each pool.
+	 */
+	private final int[] maxima;
+
+	/**
+	 * How much each pool regenerates per tick.
+	 */
+	private final int[] rates;
+
+	/**
+	 * The tick regeneration was last worked out for each pool.
+	 */
+	private final long[] ticks;
+
+	/**
+	 * Creates pools that are full, with a maximum of {@value #DEFAULT_MAX}
+	 * and no regeneration.
+	 */
+	public Resources() {
+		this.values = new int[Resources.POOLS];
+		this.maxima = new int[Resources.POOLS];
+		this.rates = new int[Resources.POOLS];
+		this.ticks = new long[Resources.POOLS];
+		final long tick = EntityManager.getInstance().getTick();
+		for (int i = 0; i < Resources.POOLS; ++i) {
+			this.values[i] = Resources.DEFAULT_MAX;
+			this.maxima[i] = Resources.DEFAULT_MAX;
+			this.ticks[i] = tick;
+		}
+	}
+
+	/**
+	 * Adds to a pool, keeping it between zero and the maximum. Negative amounts
+	 * remove from the pool.
+	 *
+	 * @param resource the pool to add to
+	 * @param amount how much to add
+	 * @throws IllegalArgumentException if the resource is health or
+	 *             experience
+	 */
+	public void add(Resource resource, int amount) {
+		final int index = Resources.indexOf(resource);
+		final int old = this.settle(index);
+		this.store(index, old + (long) amount);
+	}
+
+	/**
+	 * Returns how much is in a pool right now.
+	 *
+	 * @param resource the pool
+	 * @return the amount in the pool
+	 * @throws IllegalArgumentException if the resource is health or
+	 *             experience
+	 */
+	public int get(Resource resource) {
+		final int index = Resources.indexOf(resource);
+		return this.regenerated(index, EntityManager.getInstance().getTick());
+	}
+
+	/**
+	 * Returns {@link #TYPE}.
+	 */
+	@Override
+	public ComponentType<Resources> getComponentType() {
+		return Resources.TYPE;
+	}
+
+	/**
+	 * Returns the tick the pools last changed in, counting regeneration that
+	 * has not been worked out yet, so pools that are still regenerating have
+	 * changed in the current tick.
+	 */
+	@Override
+	public long getChangedTick() {
+		final long tick = EntityManager.getInstance().getTick();
+		long changed = super.getChangedTick();
+		for (int i = 0; i < this.values.length; ++i) {
+			final long regenerated = this.regenerationTicks(i, tick);
+			if (regenerated > 0) {
+				changed = Math.max(changed, this.ticks[i] + regenerated);
+			}
+		}
+		return changed;
+	}
+
+	/**
+	 * Returns the index of the pool for a resource.
+	 *
+	 * @param resource the resource
+	 * @return the index of its pool
+	 * @throws IllegalArgumentException if the resource is not kept here
+	 */
+	private static int indexOf(Resource resource) {
+		switch (resource) {
+			case MANA:
+				return 0;
+			case STAMINA:
+				return 1;
+			default:
+				throw new IllegalArgumentException(resource.name());
+		}
+	}
+
+	/**
+	 * Returns the most a pool can hold.
+	 *
+	 * @param resource the pool
+	 * @return the maximum of the pool
+	 * @throws IllegalArgumentException if the resource is health or
+	 *             experience
+	 */
+	public int getMax(Resource resource) {
+		return this.maxima[Resources.indexOf(resource)];
+	}
+
+	/**
+	 * Returns how much a pool regenerates every tick.
+	 *
+	 * @param resource the pool
+	 * @return the amount regenerated per tick
+	 * @throws IllegalArgumentException if the resource is health or
+	 *             experience
+	 */
+	public int getRegenRate(Resource resource) {
+		return this.rates[Resources.indexOf(resource)];
+	}
+
+	/**
+	 * Returns {@link #TYPE_NAME}.
+	 */
+	@Override
+	public String getType() {
+		return Resources.TYPE_NAME;
+	}
+
+	/**
+	 * Works out the amount in a pool at the given tick, without storing it.
+	 * The pool only moves one way and stops at zero or the maximum, so this is
+	 * the same as adding the rate once per tick.
+	 *
+	 * @param index the index of the pool
+	 * @param tick the current tick
+	 * @return the amount after regenerating up to the tick
+	 */
+	private int regenerated(int index, long tick) {
+		final int rate = this.rates[index];
+		final long elapsed = tick - this.ticks[index];
+		if (rate == 0 || elapsed <= 0) {
+			return this.values[index];
+		}
+		final long value = this.values[index] + rate * elapsed;
+		return (int) Math.max(0, Math.min(this.maxima[index], value));
+	}
+
+	/**
+	 * Works out how many ticks a pool kept changing for while regenerating,
+	 * which stops early once it is full, or empty for a negative rate.
+	 *
+	 * @param index the index of the pool
+	 * @param tick the current tick
+	 * @return how many ticks after regeneration was last worked out the pool
+	 *         last changed, or zero if it has not changed
+	 */
+	private long regenerationTicks(int index, long tick) {
+		final int rate = this.rates[index];
+		final long elapsed = tick - this.ticks[index];
+		if (rate == 0 || elapsed <= 0) {
+			return 0;
+		}
+		final long distance = rate > 0
+			? (long) this.maxima[index] - this.values[index]
+			: this.values[index];
+		if (distance <= 0) {
+			return 0;
+		}
+		final long step = Math.abs((long) rate);
+		return Math.min(elapsed, (distance + step - 1) / step);
+	}
+
+	/**
+	 * Fills every pool to its maximum. Maximums and rates are left as they
+	 * are.
+	 */
+	@Override
+	public void reset() {
+		final long tick = EntityManager.getInstance().getTick();
+		for (int i = 0; i < this.values.length; ++i) {
+			this.values[i] = this.maxima[i];
+			this.ticks[i] = tick;
+		}
+		this.markChanged();
+	}
+
+	/**
+	 * Sets the amount in a pool, keeping it between zero and the maximum.
+	 *
+	 * @param resource the pool to set
+	 * @param amount the new amount
+	 * @throws IllegalArgumentException if the resource is health or
+	 *             experience
+	 */
+	public void set(Resource resource, int amount) {
+		final int index = Resources.indexOf(resource);
+		this.settle(index);
+		this.store(index, amount);
+	}
+
+	/**
+	 * Sets the most a pool can hold. If the pool has more than that, it is
+	 * lowered to the new maximum.
+	 *
+	 * @param resource the pool
+	 * @param max the new maximum, which may not be negative
+	 * @throws InvalidInputException if the maximum is negative
+	 * @throws IllegalArgumentException if the resource is health or
+	 *             experience
+	 */
+	public void setMax(Resource resource, int max)
+		throws InvalidInputException {
+		if (max < 0) {
+			throw new InvalidInputException();
+		}
+		final int index = Resources.indexOf(resource);
+		final int old = this.settle(index);
+		this.maxima[index] = max;
+		this.store(index, old);
+		this.markChanged();
+	}
+
+	/**
+	 * Sets how much a pool regenerates every tick. Regeneration up to now is
+	 * worked out with the old rate first. A negative rate drains the pool.
+	 *
+	 * @param resource the pool
+	 * @param rate the amount regenerated per tick
+	 * @throws IllegalArgumentException if the resource is health or
+	 *             experience
+	 */
+	public void setRegenRate(Resource resource, int rate) {
+		final int index = Resources.indexOf(resource);
+		this.settle(index);
+		this.rates[index] = rate;
+	}
+
+	/**
+	 * Stores the amount in a pool regenerated up to the current tick.
+	 *
+	 * @param index the index of the pool
+	 * @return the up to date amount
+	 */
+	private int settle(int index) {
+		final long tick = EntityManager.getInstance().getTick();
+		final int value = this.regenerated(index, tick);
+		if (value != this.values[index]) {
+			this.values[index] = value;
+			this.markChanged();
+		}
+		this.ticks[index] = tick;
+		return value;
+	}
+
+	/**
+	 * Removes an amount from a pool if there is enough in it, for paying the
+	 * cost of something.
+	 *
+	 * @param resource the pool to spend from
+	 * @param amount how much to spend
+	 * @return true if it was spent, false if there was not enough and nothing
+	 *         was removed
+	 * @throws IllegalArgumentException if the resource is health or
+	 *             experience
+	 */
+	public boolean spend(Resource resource, int amount) {
+		final int index = Resources.indexOf(resource);
+		final int old = this.settle(index);
+		if (old < amount) {
+			return false;
+		}
+		this.store(index, old - (long) amount);
+		return true;
+	}
+
+	/**
+	 * Stores a new amount in an already settled pool, keeping it between zero
+	 * and the maximum.
+	 *
+	 * @param index the index of the pool
+	 * @param amount the new amount
+	 */
+	private void store(int index, long amount) {
+		final int value =
+			(int) Math.max(0, Math.min(this.maxima[index], amount));
+		if (value != this.values[index]) {
+			this.values[index] = value;
+			this.markChanged();
+		}
+	}
+}
@@ -15,6 +15,20 @@ public class Skills extends Component {
 	 */
 	public static final String TYPE_NAME = "Skills";
 
+	/**
+	 * The registered type of this component, with the name {@link #TYPE_NAME}.
+	 */
+	public static final ComponentType<Skills> TYPE =
+		ComponentType.register(Skills.class, TYPE_NAME);
+
+	/**
+	 * Returns {@link #TYPE}.
+	 */
+	@Override
+	public ComponentType<Skills> getComponentType() {
+		return TYPE;
+	}
+
 	/**
 	 * Returns {@link #TYPE_NAME}.
 	 */
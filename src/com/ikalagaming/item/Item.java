@@ -1,29 +1,52 @@
 package com.ikalagaming.item;
 
 /**
- * A base item with a name.
+ * A base item with a name. Items are normally {@link ItemRegistry registered}
+ * and shared, so that each kind of item has a single definition with a dense
+ * numeric id.
  *
  * @author Ches Burks
  *
  */
 public class Item {
+	/**
+	 * The id of items that have not been registered.
+	 */
+	public static final int UNREGISTERED = -1;
+
 	protected String unlocalizedName;
 	protected int maxStackSize = 1;
+	private int id = Item.UNREGISTERED;
 
 	/**
-	 * Returns true if the two items can stack together. If they are of a
-	 * different type (Class), they will not stack.
+	 * Returns true if the two items can stack together. Registered items stack
+	 * if they have the same id, which means they are the same shared
+	 * definition. Items that are not registered stack if they are of the same
+	 * type (Class). Registered items do not stack with ones that are not
+	 * registered.
 	 *
 	 * @param other The other item to check
 	 * @return True if they can stack, false otherwise
 	 */
 	public boolean canStackWith(Item other) {
+		if (this.id != Item.UNREGISTERED || other.id != Item.UNREGISTERED) {
+			return this.id == other.id;
+		}
 		if (this.getClass() == other.getClass()) {
 			return true;
 		}
 		return false;
 	}
 
+	/**
+	 * Returns the id the item was given by the {@link ItemRegistry}.
+	 *
+	 * @return The id, or {@link #UNREGISTERED} if the item is not registered
+	 */
+	public int getId() {
+		return this.id;
+	}
+
 	/**
 	 * Returns The maximum size of an {@link ItemStack} containing the item.
 	 *
@@ -33,6 +56,19 @@ public class Item {
 		return this.maxStackSize;
 	}
 
+	/**
+	 * Returns a hash of the properties that make up the definition of the
+	 * item, besides its name and type. The {@link ItemRegistry} uses this to
+	 * tell whether an item registered under a name that is already taken
+	 * matches the existing definition. Since only one item is registered for
+	 * each id, this does not affect what items stack with.
+	 *
+	 * @return The metadata hash, zero by default
+	 */
+	public int getMetadataHash() {
+		return 0;
+	}
+
 	/**
 	 * Returns the name of the item. The name is an identifier for the object in
 	 * the game. It does not necessarily have to be unique.
@@ -43,13 +79,38 @@ public class Item {
 		return this.unlocalizedName;
 	}
 
+	/**
+	 * Returns true if the item has been registered.
+	 *
+	 * @return True if the item has an id, false otherwise
+	 */
+	public boolean isRegistered() {
+		return this.id != Item.UNREGISTERED;
+	}
+
+	/**
+	 * Records the id given to the item by the registry.
+	 *
+	 * @param newId The id of the item
+	 */
+	void setId(int newId) {
+		this.id = newId;
+	}
+
 	/**
 	 * Sets the name of the item to the given string. The name is an identifier
-	 * for the object in the game. It does not necessarily have to be unique.
+	 * for the object in the game. It does not necessarily have to be unique,
+	 * unless the item is registered.
 	 *
 	 * @param name The new name
+	 * @throws IllegalStateException if the item is registered, since the
+	 *             registry finds it by name
 	 */
 	public void setUnlocalizedName(String name) {
+		if (this.isRegistered()) {
+			throw new IllegalStateException(
+				"Registered items can't be renamed");
+		}
 		this.unlocalizedName = name;
 	}
 }
@@ -0,0 +1,130 @@
+package com.ikalagaming.item;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Keeps one shared definition of each kind of {@link Item}, and gives each one
+ * a small, dense integer id when it is registered. Registered items are
+ * flyweights: every stack and slot holding that kind of item refers to the
+ * same object, so they should not hold any per-stack state. Ids can be used to
+ * store items as plain numbers and look them up in arrays, rather than
+ * hashing names.
+ * <p>
+ * Ids are handed out in the order items are registered, so they are only the
+ * same between runs if items are always registered in the same order.
+ * </p>
+ *
+ * @author Ches Burks
+ *
+ */
+public final class ItemRegistry {
+	/**
+	 * Registered items by name.
+	 */
+	private static final ConcurrentHashMap<String, Item> itemsByName =
+		new ConcurrentHashMap<>();
+
+	/**
+	 * Registered items by id. This is replaced rather than changed when it
+	 * needs to grow, so it can be read without locking.
+	 */
+	private static volatile Item[] itemsById = new Item[16];
+
+	/**
+	 * The number of items registered.
+	 */
+	private static volatile int itemCount = 0;
+
+	/**
+	 * Guards registration so that ids are handed out in order.
+	 */
+	private static final ReentrantLock registryLock = new ReentrantLock();
+
+	/**
+	 * Returns the item registered with the given id, or null if there is no
+	 * such item.
+	 *
+	 * @param id the id of the item
+	 * @return the item with that id, or null if none exists
+	 */
+	public static Item getItem(int id) {
+		final Item[] items = ItemRegistry.itemsById;
+		if (id < 0 || id >= items.length) {
+			return null;
+		}
+		return items[id];
+	}
+
+	/**
+	 * Returns the item registered with the given name, or null if there is no
+	 * such item.
+	 *
+	 * @param name the unlocalized name of the item
+	 * @return the item with that name, or null if none exists
+	 */
+	public static Item getItem(String name) {
+		if (name == null) {
+			return null;
+		}
+		return ItemRegistry.itemsByName.get(name);
+	}
+
+	/**
+	 * Returns the number of items that have been registered. Every registered
+	 * id is less than this value.
+	 *
+	 * @return the number of items
+	 */
+	public static int getItemCount() {
+		return ItemRegistry.itemCount;
+	}
+
+	/**
+	 * Registers an item under its unlocalized name and assigns it the next
+	 * free id. If an item of the same class and metadata is already registered
+	 * with that name, the existing item is returned instead, so this can be
+	 * used to find the shared definition of an item. The name of a registered
+	 * item can't be changed.
+	 *
+	 * @param item the item to register
+	 * @return the registered item, which should be used in place of the given
+	 *         one
+	 * @throws IllegalArgumentException if the item has no name, or the name
+	 *             is already registered to a different kind of item
+	 */
+	public static Item register(Item item) {
+		final String name = item.getUnlocalizedName();
+		if (name == null) {
+			throw new IllegalArgumentException("Items need a name");
+		}
+		ItemRegistry.registryLock.lock();
+		try {
+			Item existing = ItemRegistry.itemsByName.get(name);
+			if (existing != null) {
+				if (existing.getClass() != item.getClass()
+					|| existing.getMetadataHash() != item.getMetadataHash()) {
+					throw new IllegalArgumentException(name);
+				}
+				return existing;
+			}
+			final int id = ItemRegistry.itemCount;
+			Item[] items = ItemRegistry.itemsById;
+			if (id >= items.length) {
+				items = Arrays.copyOf(items, items.length * 2);
+			}
+			item.setId(id);
+			items[id] = item;
+			ItemRegistry.itemsById = items;
+			ItemRegistry.itemsByName.put(name, item);
+			ItemRegistry.itemCount = id + 1;
+			return item;
+		}
+		finally {
+			ItemRegistry.registryLock.unlock();
+		}
+	}
+
+	private ItemRegistry() {}
+}
@@ -8,7 +8,15 @@ package com.ikalagaming.item;
  */
 public class ItemStack {
 	/**
-	 * Creates and returns a new stack with null item and 0 item count.
+	 * A shared empty stack, returned when there are no overflow items so that
+	 * nothing has to be created. It can't be changed, and trying to throws an
+	 * {@link UnsupportedOperationException}.
+	 */
+	public static final ItemStack EMPTY = new ItemStack(null, 0);
+
+	/**
+	 * Creates and returns a new stack with null item and 0 item count. Unlike
+	 * {@link #EMPTY}, the new stack can be changed.
 	 *
 	 * @return an empty stack.
 	 */
@@ -34,14 +42,17 @@ public class ItemStack {
 
 	/**
 	 * Constructs a new {@link ItemStack} for the given {@link Item item} and
-	 * the given amount.
+	 * the given amount. A negative amount is treated as zero. The amount is
+	 * not checked against the maximum stack size, so this can hold overflow.
 	 *
 	 * @param item The item the stack contains
 	 * @param amount How many of the item are in the stack
 	 */
 	public ItemStack(Item item, int amount) {
 		this.storedItem = item;
-		this.setAmount(0);
+		// not setAmount, which creates empty stacks with this constructor
+		this.stackAmount = amount < 0 ? 0 : amount;
+		this.isEmpty = this.stackAmount == 0;
 	}
 
 	/**
@@ -53,13 +64,37 @@ public class ItemStack {
 	 *
 	 * @see #setAmount(int)
 	 * @param count How many items to add
-	 * @return the overflow items that exceed the maximum stack size
+	 * @return the overflow items that exceed the maximum stack size, or
+	 *         {@link #EMPTY} if there are none
 	 */
 	public ItemStack addItems(int count) {
 		ItemStack overflow = this.setAmount(this.stackAmount + count);
 		return overflow;
 	}
 
+	/**
+	 * Adds to the amount of items in the stack, or removes from it if the
+	 * change is negative, without creating any objects. The amount is kept
+	 * between zero and the {@link Item item's} maximum stack size.
+	 *
+	 * @param change How many items to add, negative to remove
+	 * @return How many items did not fit in the stack, which is zero unless
+	 *         the stack is now full
+	 */
+	public int changeAmount(int change) {
+		return this.storeAmount((long) this.stackAmount + change);
+	}
+
+	/**
+	 * Throws if this is the shared {@link #EMPTY} stack.
+	 */
+	private void checkMutable() {
+		if (this == ItemStack.EMPTY) {
+			throw new UnsupportedOperationException(
+				"The shared empty stack can't be changed");
+		}
+	}
+
 	/**
 	 * Returns a new {@link ItemStack} with the same item and size as this one.
 	 *
@@ -116,7 +151,8 @@ public class ItemStack {
 	 *
 	 * @see #setAmount(int)
 	 * @param count How many items to remove
-	 * @return the overflow items that exceed the maximum stack size
+	 * @return the overflow items that exceed the maximum stack size, or
+	 *         {@link #EMPTY} if there are none
 	 */
 	public ItemStack removeItems(int count) {
 		ItemStack overflow = this.setAmount(this.stackAmount - count);
@@ -132,29 +168,21 @@ public class ItemStack {
 	 * If the amount is set to greater than the max stack size, a new stack of
 	 * the same item type will be returned containing the number of extra items.
 	 * This may be an invalid number of items for an item of that type as it is
-	 * not checked here. An empty stack of null items is returned if there are
-	 * no extra items.
+	 * not checked here. The shared {@link #EMPTY} stack is returned if there
+	 * are no extra items, so nothing is created in that case.
 	 * </p>
 	 *
 	 * @param amount How many items the stack should contain
-	 * @return the overflow items that exceed the maximum stack size
+	 * @return the overflow items that exceed the maximum stack size, or
+	 *         {@link #EMPTY} if there are none
+	 * @see #changeAmount(int)
 	 */
 	public ItemStack setAmount(int amount) {
-		this.stackAmount = amount;
-		if (this.stackAmount < 0) {
-			this.stackAmount = 0;
+		final int overflow = this.storeAmount(amount);
+		if (overflow == 0) {
+			return ItemStack.EMPTY;
 		}
-		if (this.stackAmount == 0) {
-			this.isEmpty = true;
-			return ItemStack.getEmptyStack();
-		}
-		this.isEmpty = false;
-		if (this.stackAmount > this.storedItem.getMaxStackSize()) {
-			int overflowQuantity = amount - this.storedItem.getMaxStackSize();
-			this.stackAmount = this.storedItem.getMaxStackSize();
-			return new ItemStack(this.storedItem, overflowQuantity);
-		}
-		return ItemStack.getEmptyStack();
+		return new ItemStack(this.storedItem, overflow);
 	}
 
 	/**
@@ -165,6 +193,7 @@ public class ItemStack {
 	 * @see #setItem(Item, int)
 	 */
 	public void setItem(Item newItem) {
+		this.checkMutable();
 		this.storedItem = newItem;
 	}
 
@@ -177,7 +206,32 @@ public class ItemStack {
 	 * @see #setItem(Item)
 	 */
 	public void setItem(Item newItem, int amount) {
+		this.checkMutable();
 		this.storedItem = newItem;
-		this.setAmount(amount);
+		this.storeAmount(amount);
+	}
+
+	/**
+	 * Sets the stack size, kept between zero and the maximum stack size, and
+	 * updates whether the stack is empty.
+	 *
+	 * @param amount How many items the stack should contain
+	 * @return How many items were over the maximum stack size
+	 */
+	private int storeAmount(long amount) {
+		this.checkMutable();
+		if (amount <= 0) {
+			this.stackAmount = 0;
+			this.isEmpty = true;
+			return 0;
+		}
+		this.isEmpty = false;
+		final int max = this.storedItem.getMaxStackSize();
+		if (amount > max) {
+			this.stackAmount = max;
+			return (int) Math.min(Integer.MAX_VALUE, amount - max);
+		}
+		this.stackAmount = (int) amount;
+		return 0;
 	}
 }
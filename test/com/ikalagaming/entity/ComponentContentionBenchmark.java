@@ -0,0 +1,204 @@
+package com.ikalagaming.entity;
+
+import com.ikalagaming.entity.component.Component;
+import com.ikalagaming.entity.component.Health;
+import com.ikalagaming.entity.component.Skills;
+import com.ikalagaming.event.EventManager;
+import com.ikalagaming.logging.Logging;
+
+import java.util.HashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Measures how fast component lookups are when many threads read entities
+ * while one thread keeps adding and removing components. This compares the
+ * optimistic reads used by {@link Entity} against the map guarded by a
+ * {@link ReentrantLock} that entities used to have.
+ * <p>
+ * This is not a unit test. Run the main method directly, optionally passing
+ * the number of reader threads and the number of seconds to run each case.
+ * </p>
+ *
+ * @author Ches Burks
+ *
+ */
+public class ComponentContentionBenchmark {
+
+	/**
+	 * Something that has components that can be looked up and changed.
+	 */
+	private interface ComponentHolder {
+		void add(Component component);
+
+		Component get(String type);
+
+		void remove(String type);
+	}
+
+	/**
+	 * The way components used to be stored, a map per entity with a lock
+	 * around every access.
+	 */
+	private static class LockedHolder implements ComponentHolder {
+		private HashMap<String, Component> components = new HashMap<>();
+		private ReentrantLock componentLock = new ReentrantLock();
+
+		@Override
+		public void add(Component component) {
+			this.componentLock.lock();
+			try {
+				if (!this.components.containsKey(component.getType())) {
+					this.components.put(component.getType(), component);
+				}
+			}
+			finally {
+				this.componentLock.unlock();
+			}
+		}
+
+		@Override
+		public Component get(String type) {
+			this.componentLock.lock();
+			try {
+				return this.components.get(type);
+			}
+			finally {
+				this.componentLock.unlock();
+			}
+		}
+
+		@Override
+		public void remove(String type) {
+			this.componentLock.lock();
+			try {
+				this.components.remove(type);
+			}
+			finally {
+				this.componentLock.unlock();
+			}
+		}
+	}
+
+	/**
+	 * Components stored by an entity.
+	 */
+	private static class EntityHolder implements ComponentHolder {
+		private final Entity entity = new Entity("benchmark");
+
+		@Override
+		public void add(Component component) {
+			this.entity.addComponent(component);
+		}
+
+		@Override
+		public Component get(String type) {
+			return this.entity.getComponent(type);
+		}
+
+		@Override
+		public void remove(String type) {
+			this.entity.removeComponent(type);
+		}
+	}
+
+	private static final int HOLDER_COUNT = 1024;
+
+	/**
+	 * Runs the benchmark.
+	 *
+	 * @param args optionally the number of readers, then the number of
+	 *            seconds per case
+	 * @throws InterruptedException if interrupted while waiting for threads
+	 */
+	public static void main(String[] args) throws InterruptedException {
+		int readers = Runtime.getRuntime().availableProcessors() - 1;
+		if (readers < 1) {
+			readers = 1;
+		}
+		long seconds = 5;
+		if (args.length > 0) {
+			readers = Integer.parseInt(args[0]);
+		}
+		if (args.length > 1) {
+			seconds = Long.parseLong(args[1]);
+		}
+
+		ComponentHolder[] locked = new ComponentHolder[HOLDER_COUNT];
+		ComponentHolder[] entities = new ComponentHolder[HOLDER_COUNT];
+		for (int i = 0; i < HOLDER_COUNT; ++i) {
+			locked[i] = new LockedHolder();
+			entities[i] = new EntityHolder();
+			locked[i].add(new Health());
+			entities[i].add(new Health());
+		}
+
+		// warm up both before measuring
+		run(locked, readers, 1);
+		run(entities, readers, 1);
+
+		long lockedReads = run(locked, readers, seconds);
+		long entityReads = run(entities, readers, seconds);
+		System.out.println("Readers: " + readers);
+		System.out.println("ReentrantLock reads/s: " + lockedReads / seconds);
+		System.out.println("Entity reads/s: " + entityReads / seconds);
+		System.out.println(
+			"Speedup: " + (entityReads / (double) Math.max(1, lockedReads)));
+
+		// logging starts up the event system, which keeps the JVM running
+		Logging.destory();
+		EventManager.destoryInstance();
+	}
+
+	/**
+	 * Reads components from many threads while a single thread adds and
+	 * removes a component, returning the total number of reads.
+	 *
+	 * @param holders what to read from
+	 * @param readers how many reading threads to use
+	 * @param seconds how long to run for
+	 * @return the number of reads across all threads
+	 * @throws InterruptedException if interrupted while waiting for threads
+	 */
+	private static long run(final ComponentHolder[] holders, int readers,
+		long seconds) throws InterruptedException {
+		final AtomicBoolean running = new AtomicBoolean(true);
+		final LongAdder reads = new LongAdder();
+		final CountDownLatch done = new CountDownLatch(readers + 1);
+
+		for (int t = 0; t < readers; ++t) {
+			final int offset = t;
+			new Thread(() -> {
+				long count = 0;
+				int i = offset;
+				while (running.get()) {
+					if (holders[i & (HOLDER_COUNT - 1)]
+						.get(Health.TYPE_NAME) != null) {
+						++count;
+					}
+					++i;
+				}
+				reads.add(count);
+				done.countDown();
+			}).start();
+		}
+		new Thread(() -> {
+			int i = 0;
+			while (running.get()) {
+				ComponentHolder holder = holders[i & (HOLDER_COUNT - 1)];
+				holder.add(new Skills());
+				holder.remove(Skills.TYPE_NAME);
+				++i;
+			}
+			done.countDown();
+		}).start();
+
+		TimeUnit.SECONDS.sleep(seconds);
+		running.set(false);
+		done.await();
+		return reads.sum();
+	}
+}
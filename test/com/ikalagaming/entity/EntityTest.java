@@ -1,8 +1,26 @@
 package com.ikalagaming.entity;
 
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assert;
 import org.junit.Test;
 
 import com.ikalagaming.entity.Entity;
+import com.ikalagaming.entity.component.Component;
+import com.ikalagaming.entity.component.ComponentType;
+import com.ikalagaming.entity.component.Health;
+import com.ikalagaming.entity.component.Inventory;
+import com.ikalagaming.entity.component.Skills;
+import com.ikalagaming.entity.powers.Element;
+import com.ikalagaming.item.Item;
+import com.ikalagaming.item.ItemRegistry;
+import com.ikalagaming.item.ItemStack;
 
 /**
  * Tests the functionality of the entity class.
@@ -11,6 +29,39 @@ import com.ikalagaming.entity.Entity;
  *
  */
 public class EntityTest {
+	private static class Potion extends Item {
+		Potion() {
+			this.maxStackSize = 50;
+		}
+	}
+
+	private static class Sword extends Item {}
+
+	/**
+	 * A component that only names its type, like ones written before types
+	 * were registered.
+	 */
+	private static class Tag extends Component {
+		@Override
+		public String getType() {
+			return "test-Tag";
+		}
+	}
+
+	private static class Gem extends Item {
+		final int color;
+
+		Gem(String name, int color) {
+			this.unlocalizedName = name;
+			this.maxStackSize = 20;
+			this.color = color;
+		}
+
+		@Override
+		public int getMetadataHash() {
+			return this.color;
+		}
+	}
 
 	/**
 	 * Creates several entities with the same name. Then some with different
@@ -43,4 +94,1009 @@ public class EntityTest {
 		Entity tmp5 = new Entity(name);
 		System.out.println(tmp5.getName());
 	}
+
+	/**
+	 * Adds and removes components from several entities that share the same
+	 * set of types, making sure each entity keeps its own components as they
+	 * are moved around in storage. Also checks that other code can't take
+	 * over setting the owners of components.
+	 */
+	@Test
+	public void testComponents() {
+		Entity[] entities = new Entity[5];
+		Health[] healths = new Health[entities.length];
+		for (int i = 0; i < entities.length; ++i) {
+			entities[i] = new Entity("test-Components");
+			healths[i] = new Health(i + 1);
+			entities[i].addComponent(healths[i]);
+			entities[i].addComponent(new Skills());
+		}
+		// duplicates are ignored
+		entities[0].addComponent(new Health());
+		Assert.assertSame(healths[0],
+			entities[0].getComponent(Health.TYPE_NAME));
+
+		Assert.assertSame(healths[3], entities[3].getComponent(Health.TYPE));
+		Assert.assertTrue(entities[3].hasComponent(Skills.TYPE));
+
+		entities[1].removeComponent(Skills.TYPE_NAME);
+		Assert.assertFalse(entities[1].hasComponent(Skills.TYPE_NAME));
+		Assert.assertNull(entities[1].getComponent(Skills.TYPE));
+		entities[2].destroy();
+		Assert.assertFalse(entities[2].hasComponent(Health.TYPE_NAME));
+
+		for (int i = 0; i < entities.length; ++i) {
+			if (i == 2) {
+				continue;
+			}
+			Assert.assertSame(healths[i],
+				entities[i].getComponent(Health.TYPE_NAME));
+			Assert.assertEquals(i != 1,
+				entities[i].hasComponent(Skills.TYPE_NAME));
+		}
+		Tag tag = new Tag();
+		entities[0].addComponent(tag);
+		Assert.assertSame(tag, entities[0].getComponent("test-Tag"));
+		Assert.assertSame(entities[0], tag.getOwner());
+		Assert.assertEquals("test-Tag", tag.getComponentType().getName());
+		for (Entity entity : entities) {
+			entity.destroy();
+		}
+		try {
+			ComponentAccess.set(new ComponentAccess() {
+				@Override
+				protected void setOwner(Component component, Entity owner) {
+					// never used
+				}
+			});
+			Assert.fail("Owner access was provided outside of Component");
+		}
+		catch (IllegalArgumentException expected) {
+			// expected
+		}
+	}
+
+	/**
+	 * Makes sure entities can be found by id, and that the id of a destroyed
+	 * entity no longer finds anything even after its slot is reused.
+	 */
+	@Test
+	public void testEntityIds() {
+		Entity first = new Entity("test-Ids");
+		final long firstId = first.getId();
+		Assert.assertSame(first, Entity.getEntity(firstId));
+
+		first.destroy();
+		Assert.assertNull(Entity.getEntity(firstId));
+
+		Entity second = new Entity("test-Ids");
+		Assert.assertNotEquals(firstId, second.getId());
+		Assert.assertSame(second, Entity.getEntity(second.getId()));
+		Assert.assertNull(Entity.getEntity(firstId));
+		second.destroy();
+	}
+
+	/**
+	 * Spawns a batch of entities from a template and checks they each got
+	 * their own components, and that a template that fails part way through
+	 * leaves no entities behind.
+	 */
+	@Test
+	public void testSpawn() {
+		EntityTemplate template = new EntityTemplate("test-Spawn");
+		template.addComponent(entity -> new Health(50))
+			.addComponent(entity -> new Skills());
+
+		Entity[] spawned = Entity.spawn(20, template);
+		Assert.assertEquals(20, spawned.length);
+		for (int i = 0; i < spawned.length; ++i) {
+			Health health = spawned[i].getComponent(Health.TYPE);
+			Assert.assertNotNull(health);
+			Assert.assertEquals(50, health.getMaxHealth());
+			Assert.assertTrue(spawned[i].hasComponent(Skills.TYPE));
+			if (i > 0) {
+				Assert.assertNotSame(spawned[i - 1].getComponent(Health.TYPE),
+					health);
+			}
+		}
+		for (Entity entity : spawned) {
+			entity.destroy();
+		}
+
+		final Entity[] owners = new Entity[3];
+		final AtomicInteger created = new AtomicInteger();
+		EntityTemplate failing = new EntityTemplate("test-SpawnFailure");
+		failing.addComponent(entity -> {
+			final int index = created.getAndIncrement();
+			owners[index] = entity;
+			if (index == owners.length - 1) {
+				throw new IllegalStateException("Failed to create components");
+			}
+			return new Health(50);
+		});
+		try {
+			Entity.spawn(10, failing);
+			Assert.fail("The template did not fail");
+		}
+		catch (IllegalStateException expected) {
+			// expected
+		}
+		for (Entity owner : owners) {
+			Assert.assertNull(Entity.getEntity(owner.getId()));
+		}
+	}
+
+	/**
+	 * Transfers currency between players from many threads at once, in both
+	 * directions, and makes sure no money is created or lost, no one is
+	 * overdrawn, and the locks never deadlock.
+	 *
+	 * @throws InterruptedException if interrupted while waiting for threads
+	 */
+	@Test(timeout = 60000)
+	public void testCurrencyTransfers() throws InterruptedException {
+		final Player[] players = new Player[16];
+		for (int i = 0; i < players.length; ++i) {
+			players[i] = new Player();
+			players[i].setCurrency(1000);
+		}
+		final int total = players.length * 1000;
+
+		Assert.assertFalse(players[0].transferCurrencyTo(players[1], 1001));
+		Assert.assertFalse(players[0].transferCurrencyTo(players[1], -1));
+		players[1].setCurrency(Integer.MAX_VALUE);
+		Assert.assertFalse(players[0].transferCurrencyTo(players[1], 1));
+		players[1].setCurrency(1000);
+		Assert.assertTrue(players[0].transferCurrencyFrom(players[1], 1000));
+		Assert.assertTrue(players[1].transferCurrencyFrom(players[0], 1000));
+
+		final AtomicInteger overdrawn = new AtomicInteger();
+		Thread[] threads = new Thread[8];
+		for (int t = 0; t < threads.length; ++t) {
+			final int seed = t;
+			threads[t] = new Thread(() -> {
+				Random random = new Random(seed);
+				for (int i = 0; i < 50000; ++i) {
+					Player from = players[random.nextInt(players.length)];
+					Player to = players[random.nextInt(players.length)];
+					from.transferCurrencyTo(to, random.nextInt(300));
+					if (from.getCurrency() < 0) {
+						overdrawn.incrementAndGet();
+					}
+				}
+			});
+			threads[t].start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+
+		int sum = 0;
+		for (Player player : players) {
+			Assert.assertTrue(player.getCurrency() >= 0);
+			sum += player.getCurrency();
+			player.destroy();
+		}
+		Assert.assertEquals(0, overdrawn.get());
+		Assert.assertEquals(total, sum);
+	}
+
+	/**
+	 * Makes changes through a currency ledger, reopens it, and checks that
+	 * every committed change is replayed, including a change that was only
+	 * partly written and must be ignored.
+	 *
+	 * @throws IOException if the ledger can't be written
+	 */
+	@Test
+	public void testCurrencyLedger() throws IOException {
+		Path directory = Files.createTempDirectory("ledger");
+		try {
+			try {
+				new CurrencyLedger(directory, 0, 60000).close();
+				Assert.fail("A ledger that never commits was opened");
+			}
+			catch (IllegalArgumentException expected) {
+				// this is what should happen
+			}
+			try (CurrencyLedger ledger =
+				new CurrencyLedger(directory, 5, 60000)) {
+				Player first = new Player();
+				Player second = new Player();
+				first.setLedgerAccount(ledger.getAccount(1));
+				second.setLedgerAccount(ledger.getAccount(2));
+				first.setCurrency(500);
+				Assert.assertTrue(first.transferCurrencyTo(second, 200));
+				Assert.assertFalse(first.transferCurrencyTo(second, 301));
+				ledger.snapshot();
+				second.removeCurrency(50);
+				ledger.getAccount(3).addCurency(7);
+				ledger.commit();
+				Assert.assertEquals(4, ledger.getDurableSequence());
+				first.destroy();
+				second.destroy();
+			}
+
+			// a change cut off part way through by a crash
+			try (DirectoryStream<Path> logs =
+				Files.newDirectoryStream(directory, "*.log")) {
+				for (Path log : logs) {
+					Files.write(log, new byte[] {2, 0, 0, 1},
+						StandardOpenOption.APPEND);
+				}
+			}
+
+			try (CurrencyLedger ledger =
+				new CurrencyLedger(directory, 5, 60000)) {
+				Assert.assertEquals(300, ledger.getAccount(1).getCurrency());
+				Assert.assertEquals(150, ledger.getAccount(2).getCurrency());
+				Assert.assertEquals(7, ledger.getAccount(3).getCurrency());
+				final long before = ledger.getDurableSequence();
+				// every balance a trade changes is logged as one change
+				Trade trade = new Trade();
+				trade.addPayment(ledger.getAccount(1), ledger.getAccount(2),
+					30);
+				trade.addPayment(ledger.getAccount(2), ledger.getAccount(3),
+					10);
+				Assert.assertEquals(Trade.Status.SETTLED,
+					TradeSettlement.settle(trade));
+				Assert.assertTrue(ledger.getAccount(3)
+					.transferCurrencyTo(ledger.getAccount(1), 7));
+				ledger.commit();
+				Assert.assertEquals(before + 2, ledger.getDurableSequence());
+			}
+			try (CurrencyLedger ledger =
+				new CurrencyLedger(directory, 5, 60000)) {
+				Assert.assertEquals(277, ledger.getAccount(1).getCurrency());
+				Assert.assertEquals(170, ledger.getAccount(2).getCurrency());
+				Assert.assertEquals(10, ledger.getAccount(3).getCurrency());
+			}
+		}
+		finally {
+			try (DirectoryStream<Path> files =
+				Files.newDirectoryStream(directory)) {
+				for (Path file : files) {
+					Files.delete(file);
+				}
+			}
+			Files.delete(directory);
+		}
+	}
+
+	/**
+	 * Adds and removes items in an inventory and checks that the free slots,
+	 * partial stacks, and counts it keeps track of stay correct.
+	 */
+	@Test
+	public void testInventoryIndexes() {
+		Inventory inventory = new Inventory(1000);
+		Item potion = new Potion();
+		ItemStack potions = new ItemStack(potion, 120);
+		inventory.addItemStack(potions);
+		Assert.assertTrue(potions.isEmpty());
+		Assert.assertEquals(120, inventory.countItems(potion));
+		Assert.assertEquals(3, inventory.getStackCount(potion));
+		Assert.assertEquals(997, inventory.getFreeSlotCount());
+		Assert.assertEquals(2, inventory.nextPartialStack(new Potion(), 0));
+
+		Assert.assertTrue(inventory.addItem(new Sword()));
+		Assert.assertSame(Sword.class,
+			inventory.getSlot(3).getItemStack().getItem().getClass());
+		Assert.assertTrue(inventory.addItem(new Sword()));
+		Assert.assertEquals(2, inventory.countItems(new Sword()));
+		Assert.assertEquals(995, inventory.getFreeSlotCount());
+
+		// slots handed out are copies, so they can't get around the indexes
+		try {
+			inventory.getSlot(0).setEmpty();
+			Assert.fail("A slot was changed behind the inventory's back");
+		}
+		catch (UnsupportedOperationException expected) {
+			// this is what should happen
+		}
+		inventory.getSlot(0).getItemStack().setAmount(1);
+		Assert.assertEquals(120, inventory.countItems(potion));
+		inventory.setSlot(0, null, 0);
+		Assert.assertEquals(70, inventory.countItems(potion));
+		Assert.assertEquals(0, inventory.nextFreeSlot(0));
+		Assert.assertTrue(inventory.addItem(potion));
+		Assert.assertEquals(21,
+			inventory.getSlot(2).getItemStack().getAmount());
+
+		Inventory small = new Inventory(2);
+		Assert.assertTrue(small.addItem(new Sword()));
+		Assert.assertTrue(small.addItem(new Sword()));
+		Assert.assertTrue(small.isFull());
+		Assert.assertFalse(small.addItem(new Sword()));
+		ItemStack extra = new ItemStack(potion, 5);
+		small.addItemStack(extra);
+		Assert.assertEquals(5, extra.getAmount());
+		small.reset();
+		Assert.assertEquals(2, small.getFreeSlotCount());
+		Assert.assertEquals(0, small.countItems(new Sword()));
+	}
+
+	/**
+	 * Makes the same random changes to a packed and a regular inventory, and
+	 * checks that they always hold the same items and keep the same counts.
+	 */
+	@Test
+	public void testPackedInventory() {
+		Inventory packed = new Inventory(64, true);
+		Inventory regular = new Inventory(64);
+		Assert.assertTrue(packed.isPacked());
+		Item[] items = {new Potion(), new Sword(), new Potion()};
+		Random random = new Random(7);
+		for (int i = 0; i < 2000; ++i) {
+			final Item item = items[random.nextInt(items.length)];
+			final int slot = random.nextInt(64);
+			switch (random.nextInt(4)) {
+				case 0:
+					Assert.assertEquals(regular.addItem(item),
+						packed.addItem(item));
+					break;
+				case 1:
+					final int amount = random.nextInt(80);
+					ItemStack first = new ItemStack(item, amount);
+					ItemStack second = new ItemStack(item, amount);
+					regular.addItemStack(first);
+					packed.addItemStack(second);
+					Assert.assertEquals(first.getAmount(), second.getAmount());
+					break;
+				case 2:
+					regular.setSlot(slot, null, 0);
+					packed.setSlot(slot, null, 0);
+					break;
+				default:
+					// change the slots from what a copy of them holds
+					for (Inventory inventory : new Inventory[] {regular,
+						packed}) {
+						ItemStack stack =
+							inventory.getSlot(slot).getItemStack();
+						if (!stack.isEmpty()) {
+							inventory.setSlot(slot, stack.getItem(),
+								stack.getAmount() / 2);
+						}
+					}
+					break;
+			}
+			Assert.assertEquals(regular.getFreeSlotCount(),
+				packed.getFreeSlotCount());
+			for (Item counted : items) {
+				Assert.assertEquals(regular.countItems(counted),
+					packed.countItems(counted));
+			}
+		}
+		// packed slots share one item between every item that stacks with it
+		for (int i = 0; i < 64; ++i) {
+			final Item held = regular.getItem(i);
+			if (held == null) {
+				Assert.assertNull(packed.getItem(i));
+			}
+			else {
+				Assert.assertTrue(held.canStackWith(packed.getItem(i)));
+			}
+			Assert.assertEquals(regular.getAmount(i), packed.getAmount(i));
+		}
+		// neither kind of inventory holds more than a full stack in a slot
+		for (Inventory inventory : new Inventory[] {regular, packed}) {
+			try {
+				inventory.setSlot(0, new Sword(), 5);
+				Assert.fail("A slot was given more than a full stack");
+			}
+			catch (IllegalArgumentException expected) {
+				// expected
+			}
+		}
+		Assert.assertEquals(regular.getAmount(0), packed.getAmount(0));
+	}
+
+	/**
+	 * Registers items, and checks that definitions are shared, ids are dense,
+	 * and that inventories stack and pack registered items by id.
+	 */
+	@Test
+	public void testItemRegistry() {
+		final int before = ItemRegistry.getItemCount();
+		Item ruby = ItemRegistry.register(new Gem("test-ruby", 1));
+		Item sapphire = ItemRegistry.register(new Gem("test-sapphire", 2));
+		Assert.assertEquals(before, ruby.getId());
+		Assert.assertEquals(before + 1, sapphire.getId());
+		Assert.assertSame(ruby, ItemRegistry.register(new Gem("test-ruby", 1)));
+		Assert.assertSame(ruby, ItemRegistry.getItem(ruby.getId()));
+		Assert.assertSame(sapphire, ItemRegistry.getItem("test-sapphire"));
+		try {
+			ItemRegistry.register(new Gem("test-ruby", 3));
+			Assert.fail("A different item was registered with a used name");
+		}
+		catch (IllegalArgumentException expected) {
+			// expected
+		}
+
+		Assert.assertTrue(ruby.canStackWith(ruby));
+		Assert.assertFalse(ruby.canStackWith(sapphire));
+		Assert.assertFalse(ruby.canStackWith(new Gem("test-ruby", 1)));
+		Assert.assertTrue(new Sword().canStackWith(new Sword()));
+
+		for (boolean packed : new boolean[] {false, true}) {
+			Inventory inventory = new Inventory(4, packed);
+			inventory.addItemStack(new ItemStack(ruby, 15));
+			inventory.addItemStack(new ItemStack(sapphire, 5));
+			inventory.addItemStack(new ItemStack(ruby, 15));
+			Assert.assertEquals(30, inventory.countItems(ruby));
+			Assert.assertEquals(5, inventory.countItems(sapphire));
+			Assert.assertEquals(2, inventory.getStackCount(ruby));
+			Assert.assertSame(ruby, inventory.getItem(0));
+			Assert.assertSame(sapphire, inventory.getItem(1));
+			Assert.assertEquals(10, inventory.getAmount(2));
+		}
+	}
+
+	/**
+	 * Moves items between inventories in bulk, and compacts and sorts them,
+	 * checking that stacks are merged and nothing is lost.
+	 */
+	@Test
+	public void testBulkInventory() {
+		Potion potion = new Potion();
+		Sword sword = new Sword();
+		for (boolean packed : new boolean[] {false, true}) {
+			Inventory bag = new Inventory(8, packed);
+			bag.setSlot(0, potion, 10);
+			bag.setSlot(1, sword, 1);
+			bag.setSlot(3, potion, 30);
+			bag.setSlot(5, potion, 25);
+			bag.setSlot(6, sword, 1);
+
+			bag.compact();
+			Assert.assertEquals(50, bag.getAmount(0));
+			Assert.assertEquals(15, bag.getAmount(3));
+			Assert.assertNull(bag.getItem(5));
+			Assert.assertEquals(65, bag.countItems(potion));
+			Assert.assertEquals(2, bag.getStackCount(sword));
+
+			bag.sortBy((first, second) -> Integer
+				.compare(first.getMaxStackSize(), second.getMaxStackSize()));
+			Assert.assertSame(sword, bag.getItem(0));
+			Assert.assertSame(sword, bag.getItem(1));
+			Assert.assertEquals(50, bag.getAmount(2));
+			Assert.assertEquals(15, bag.getAmount(3));
+			Assert.assertEquals(4, bag.getFreeSlotCount());
+			Assert.assertNull(bag.getItem(4));
+
+			Inventory bank = new Inventory(3, packed);
+			bank.setSlot(1, potion, 45);
+			bank.setSlot(2, sword, 1);
+			final long moved = Inventory.transferAll(bag, bank,
+				item -> item instanceof Potion);
+			Assert.assertEquals(55, moved);
+			Assert.assertEquals(100, bank.countItems(potion));
+			Assert.assertEquals(2, bank.getStackCount(potion));
+			Assert.assertTrue(bank.isFull());
+			Assert.assertEquals(10, bag.countItems(potion));
+			Assert.assertEquals(2, bag.countItems(sword));
+
+			Assert.assertEquals(0,
+				Inventory.transferAll(bag, bank, item -> true));
+			Assert.assertEquals(2, Inventory.transferAll(bag,
+				new Inventory(2, packed), item -> item instanceof Sword));
+			Assert.assertEquals(1, bag.getStackCount(potion));
+		}
+	}
+
+	/**
+	 * Moves potions around a concurrent inventory on one thread while another
+	 * reads snapshots, and checks that every snapshot holds the same number of
+	 * potions in valid stacks, and that versions only go up.
+	 *
+	 * @throws InterruptedException if interrupted while waiting for threads
+	 */
+	@Test(timeout = 60000)
+	public void testConcurrentInventory() throws InterruptedException {
+		final Potion potion = new Potion();
+		final Inventory inventory =
+			new Inventory(200, Inventory.Storage.CONCURRENT);
+		Assert.assertTrue(inventory.isConcurrent());
+		Assert.assertEquals(0, inventory.snapshot().getVersion());
+		inventory.getLock().lock();
+		try {
+			for (int i = 0; i < 100; ++i) {
+				inventory.setSlot(i * 2, potion, 25);
+			}
+		}
+		finally {
+			inventory.getLock().unlock();
+		}
+		Assert.assertEquals(1, inventory.snapshot().getVersion());
+
+		final AtomicInteger bad = new AtomicInteger();
+		final AtomicInteger reads = new AtomicInteger();
+		final Thread writer = new Thread(() -> {
+			Random random = new Random(1);
+			for (int i = 0; i < 20000; ++i) {
+				final int from = random.nextInt(200);
+				final int to = random.nextInt(200);
+				inventory.getLock().lock();
+				try {
+					final int amount = inventory.getAmount(from);
+					final int room = 50 - inventory.getAmount(to);
+					final int moved =
+						Math.min(amount, random.nextInt(room + 1));
+					if (from != to && moved > 0) {
+						inventory.setSlot(from, potion, amount - moved);
+						inventory.setSlot(to, potion,
+							inventory.getAmount(to) + moved);
+					}
+				}
+				finally {
+					inventory.getLock().unlock();
+				}
+				if (i % 1000 == 0) {
+					inventory.compact();
+				}
+			}
+		});
+		final Thread reader = new Thread(() -> {
+			long lastVersion = 0;
+			while (writer.isAlive()) {
+				Inventory.Snapshot snapshot = inventory.snapshot();
+				if (snapshot.getVersion() < lastVersion) {
+					bad.incrementAndGet();
+				}
+				lastVersion = snapshot.getVersion();
+				int total = 0;
+				for (int i = 0; i < snapshot.getSize(); ++i) {
+					final int amount = snapshot.getAmount(i);
+					if ((snapshot.getItem(i) == null) != (amount == 0)
+						|| amount > 50) {
+						bad.incrementAndGet();
+					}
+					total += amount;
+				}
+				if (total != 2500) {
+					bad.incrementAndGet();
+				}
+				reads.incrementAndGet();
+			}
+		});
+		writer.start();
+		reader.start();
+		writer.join();
+		reader.join();
+
+		Assert.assertEquals(0, bad.get());
+		Assert.assertTrue(reads.get() > 0);
+		Assert.assertEquals(2500, inventory.countItems(potion));
+		try {
+			new Inventory(4).snapshot();
+			Assert.fail("A snapshot was taken of a plain inventory");
+		}
+		catch (IllegalStateException expected) {
+			// expected
+		}
+	}
+
+	/**
+	 * Changes stack sizes and checks that the shared empty stack is returned
+	 * when nothing overflows, and that it can't be changed.
+	 */
+	@Test
+	public void testItemStackOverflow() {
+		Potion potion = new Potion();
+		ItemStack stack = new ItemStack(potion, 10);
+		Assert.assertSame(ItemStack.EMPTY, stack.addItems(30));
+		Assert.assertSame(ItemStack.EMPTY, stack.removeItems(5));
+		Assert.assertEquals(35, stack.getAmount());
+
+		ItemStack overflow = stack.addItems(20);
+		Assert.assertEquals(50, stack.getAmount());
+		Assert.assertEquals(5, overflow.getAmount());
+
+		Assert.assertEquals(0, stack.changeAmount(-45));
+		Assert.assertEquals(7, stack.changeAmount(52));
+		Assert.assertEquals(50, stack.getAmount());
+		Assert.assertEquals(0, stack.changeAmount(-60));
+		Assert.assertTrue(stack.isEmpty());
+
+		InventorySlot slot = new InventorySlot();
+		Assert.assertSame(ItemStack.EMPTY, slot.setEmpty());
+		slot.setItemStack(ItemStack.EMPTY);
+		slot.getItemStack().setItem(potion, 3);
+		Assert.assertTrue(ItemStack.EMPTY.isEmpty());
+		Assert.assertEquals(1, slot.takeItems(1).getAmount());
+		Assert.assertEquals(2, slot.getItemStack().getAmount());
+
+		try {
+			ItemStack.EMPTY.setAmount(1);
+			Assert.fail("The shared empty stack was changed");
+		}
+		catch (UnsupportedOperationException expected) {
+			// expected
+		}
+	}
+
+	/**
+	 * Settles a batch of trades that swap items and currency between players,
+	 * and makes sure trades that conflict or can't fit are rejected without
+	 * changing anything.
+	 */
+	@Test
+	public void testTrades() {
+		Player first = new Player();
+		Player second = new Player();
+		Inventory firstItems = first.getComponent(Inventory.TYPE);
+		Inventory secondItems = second.getComponent(Inventory.TYPE);
+		Item sword = new Sword();
+		Item potion = new Potion();
+		first.setCurrency(100);
+		second.setCurrency(10);
+		firstItems.setSlot(0, sword, 1);
+		secondItems.setSlot(0, potion, 30);
+		firstItems.setSlot(1, new Potion(), 40);
+
+		Trade swap = new Trade();
+		swap.addItems(firstItems, 0, sword, 1, secondItems);
+		swap.addItems(secondItems, 0, potion, 20, firstItems);
+		swap.addPayment(first, second, 50);
+		Trade stale = new Trade();
+		stale.addItems(firstItems, 0, sword, 1, secondItems);
+		Trade broke = new Trade();
+		broke.addPayment(second, first, 61);
+		broke.addItems(secondItems, 0, potion, 1, firstItems);
+
+		TradeSettlement settlement = new TradeSettlement();
+		settlement.submit(swap);
+		settlement.submit(stale);
+		settlement.submit(broke);
+		Assert.assertEquals(1, settlement.settlePending());
+		Assert.assertEquals(Trade.Status.SETTLED, swap.getStatus());
+		Assert.assertEquals(Trade.Status.MISSING_ITEMS, stale.getStatus());
+		Assert.assertEquals(Trade.Status.INSUFFICIENT_CURRENCY,
+			broke.getStatus());
+
+		Assert.assertEquals(50, first.getCurrency());
+		Assert.assertEquals(60, second.getCurrency());
+		// the slot the sword left is the first free one for extra potions
+		Assert.assertEquals(50, firstItems.getSlot(1).getItemStack()
+			.getAmount());
+		Assert.assertEquals(10, firstItems.getSlot(0).getItemStack()
+			.getAmount());
+		Assert.assertTrue(firstItems.getSlot(2).isEmpty());
+		Assert.assertEquals(10, secondItems.getSlot(0).getItemStack()
+			.getAmount());
+		Assert.assertSame(sword,
+			secondItems.getSlot(1).getItemStack().getItem());
+
+		// the sword can only be taken once, so the potions must be put back
+		Inventory full = new Inventory(1);
+		full.setSlot(0, new Potion(), 50);
+		Trade twice = new Trade();
+		twice.addItems(full, 0, potion, 50, firstItems);
+		twice.addItems(secondItems, 1, sword, 1, full);
+		twice.addItems(secondItems, 1, sword, 1, full);
+		Assert.assertEquals(Trade.Status.MISSING_ITEMS,
+			TradeSettlement.settle(twice));
+		Trade tooBig = new Trade();
+		tooBig.addItems(secondItems, 0, potion, 10, full);
+		Assert.assertEquals(Trade.Status.NO_ROOM,
+			TradeSettlement.settle(tooBig));
+		Assert.assertEquals(10, secondItems.getSlot(0).getItemStack()
+			.getAmount());
+		Assert.assertEquals(50, full.getSlot(0).getItemStack().getAmount());
+		Trade exchange = new Trade();
+		exchange.addItems(full, 0, potion, 50, firstItems);
+		exchange.addItems(secondItems, 1, sword, 1, full);
+		Assert.assertEquals(Trade.Status.SETTLED,
+			TradeSettlement.settle(exchange));
+		Assert.assertSame(sword, full.getSlot(0).getItemStack().getItem());
+
+		first.destroy();
+		second.destroy();
+	}
+
+	/**
+	 * Releases a player to a pool and makes sure the same player and
+	 * components come back out, reset and under a new id.
+	 */
+	@Test
+	public void testPool() {
+		EntityPool<Player> pool = new EntityPool<>(Player::new, 4);
+		Player player = pool.acquire();
+		Health health = player.getComponent(Health.TYPE);
+		health.damage(40);
+		player.setCurrency(25);
+		final long oldId = player.getId();
+		final long order = CurrencyTransfer.orderOf(player);
+
+		pool.release(player);
+		Assert.assertEquals(1, pool.getAvailable());
+		Assert.assertNull(Entity.getEntity(oldId));
+
+		Player reused = pool.acquire();
+		Assert.assertSame(player, reused);
+		Assert.assertNotEquals(oldId, reused.getId());
+		Assert.assertEquals(order, CurrencyTransfer.orderOf(reused));
+		Assert.assertSame(reused, Entity.getEntity(reused.getId()));
+		Assert.assertSame(health, reused.getComponent(Health.TYPE));
+		Assert.assertEquals(health.getMaxHealth(), health.getHealth());
+		Assert.assertEquals(0, reused.getCurrency());
+
+		// names given back on release must not stay with the pooled entity
+		final String oldName = reused.getName();
+		pool.release(reused);
+		Entity other = new Entity(oldName.substring(0,
+			oldName.lastIndexOf('-')));
+		Assert.assertEquals(oldName, other.getName());
+		Player revived = pool.acquire();
+		Assert.assertNotEquals(oldName, revived.getName());
+		revived.destroy();
+		Entity third = new Entity(oldName.substring(0,
+			oldName.lastIndexOf('-')));
+		Assert.assertNotEquals(other.getName(), third.getName());
+		other.destroy();
+		third.destroy();
+	}
+
+	/**
+	 * Registers a query and checks that entities come and go from its results
+	 * as components are added and removed.
+	 */
+	@Test
+	public void testQuery() {
+		EntityQuery query = EntityManager.getInstance().registerQuery(
+			new ComponentType<?>[] {Health.TYPE},
+			new ComponentType<?>[] {Skills.TYPE});
+		final int initial = query.count();
+
+		Entity first = new Entity("test-Query");
+		Entity second = new Entity("test-Query");
+		first.addComponent(new Health());
+		second.addComponent(new Health());
+		Assert.assertEquals(initial + 2, query.count());
+
+		second.addComponent(new Skills());
+		Assert.assertEquals(initial + 1, query.count());
+
+		final int[] visited = {0};
+		query.forEach(Health.TYPE, (entity, health) -> {
+			Assert.assertNotNull(health);
+			Assert.assertFalse(entity.hasComponent(Skills.TYPE));
+			++visited[0];
+		});
+		Assert.assertEquals(initial + 1, visited[0]);
+
+		first.destroy();
+		second.destroy();
+		Assert.assertEquals(initial, query.count());
+		EntityManager.getInstance().unregisterQuery(query);
+	}
+
+	/**
+	 * Runs a system that damages entities and one that reads their health,
+	 * which conflict and so must run in order, over enough entities to be
+	 * split into several chunks.
+	 */
+	@Test
+	public void testScheduler() {
+		EntityTemplate template = new EntityTemplate("test-Scheduler");
+		template.addComponent(entity -> new Health(100))
+			.addComponent(entity -> new Skills());
+		Entity[] spawned = Entity.spawn(1000, template);
+
+		EntityQuery query =
+			EntityManager.getInstance().registerQuery(Health.TYPE, Skills.TYPE);
+		final AtomicInteger damaged = new AtomicInteger();
+		SystemScheduler scheduler = new SystemScheduler();
+		scheduler.addSystem(new EntitySystem(query, new ComponentType<?>[0],
+			new ComponentType<?>[] {Health.TYPE}) {
+			@Override
+			public void process(Entity entity) {
+				entity.getComponent(Health.TYPE).damage(10);
+			}
+		});
+		scheduler.addSystem(new EntitySystem(query,
+			new ComponentType<?>[] {Health.TYPE}, new ComponentType<?>[0]) {
+			@Override
+			public void process(Entity entity) {
+				if (entity.getComponent(Health.TYPE).getHealth() == 90) {
+					damaged.incrementAndGet();
+				}
+			}
+		});
+		scheduler.tick();
+		Assert.assertEquals(query.count(), damaged.get());
+
+		EntityManager.getInstance().unregisterQuery(query);
+		for (Entity entity : spawned) {
+			entity.destroy();
+		}
+	}
+
+	/**
+	 * Test that structural changes recorded while a system runs are made at
+	 * the end of the tick, and that they can't be recorded outside of one.
+	 */
+	@Test
+	public void testCommandBuffer() {
+		EntityTemplate template = new EntityTemplate("test-Commands");
+		template.addComponent(entity -> new Health(100));
+		Entity[] spawned = Entity.spawn(500, template);
+
+		EntityQuery healthy = EntityManager.getInstance()
+			.registerQuery(new ComponentType<?>[] {Health.TYPE},
+				new ComponentType<?>[] {Skills.TYPE});
+		EntityQuery skilled =
+			EntityManager.getInstance().registerQuery(Skills.TYPE);
+		SystemScheduler scheduler = new SystemScheduler();
+		scheduler.addSystem(new EntitySystem(healthy,
+			new ComponentType<?>[] {Health.TYPE}, new ComponentType<?>[0]) {
+			@Override
+			public void process(Entity entity) {
+				if (entity.getId() % 2 == 0) {
+					this.getCommands().addComponent(entity, new Skills());
+				}
+				else {
+					this.getCommands().destroy(entity);
+				}
+			}
+		});
+		final int before = healthy.count();
+		scheduler.tick();
+		Assert.assertEquals(0, healthy.count());
+		Assert.assertTrue(skilled.count() > 0);
+		Assert.assertTrue(skilled.count() < before);
+		int alive = 0;
+		for (Entity entity : spawned) {
+			if (Entity.getEntity(entity.getId()) == entity) {
+				++alive;
+				Assert.assertTrue(entity.hasComponent(Skills.TYPE));
+			}
+		}
+		Assert.assertEquals(skilled.count(), alive);
+		try {
+			scheduler.getCommandBuffer();
+			Assert.fail("Commands were recorded outside of a tick");
+		}
+		catch (IllegalStateException expected) {
+			// expected
+		}
+
+		EntityManager.getInstance().unregisterQuery(healthy);
+		EntityManager.getInstance().unregisterQuery(skilled);
+		for (Entity entity : spawned) {
+			entity.destroy();
+		}
+	}
+
+	/**
+	 * Test that only components that changed after a tick are found.
+	 */
+	@Test
+	public void testChangeTracking() {
+		EntityTemplate template = new EntityTemplate("test-Changes");
+		template.addComponent(entity -> new Health(100));
+		Entity[] spawned = Entity.spawn(10, template);
+		EntityQuery query =
+			EntityManager.getInstance().registerQuery(Health.TYPE);
+
+		final long since = EntityManager.getInstance().advanceTick();
+		Health damaged = spawned[3].getComponent(Health.TYPE);
+		Health healed = spawned[7].getComponent(Health.TYPE);
+		damaged.damage(5);
+		healed.heal(5);// already full
+		Assert.assertTrue(damaged.changedSince(since));
+		Assert.assertFalse(healed.changedSince(since));
+
+		final AtomicInteger changed = new AtomicInteger();
+		query.forEachChanged(Health.TYPE, since, (entity, health) -> {
+			Assert.assertEquals(95, health.getHealth());
+			changed.incrementAndGet();
+		});
+		Assert.assertEquals(1, changed.get());
+
+		EntityManager.getInstance().unregisterQuery(query);
+		for (Entity entity : spawned) {
+			entity.destroy();
+		}
+	}
+
+	/**
+	 * Test that children are destroyed with their parent and inherit flags.
+	 */
+	@Test
+	public void testHierarchy() {
+		EntityHierarchy hierarchy = EntityManager.getInstance().getHierarchy();
+		Entity mount = new Entity("test-Mount");
+		Entity rider = new Entity("test-Rider");
+		Entity carried = new Entity("test-Carried");
+		Entity other = new Entity("test-Other");
+		rider.setParent(mount);
+		carried.setParent(rider);
+		Assert.assertEquals(mount, rider.getParent());
+		Assert.assertEquals(rider, carried.getParent());
+		Assert.assertNull(other.getParent());
+
+		try {
+			mount.setParent(carried);
+			Assert.fail("A cycle was allowed");
+		}
+		catch (IllegalArgumentException expected) {
+			// this is what should happen
+		}
+		try {
+			other.setParent(other);
+			Assert.fail("An entity was attached to itself");
+		}
+		catch (IllegalArgumentException expected) {
+			// this is what should happen
+		}
+		Assert.assertEquals(3, hierarchy.getSize());
+
+		final int hidden = 1;
+		hierarchy.setFlags(mount, hidden);
+		hierarchy.propagate();
+		Assert.assertEquals(hidden, hierarchy.getInheritedFlags(carried));
+		Assert.assertEquals(0, hierarchy.getFlags(carried));
+		Assert.assertEquals(0, hierarchy.getInheritedFlags(other));
+
+		final AtomicInteger pairs = new AtomicInteger();
+		hierarchy.forEachParentFirst((parent, child) -> {
+			pairs.incrementAndGet();
+		});
+		Assert.assertEquals(2, pairs.get());
+
+		mount.destroy();
+		Assert.assertNull(Entity.getEntity(rider.getId()));
+		Assert.assertNull(Entity.getEntity(carried.getId()));
+		Assert.assertEquals(other, Entity.getEntity(other.getId()));
+		Assert.assertEquals(0, hierarchy.getSize());
+		other.destroy();
+	}
+
+	/**
+	 * Test that hits on the same entity are combined, and that deaths and
+	 * threshold crossings are reported.
+	 */
+	@Test
+	public void testDamageBatch() {
+		EntityTemplate template = new EntityTemplate("test-Batch");
+		template.addComponent(entity -> new Health(100));
+		Entity[] spawned = Entity.spawn(200, template);
+
+		DamageBatch batch = new DamageBatch();
+		batch.addThreshold(0.25f);
+		for (Entity target : spawned) {
+			batch.add(target, 40, Element.FIRE);
+		}
+		batch.add(spawned[0], 40, Element.FIRE);
+		batch.add(spawned[1], 100, Element.ICE);
+		DamageResult result = batch.apply((target, amount, element) -> {
+			return element == Element.ICE ? amount / 2 : amount;
+		});
+
+		Assert.assertEquals(0, batch.getSize());
+		Assert.assertEquals(spawned.length, result.getHitCount());
+		Health first = spawned[0].getComponent(Health.TYPE);
+		Health second = spawned[1].getComponent(Health.TYPE);
+		Health third = spawned[2].getComponent(Health.TYPE);
+		Assert.assertEquals(20, first.getHealth());
+		Assert.assertEquals(10, second.getHealth());
+		Assert.assertEquals(0, result.getDeathCount());
+		Assert.assertEquals(2, result.getCrossingCount());
+		for (int i = 0; i < result.getCrossingCount(); ++i) {
+			Assert.assertTrue(result.isCrossingDownward(i));
+			Assert.assertEquals(0.25f, result.getCrossingThreshold(i), 0.0f);
+		}
+
+		batch.add(spawned[1], 500, null);
+		batch.add(spawned[2], -500, null);
+		result = batch.apply();
+		Assert.assertEquals(1, result.getDeathCount());
+		Assert.assertEquals(spawned[1], result.getDeath(0));
+		Assert.assertEquals(100, third.getHealth());
+
+		for (Entity entity : spawned) {
+			entity.destroy();
+		}
+	}
 }
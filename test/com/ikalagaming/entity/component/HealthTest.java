@@ -1,8 +1,15 @@
 package com.ikalagaming.entity.component;
 
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.IntConsumer;
+
 import org.junit.Assert;
 import org.junit.Test;
 
+import com.ikalagaming.entity.EntityManager;
+import com.ikalagaming.entity.Resource;
 import com.ikalagaming.entity.component.Health;
 import com.ikalagaming.entity.component.InvalidInputException;
 
@@ -91,6 +98,404 @@ public class HealthTest {
 		Assert.assertEquals(-11, negHealth.getHealth());
 	}
 
+	/**
+	 * Runs an action on several threads at once, all starting together.
+	 *
+	 * @param threadCount how many threads to run
+	 * @param action what each thread does, given the index of the thread
+	 */
+	private static void runConcurrently(int threadCount, IntConsumer action) {
+		final CountDownLatch start = new CountDownLatch(1);
+		final AtomicReference<Throwable> failure = new AtomicReference<>();
+		Thread[] threads = new Thread[threadCount];
+		for (int i = 0; i < threadCount; ++i) {
+			final int index = i;
+			threads[i] = new Thread(() -> {
+				try {
+					start.await();
+				}
+				catch (InterruptedException e) {
+					return;
+				}
+				try {
+					action.accept(index);
+				}
+				catch (Throwable t) {
+					failure.compareAndSet(null, t);
+				}
+			});
+			threads[i].start();
+		}
+		start.countDown();
+		for (Thread thread : threads) {
+			try {
+				thread.join();
+			}
+			catch (InterruptedException e) {
+				Assert.fail("Interrupted while waiting for threads");
+			}
+		}
+		if (failure.get() != null) {
+			throw new AssertionError(failure.get());
+		}
+	}
+
+	/**
+	 * Tests that damage from many threads at once is never lost.
+	 */
+	@Test
+	public void testConcurrentDamage() {
+		final int threads = 8;
+		final int hits = 20000;
+		final Health health = new Health(0, threads * hits + 100);
+		HealthTest.runConcurrently(threads, index -> {
+			for (int i = 0; i < hits; ++i) {
+				health.damage(1);
+			}
+		});
+		Assert.assertEquals(100, health.getHealth());
+	}
+
+	/**
+	 * Tests that damage and healing from many threads at once cancel out
+	 * exactly, and that clamping still holds when many threads push past the
+	 * bounds.
+	 */
+	@Test
+	public void testConcurrentDamageAndHeal() {
+		final int threads = 8;
+		final int hits = 20000;
+		// room for every hit on one side to land before any on the other
+		final int range = 3 * hits * threads;
+		final Health health = new Health(0, 2 * range, range);
+		HealthTest.runConcurrently(threads, index -> {
+			for (int i = 0; i < hits; ++i) {
+				if (index % 2 == 0) {
+					health.damage(3);
+				}
+				else {
+					health.heal(3);
+				}
+			}
+		});
+		Assert.assertEquals(range, health.getHealth());
+
+		final Health clamped = new Health(0, 1000);
+		HealthTest.runConcurrently(threads, index -> {
+			for (int i = 0; i < hits; ++i) {
+				if (index % 2 == 0) {
+					clamped.damage(7);
+				}
+				else {
+					clamped.setHealth(500);
+				}
+				final int current = clamped.getHealth();
+				if (current < 0 || current > 1000) {
+					throw new IllegalStateException("Out of bounds " + current);
+				}
+			}
+		});
+		Assert.assertTrue(clamped.getHealth() >= 0);
+		Assert.assertTrue(clamped.getHealth() <= 1000);
+		clamped.damage(Health.HIGHEST_POSSIBLE_HEALTH);
+		Assert.assertEquals(0, clamped.getHealth());
+
+		final Health shrinking = new Health(0, 1000, 0);
+		HealthTest.runConcurrently(threads, index -> {
+			for (int i = 0; i < hits; ++i) {
+				if (index == 0) {
+					try {
+						shrinking.setMaxHealth(1000 - i % 1000);
+					}
+					catch (InvalidInputException e) {
+						throw new IllegalStateException(e);
+					}
+				}
+				else {
+					shrinking.heal(5);
+				}
+			}
+		});
+		Assert.assertTrue(
+				shrinking.getHealth() <= shrinking.getMaxHealth());
+	}
+
+	/**
+	 * Tests that threshold listeners are told only when health crosses their
+	 * threshold, in either direction.
+	 */
+	@Test
+	public void testThresholdListeners() {
+		final AtomicInteger deaths = new AtomicInteger();
+		final AtomicInteger revivals = new AtomicInteger();
+		final AtomicInteger lowHealth = new AtomicInteger();
+		final AtomicInteger fullHeals = new AtomicInteger();
+		HealthListener deathListener = (health, threshold, downward) -> {
+			if (downward && health.isDead()) {
+				deaths.incrementAndGet();
+			}
+			else if (!downward) {
+				revivals.incrementAndGet();
+			}
+		};
+		HealthListener lowListener = (health, threshold, downward) -> {
+			if (downward) {
+				lowHealth.incrementAndGet();
+			}
+		};
+		HealthListener fullListener = (health, threshold, downward) -> {
+			if (!downward) {
+				fullHeals.incrementAndGet();
+			}
+		};
+		Health.addThresholdListener(Health.DEATH_THRESHOLD, deathListener);
+		Health.addThresholdListener(0.25f, lowListener);
+		Health.addThresholdListener(Health.FULL_THRESHOLD, fullListener);
+		try {
+			Health health = new Health(0, 100);
+			health.damage(50);
+			Assert.assertEquals(0, lowHealth.get());
+			health.damage(25);
+			Assert.assertEquals(1, lowHealth.get());
+			health.damage(10);
+			Assert.assertEquals(1, lowHealth.get());
+			health.damage(100);
+			Assert.assertEquals(1, deaths.get());
+			health.damage(100);
+			Assert.assertEquals(1, deaths.get());
+			Assert.assertEquals(0, revivals.get());
+			health.heal(500);
+			Assert.assertEquals(1, fullHeals.get());
+			Assert.assertEquals(1, revivals.get());
+			health.heal(5);
+			Assert.assertEquals(1, fullHeals.get());
+			health.setHealth(0);
+			Assert.assertEquals(2, deaths.get());
+			Assert.assertEquals(2, lowHealth.get());
+
+			HealthStore store = new HealthStore();
+			store.add(0, 100, 100);
+			store.add(0, 100, 100);
+			store.applyDamage(new int[] {80, 100});
+			Assert.assertEquals(3, deaths.get());
+			Assert.assertEquals(4, lowHealth.get());
+			store.regenerate(new int[] {10, 10});
+			Assert.assertEquals(1, revivals.get());
+		}
+		finally {
+			Health.removeThresholdListener(Health.DEATH_THRESHOLD,
+					deathListener);
+			Health.removeThresholdListener(0.25f, lowListener);
+			Health.removeThresholdListener(Health.FULL_THRESHOLD,
+					fullListener);
+		}
+		new Health(0, 100).damage(100);
+		Assert.assertEquals(3, deaths.get());
+	}
+
+	/**
+	 * Tests that changing the minimum or maximum health tells the listeners
+	 * for thresholds that the percentage of health crossed, for plain and
+	 * stored health.
+	 *
+	 * @throws InvalidInputException if the bounds are not valid
+	 */
+	@Test
+	public void testBoundThresholds() throws InvalidInputException {
+		final AtomicInteger deaths = new AtomicInteger();
+		final AtomicInteger revivals = new AtomicInteger();
+		final AtomicInteger fullHeals = new AtomicInteger();
+		HealthListener deathListener = (health, threshold, downward) -> {
+			if (downward && health.isDead()) {
+				deaths.incrementAndGet();
+			}
+			else if (!downward) {
+				revivals.incrementAndGet();
+			}
+		};
+		HealthListener fullListener = (health, threshold, downward) -> {
+			if (!downward) {
+				fullHeals.incrementAndGet();
+			}
+		};
+		Health.addThresholdListener(Health.DEATH_THRESHOLD, deathListener);
+		Health.addThresholdListener(Health.FULL_THRESHOLD, fullListener);
+		try {
+			HealthStore store = new HealthStore();
+			Health[] healths = {new Health(0, 100, 30), store.add(0, 100, 30)};
+			for (int i = 0; i < healths.length; ++i) {
+				Health health = healths[i];
+				health.setMaxHealth(30);
+				Assert.assertEquals(i + 1, fullHeals.get());
+				health.setMaxHealth(100);
+				health.setMinHealth(50);
+				Assert.assertTrue(health.isDead());
+				Assert.assertEquals(i + 1, deaths.get());
+				health.setMinHealth(0);
+				Assert.assertEquals(i + 1, revivals.get());
+				Assert.assertEquals(i + 1, fullHeals.get());
+			}
+		}
+		finally {
+			Health.removeThresholdListener(Health.DEATH_THRESHOLD,
+					deathListener);
+			Health.removeThresholdListener(Health.FULL_THRESHOLD,
+					fullListener);
+		}
+	}
+
+	/**
+	 * Tests that health stored in a store behaves the same as regular health,
+	 * and that bulk damage matches damaging each one.
+	 */
+	@Test
+	public void testHealthStore() {
+		HealthStore store = new HealthStore();
+		Health[] stored = new Health[100];
+		Health[] plain = new Health[stored.length];
+		int[] amounts = new int[stored.length];
+		for (int i = 0; i < stored.length; ++i) {
+			stored[i] = store.add(0, 100, 50 + i);
+			plain[i] = new Health(0, 100, 50 + i);
+			amounts[i] = i % 2 == 0 ? i : -i;
+		}
+		Assert.assertEquals(stored.length, store.getSize());
+		Assert.assertEquals(100, stored[99].getHealth());
+
+		store.applyDamage(amounts);
+		for (int i = 0; i < stored.length; ++i) {
+			plain[i].damage(amounts[i]);
+			Assert.assertEquals(plain[i].getHealth(), stored[i].getHealth());
+		}
+
+		stored[3].setImmortal(true);
+		stored[3].setHealth(0);
+		stored[4].damage(500);
+		int[] dead = new int[store.getSize()];
+		int deadCount = store.findDead(dead);
+		for (int i = 0; i < deadCount; ++i) {
+			Assert.assertTrue(store.getHealth(dead[i]).isDead());
+		}
+		int expected = 0;
+		for (Health health : stored) {
+			if (health.isDead()) {
+				++expected;
+			}
+		}
+		Assert.assertEquals(expected, deadCount);
+
+		store.remove(stored[4]);
+		Assert.assertEquals(stored.length - 1, store.getSize());
+		Assert.assertEquals(0, stored[4].getHealth());
+		Assert.assertTrue(stored[4].isDead());
+		stored[4].heal(10);
+		Assert.assertEquals(10, stored[4].getHealth());
+		Assert.assertEquals(plain[99].getHealth(), stored[99].getHealth());
+		Assert.assertTrue(stored[3].isImmortal());
+	}
+
+	/**
+	 * Tests that lazy regeneration gives the same values as adding the rate
+	 * every tick, for plain health, stored health, and resource pools. Also
+	 * checks that resource pools are not kept for health.
+	 */
+	@Test
+	public void testRegeneration() {
+		Health plain = new Health(0, 500, 100);
+		HealthStore store = new HealthStore();
+		Health stored = store.add(0, 500, 100);
+		Resources resources = new Resources();
+		plain.setRegenRate(7);
+		stored.setRegenRate(7);
+		resources.setRegenRate(Resource.MANA, 3);
+		resources.spend(Resource.MANA, 90);
+
+		int expected = 100;
+		int mana = 10;
+		for (int tick = 0; tick < 300; ++tick) {
+			EntityManager.getInstance().advanceTick();
+			expected = expected > 0 ? Math.min(500, expected + 7) : expected;
+			mana = Math.min(100, mana + 3);
+			if (tick % 37 == 0) {
+				plain.damage(150);
+				stored.damage(150);
+				expected = Math.max(0, expected - 150);
+			}
+			if (tick == 200) {
+				plain.setHealth(0);
+				stored.setHealth(0);
+				expected = 0;
+			}
+			if (tick % 50 == 0) {
+				Assert.assertEquals(mana > 40, resources.spend(Resource.MANA,
+						40));
+				mana = mana > 40 ? mana - 40 : mana;
+			}
+			if (tick % 3 == 0) {
+				Assert.assertEquals(expected, plain.getHealth());
+				Assert.assertEquals(expected, stored.getHealth());
+				Assert.assertEquals(mana, resources.get(Resource.MANA));
+			}
+		}
+		Assert.assertTrue(plain.isDead());
+		Assert.assertEquals(100, resources.get(Resource.STAMINA));
+		try {
+			resources.add(Resource.HEALTH, 10);
+			Assert.fail("Health was kept as a resource pool");
+		}
+		catch (IllegalArgumentException e) {
+			// expected
+		}
+	}
+
+	/**
+	 * Tests that regeneration counts as a change in every tick it happens in,
+	 * even before anything reads it, and that reading it reports crossings.
+	 */
+	@Test
+	public void testRegenerationChanges() {
+		final AtomicInteger fullHeals = new AtomicInteger();
+		HealthListener fullListener = (health, threshold, downward) -> {
+			if (!downward) {
+				fullHeals.incrementAndGet();
+			}
+		};
+		Health plain = new Health(0, 100, 50);
+		HealthStore store = new HealthStore();
+		Health stored = store.add(0, 100, 50);
+		Resources resources = new Resources();
+		plain.setRegenRate(10);
+		stored.setRegenRate(10);
+		resources.setRegenRate(Resource.MANA, 10);
+		resources.spend(Resource.MANA, 50);
+		Health.addThresholdListener(Health.FULL_THRESHOLD, fullListener);
+		try {
+			for (int i = 0; i < 5; ++i) {
+				final long since = EntityManager.getInstance().advanceTick();
+				Assert.assertTrue(plain.changedSince(since));
+				Assert.assertTrue(stored.changedSince(since));
+				Assert.assertTrue(resources.changedSince(since));
+			}
+			final long since = EntityManager.getInstance().advanceTick();
+			Assert.assertFalse(plain.changedSince(since));
+			Assert.assertFalse(stored.changedSince(since));
+			Assert.assertFalse(resources.changedSince(since));
+			Assert.assertEquals(0, fullHeals.get());
+
+			Assert.assertEquals(100, plain.getHealth());
+			Assert.assertEquals(1, fullHeals.get());
+			Assert.assertEquals(100, stored.getHealth());
+			Assert.assertEquals(2, fullHeals.get());
+			Assert.assertEquals(100, plain.getHealth());
+			Assert.assertEquals(2, fullHeals.get());
+			Assert.assertEquals(100, resources.get(Resource.MANA));
+		}
+		finally {
+			Health.removeThresholdListener(Health.FULL_THRESHOLD,
+					fullListener);
+		}
+	}
+
 	/**
 	 * Ensures that the health value is set and returned properly and it stays
 	 * inside the given min and max bounds for the health object.